@@ -2,7 +2,6 @@ package ca.mcgill.pcingola.epistasis;
 
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
@@ -25,6 +24,7 @@ import ca.mcgill.pcingola.epistasis.coEvolutionMetrics.EntropySeq.InformationFun
 import ca.mcgill.pcingola.epistasis.coEvolutionMetrics.McBasc;
 import ca.mcgill.pcingola.epistasis.gwas.GwasEpistasis;
 import ca.mcgill.pcingola.epistasis.likelihood.CoEvolutionLikelihood;
+import ca.mcgill.pcingola.epistasis.likelihood.LikelihoodNullSampler;
 import ca.mcgill.pcingola.epistasis.likelihood.TrLikelihoodMatrix;
 import ca.mcgill.pcingola.epistasis.msa.MsaDistanceVarInf;
 import ca.mcgill.pcingola.epistasis.msa.MsaSimilarity;
@@ -75,8 +75,6 @@ public class Epistasis implements CommandLine {
 	EstimateTransitionMatrix mltm;
 	IdMapper idMapper;
 	PdbGenomeMsas pdbGenomeMsas;
-	HashMap<Thread, LikelihoodTreeAa> treeNullByThread = new HashMap<Thread, LikelihoodTreeAa>();
-	HashMap<Thread, LikelihoodTreeAa> treeAltByThread = new HashMap<Thread, LikelihoodTreeAa>();
 	UniformTreeValueCache lcacheNull = new UniformTreeValueCache(GprSeq.AMINO_ACIDS.length);
 	UniformTreeValueCache lcacheAlt = new UniformTreeValueCache(GprSeq.AMINO_ACIDS.length * GprSeq.AMINO_ACIDS.length);
 	Set<String> done = new HashSet<>();
@@ -244,7 +242,7 @@ public class Epistasis implements CommandLine {
 
 		// Load: MSA
 		Timer.showStdErr("Loading " + numAligns + " way multiple alignment from " + multAlign);
-		msas = new MultipleSequenceAlignmentSet(multAlign, numAligns);
+		msas = new MultipleSequenceAlignmentSet(multAlign, tree);
 		msas.load();
 
 		// Filter by idMap?
@@ -272,7 +270,9 @@ public class Epistasis implements CommandLine {
 			return;
 		}
 
-		Q = TransitionMatrixMarkov.load(qMatrixFile);
+		TransitionMatrixMarkov Qm = TransitionMatrixMarkov.load(qMatrixFile);
+		Qm.setUseEigen(true);
+		Q = Qm;
 		if (!Q.isRateMatrix()) throw new RuntimeException("Q is not a reate matrix!");
 	}
 
@@ -283,7 +283,9 @@ public class Epistasis implements CommandLine {
 			return;
 		}
 
-		Q2 = TransitionMatrixMarkov.load(fileName);
+		TransitionMatrixMarkov Q2m = TransitionMatrixMarkov.load(fileName);
+		Q2m.setUseEigen(true);
+		Q2 = Q2m;
 	}
 
 	/**
@@ -491,8 +493,11 @@ public class Epistasis implements CommandLine {
 			aaFreqsContactFile = args[argNum++];
 			filterMsaByIdMap = true;
 			neighbours = Gpr.parseIntSafe(args[argNum++]); // Number of 'neighbours' on each side
+			outDir = argNum < args.length ? args[argNum++] : null; // Optional: One output file per chunk (allows resume)
+			numSplits = argNum < args.length ? Gpr.parseIntSafe(args[argNum++]) : 1; // Optional: Split chunks across processes
+			int splitNull = argNum < args.length ? Gpr.parseIntSafe(args[argNum++]) : 0;
 			if (args.length != argNum) usage("Unused parameter '" + args[argNum] + "' for command '" + cmd + "'");
-			runLikelihoodNull(numSamples, neighbours);
+			runLikelihoodNull(numSamples, neighbours, outDir, numSplits, splitNull);
 			break;
 
 		case "likelihoodpdbinteract":
@@ -558,6 +563,14 @@ public class Epistasis implements CommandLine {
 			runMapPdbGeneBest();
 			break;
 
+		case "msa2bin":
+			treeFile = args[argNum++];
+			multAlignFile = args[argNum++];
+			String binFile = args[argNum++];
+			if (args.length != argNum) usage("Unused parameter '" + args[argNum] + "' for command '" + cmd + "'");
+			runMsa2Bin(binFile);
+			break;
+
 		case "nextprot":
 			configFile = args[argNum++];
 			genome = args[argNum++];
@@ -1037,11 +1050,14 @@ public class Epistasis implements CommandLine {
 	/**
 	 * Likelihood 'null distribution
 	 */
-	void runLikelihoodNull(int numSamples, int neighbours) {
+	void runLikelihoodNull(int numSamples, int neighbours, String outDir, int numSplits, int split) {
 		load();
 
 		CoEvolutionLikelihood il = newInteractionLikelihood();
-		il.likelihoodNullModel(numSamples, neighbours);
+		LikelihoodNullSampler sampler = new LikelihoodNullSampler(il, neighbours);
+		sampler.setOutDir(outDir);
+		sampler.setSplit(numSplits, split);
+		il.likelihoodNullModel(sampler, numSamples);
 	}
 
 	void runLikelihoodPdbInteract(double distThreshold, int neighbours, String pdbFileList) {
@@ -1080,6 +1096,15 @@ public class Epistasis implements CommandLine {
 		best.stream().sorted().forEach(System.out::println);
 	}
 
+	/**
+	 * Convert a multiple sequence alignment file to binary format
+	 */
+	void runMsa2Bin(String binFile) {
+		if (!binFile.endsWith(MultipleSequenceAlignmentSet.BINARY_FILE_EXT)) usage("Binary MSA file name must end with '" + MultipleSequenceAlignmentSet.BINARY_FILE_EXT + "'");
+		load();
+		msas.saveBinary(binFile);
+	}
+
 	void runNextProt() {
 		nextProt = true;
 		load();
@@ -1262,8 +1287,9 @@ public class Epistasis implements CommandLine {
 		aaContacts.stream() //
 				.filter(d -> msas.getMsa(d.msa1) != null && msas.getMsa(d.msa2) != null) //
 				.forEach(d -> {
-					transAa.count(msas.getMsa(d.msa1).getColumn(d.msaIdx1));
-					transAa.count(msas.getMsa(d.msa2).getColumn(d.msaIdx2));
+					MultipleSequenceAlignment msa1 = msas.getMsa(d.msa1), msa2 = msas.getMsa(d.msa2);
+					transAa.count(msa1.getAlign(), msa1.getColumnOffset(d.msaIdx1), msa1.getNumSeqs());
+					transAa.count(msa2.getAlign(), msa2.getColumnOffset(d.msaIdx2), msa2.getNumSeqs());
 				});
 
 		System.out.println(Gpr.prependEachLine("AA_SINGLE_IN_CONTACT\t", transAa));
@@ -1424,7 +1450,7 @@ public class Epistasis implements CommandLine {
 					if (msai.getId().equals(msaj.getId())) minj = i + 1;
 
 					for (int j = minj; j < maxj; j++)
-						trans.count(msai.getColumn(i), msaj.getColumn(j));
+						trans.count(msai.getAlign(), msai.getColumnOffset(i), msaj.getAlign(), msaj.getColumnOffset(j), msai.getNumSeqs());
 				}
 			}
 		}
@@ -1446,7 +1472,7 @@ public class Epistasis implements CommandLine {
 		}
 
 		// Calculate transitions
-		trans.count(msa.getColumn(idx1), msa.getColumn(idx2));
+		trans.count(msa.getAlign(), msa.getColumnOffset(idx1), msa.getAlign(), msa.getColumnOffset(idx2), msa.getNumSeqs());
 	}
 
 	/**
@@ -1477,7 +1503,7 @@ public class Epistasis implements CommandLine {
 
 		// Compare all rows
 		for (int i = 0; i < max; i++)
-			trans.count(msa.getColumn(i));
+			trans.count(msa.getAlign(), msa.getColumnOffset(i), msa.getNumSeqs());
 
 		return trans;
 	}
@@ -1494,8 +1520,10 @@ public class Epistasis implements CommandLine {
 		System.err.println("Command 'background'       : " + this.getClass().getSimpleName() + " background number_of_bases number_of_samples phylo.nh multiple_alignment_file.fa");
 		System.err.println("Command 'conservation'     : " + this.getClass().getSimpleName() + " conservation phylo.nh multiple_alignment_file.fa");
 		System.err.println("Command 'corr'             : " + this.getClass().getSimpleName() + " corr phylo.nh multiple_alignment_file.fa");
+		System.err.println("Command 'likelihoodNull'   : " + this.getClass().getSimpleName() + " likelihoodNull num_samples phylo.nh multiple_alignment_file.fa id_map.txt Q.txt aa_freqs.txt Q2.txt aa_freqs_contact.txt neighbours [out_dir [num_splits split]]");
 		System.err.println("Command 'mapPdbGenome'     : " + this.getClass().getSimpleName() + " mapPdbGenome snpeff.config genome pdbDir idMapFile");
 		System.err.println("Command 'mapPdbGenomeBest' : " + this.getClass().getSimpleName() + " mapPdbGenomeBest idMapFile aa_contact.txt");
+		System.err.println("Command 'msa2bin'          : " + this.getClass().getSimpleName() + " msa2bin phylo.nh multiple_alignment_file.fa multiple_alignment_file" + MultipleSequenceAlignmentSet.BINARY_FILE_EXT);
 		System.err.println("Command 'pdbdist'          : " + this.getClass().getSimpleName() + " pdbdist distanceThreshold aaMinSeparation path/to/pdb/dir id_map.txt");
 		System.err.println("Command 'qhat'             : " + this.getClass().getSimpleName() + " qhat phylo.nh multiple_sequence_alignment.fa transition_matrix.txt");
 		System.err.println("Command 'transitions'      : " + this.getClass().getSimpleName() + " transitions num_samples phylo.nh multiple_alignment_file.fa aa_contact.nextprot.txt ");
@@ -9,14 +9,23 @@ import ca.mcgill.pcingola.epistasis.coordinates.GenomicCoordinates;
 /**
  * Store genotype information
  *
+ * Genotypes (minor allele count: 0, 1, 2 or missing) are packed using 2 bits
+ * per sample, stored as two bitsets ('bit planes'): gt = gtLo + 2 * gtHi.
+ * Missing genotypes are stored in a separate bitset. Sample 'i' is bit
+ * 'i % 64' in word 'i / 64'.
+ *
  * @author pcingola
  */
 public class Genotype extends GenomicCoordinates {
 
 	private static final long serialVersionUID = 1L;
 
+	public static final byte GT_MISSING = -1;
+
 	protected int minorAlleleCount;
-	protected byte gt[];
+	protected int numSamples;
+	protected long gtLo[], gtHi[]; // Genotypes, packed as two bit planes: gt = gtLo + 2 * gtHi
+	protected long gtMissing[]; // Missing genotypes (bitset)
 
 	public Genotype(Genome genome, String str) {
 		super(null, 0, 0, str);
@@ -25,19 +34,47 @@ public class Genotype extends GenomicCoordinates {
 
 	public Genotype(Marker parent, int start, int end, String id, byte gt[]) {
 		super(parent, start, end, id);
-		this.gt = minorAllele(gt);
+		pack(minorAllele(gt));
 	}
 
 	public Genotype(VcfEntry ve) {
 		super(ve);
-		gt = minorAllele(ve.getGenotypesScores());
+		pack(minorAllele(ve.getGenotypesScores()));
 		annotataions = ve.getInfo("EFF");
 	}
 
+	/**
+	 * Genotypes for all samples (unpacked copy)
+	 */
 	public byte[] getGt() {
+		byte gt[] = new byte[numSamples];
+		for (int i = 0; i < numSamples; i++)
+			gt[i] = getGt(i);
 		return gt;
 	}
 
+	/**
+	 * Genotype for sample 'sampleNum' (GT_MISSING if missing)
+	 */
+	public byte getGt(int sampleNum) {
+		int word = sampleNum >>> 6;
+		long bit = 1L << sampleNum;
+		if ((gtMissing[word] & bit) != 0) return GT_MISSING;
+		return (byte) (((gtLo[word] & bit) != 0 ? 1 : 0) + ((gtHi[word] & bit) != 0 ? 2 : 0));
+	}
+
+	public long[] getGtHi() {
+		return gtHi;
+	}
+
+	public long[] getGtLo() {
+		return gtLo;
+	}
+
+	public long[] getGtMissing() {
+		return gtMissing;
+	}
+
 	public int getMinorAlleleCount() {
 		return minorAlleleCount;
 	}
@@ -69,7 +106,39 @@ public class Genotype extends GenomicCoordinates {
 	}
 
 	public int numberSamples() {
-		return gt.length;
+		return numSamples;
+	}
+
+	/**
+	 * Pack genotypes into bitsets
+	 */
+	void pack(byte gt[]) {
+		numSamples = gt.length;
+		int numWords = (numSamples + 63) >>> 6;
+		gtLo = new long[numWords];
+		gtHi = new long[numWords];
+		gtMissing = new long[numWords];
+
+		for (int i = 0; i < numSamples; i++) {
+			int word = i >>> 6;
+			long bit = 1L << i;
+			switch (gt[i]) {
+			case 0:
+				break;
+
+			case 1:
+				gtLo[word] |= bit;
+				break;
+
+			case 2:
+				gtHi[word] |= bit;
+				break;
+
+			default:
+				if (gt[i] >= 0) throw new RuntimeException("Genotype value out of range: " + gt[i] + ", sample number " + i + ", ID: " + getId());
+				gtMissing[word] |= bit;
+			}
+		}
 	}
 
 	/**
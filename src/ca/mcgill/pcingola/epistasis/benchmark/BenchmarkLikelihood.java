@@ -0,0 +1,226 @@
+package ca.mcgill.pcingola.epistasis.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import ca.mcgill.mcb.pcingola.util.Gpr;
+import ca.mcgill.mcb.pcingola.util.GprSeq;
+import ca.mcgill.mcb.pcingola.util.Timer;
+import ca.mcgill.pcingola.epistasis.Epistasis;
+import ca.mcgill.pcingola.epistasis.likelihood.CoEvolutionLikelihood;
+import ca.mcgill.pcingola.epistasis.msa.MultipleSequenceAlignment;
+import ca.mcgill.pcingola.epistasis.msa.MultipleSequenceAlignmentSet;
+import ca.mcgill.pcingola.epistasis.phylotree.LikelihoodTreeAa;
+import ca.mcgill.pcingola.epistasis.phylotree.TransitionMatrix;
+import ca.mcgill.pcingola.epistasis.phylotree.TransitionMatrixMarkov;
+
+/**
+ * Benchmarks for the phylogenetic likelihood engine
+ *
+ * Uses the data files shipped in 'test' directory (tree, MSAs, Q and Q2 matrices),
+ * so it can be run offline. Results are shown as a tab separated table
+ * (see MicroBenchmark.HEADER) that can be compared between runs.
+ *
+ * Usage: BenchmarkLikelihood [warmup iterations minIterationTimeMs [filter]]
+ *
+ * @author pcingola
+ */
+public class BenchmarkLikelihood {
+
+	public static int NUM_COLUMN_PAIRS = 1000; // Number of random column pairs used as input
+	public static int NUM_COLUMN_PAIRS_MEMOIZED = 10; // Number of column pairs used in memoized benchmark (all but the first calls are cache hits)
+	public static long RANDOM_SEED = 20140716;
+
+	String treeFile = "test/hg19.100way.nh";
+	String multAlignFile = "test/msas.best.head.fa.gz";
+	String idMapFile = "test/idMap_ensemblId_refseq_pdbId.best.txt";
+	String qMatrixFile = "test/Qhat.txt";
+	String aaFreqsFile = "test/aa.frequencies.txt";
+	String q2MatrixFile = "test/Qhat2.txt";
+	String aaFreqsContactFile = "test/aa.contact.frequencies.txt";
+
+	MicroBenchmark bench;
+	CoEvolutionLikelihood coEvolutionLikelihood;
+	MultipleSequenceAlignment msas1[], msas2[]; // Random column pairs: MSAs
+	int idxs1[], idxs2[]; // Random column pairs: Column indexes
+	int codesNull[][]; // Sequence codes (null model, one column)
+	int codesAlt[][]; // Sequence codes (alt model, pairs of columns)
+	double times[]; // All branch lengths in the tree
+
+	public static void main(String[] args) {
+		MicroBenchmark bench;
+		if (args.length >= 3) bench = new MicroBenchmark(Gpr.parseIntSafe(args[0]), Gpr.parseIntSafe(args[1]), Gpr.parseIntSafe(args[2]), args.length > 3 ? args[3] : null);
+		else bench = new MicroBenchmark();
+
+		BenchmarkLikelihood bl = new BenchmarkLikelihood(bench);
+		bl.load();
+		bl.run();
+	}
+
+	public BenchmarkLikelihood(MicroBenchmark bench) {
+		this.bench = bench;
+	}
+
+	/**
+	 * Benchmark matrix exponentials for all branch lengths in the tree
+	 */
+	void benchmarkExp(String name, TransitionMatrix tmatrix) {
+		bench.run(name, op -> tmatrix.exp(times[op % times.length]).getEntry(0, 0));
+	}
+
+	/**
+	 * Benchmark likelihood calculations
+	 */
+	void benchmarkLikelihood() {
+		LikelihoodTreeAa treeNull = coEvolutionLikelihood.getTreeNull();
+		LikelihoodTreeAa treeAlt = coEvolutionLikelihood.getTreeAlt();
+		TransitionMatrix Q = coEvolutionLikelihood.getQ();
+		TransitionMatrix Q2 = coEvolutionLikelihood.getQ2();
+		double aaFreqs[] = coEvolutionLikelihood.getAaFreqs();
+		double aaFreqsContact[] = coEvolutionLikelihood.getAaFreqsContact();
+
+		// One site at a time
+		bench.run("likelihood.Q.20", op -> {
+			treeNull.setLeafSequenceCode(codesNull[op % NUM_COLUMN_PAIRS]);
+			return treeNull.logLikelihood(Q, aaFreqs);
+		});
+
+		bench.run("likelihood.Q2.400", op -> {
+			treeAlt.setLeafSequenceCode(codesAlt[op % NUM_COLUMN_PAIRS]);
+			return treeAlt.logLikelihood(Q2, aaFreqsContact);
+		});
+
+		// Blocks of sites
+		int blockSize = LikelihoodTreeAa.MAX_BLOCK_SIZE;
+		int numBlocks = NUM_COLUMN_PAIRS / blockSize;
+		int blocksNull[][][] = blocks(codesNull, blockSize);
+		int blocksAlt[][][] = blocks(codesAlt, blockSize);
+
+		bench.run("likelihood.Q.20.block", "site", blockSize, op -> treeNull.logLikelihood(Q, aaFreqs, blocksNull[op % numBlocks])[0]);
+		bench.run("likelihood.Q2.400.block", "site", blockSize, op -> treeAlt.logLikelihood(Q2, aaFreqsContact, blocksAlt[op % numBlocks])[0]);
+	}
+
+	/**
+	 * Benchmark log-likelihood ratio calculation (including memoization)
+	 */
+	void benchmarkLogLikelihoodRatio() {
+		// Memoized values and cached uniform sub-trees are removed before each calculation
+		bench.run("logLikelihoodRatioStr", op -> {
+			int i = op % NUM_COLUMN_PAIRS;
+			coEvolutionLikelihood.clearCache();
+			return coEvolutionLikelihood.logLikelihoodRatioStr(msas1[i].getIdNum(), idxs1[i], msas2[i].getIdNum(), idxs2[i], true, 0).length();
+		});
+
+		// Memoized values are re-used
+		bench.run("logLikelihoodRatioStr.memoized", op -> {
+			int i = op % NUM_COLUMN_PAIRS_MEMOIZED;
+			return coEvolutionLikelihood.logLikelihoodRatioStr(msas1[i].getIdNum(), idxs1[i], msas2[i].getIdNum(), idxs2[i], true, 0).length();
+		});
+	}
+
+	/**
+	 * Benchmark pre-calculation of matrix exponentials (eigen-decomposition and all branch lengths),
+	 * same as CoEvolutionLikelihood.precalcExps()
+	 * Note: New matrices are created for each operation, so nothing is cached and
+	 * the matrices used by other benchmarks are not modified
+	 */
+	void benchmarkPrecalcExps() {
+		double q[][] = coEvolutionLikelihood.getQ().getData();
+		double q2[][] = coEvolutionLikelihood.getQ2().getData();
+
+		bench.run("precalcExps", op -> {
+			TransitionMatrixMarkov Q = new TransitionMatrixMarkov(q);
+			TransitionMatrixMarkov Q2 = new TransitionMatrixMarkov(q2);
+			Q.setUseEigen(true);
+			Q2.setUseEigen(true);
+			Arrays.stream(times).parallel().forEach(t -> Q.matrixFlat(t));
+			Arrays.stream(times).parallel().forEach(t -> Q2.matrixFlat(t));
+			return Q2.matrixFlat(times[0])[0];
+		});
+	}
+
+	/**
+	 * Split sequence codes into blocks of 'blockSize' sites
+	 */
+	int[][][] blocks(int codes[][], int blockSize) {
+		int blocks[][][] = new int[codes.length / blockSize][blockSize][];
+		for (int b = 0; b < blocks.length; b++)
+			for (int k = 0; k < blockSize; k++)
+				blocks[b][k] = codes[b * blockSize + k];
+		return blocks;
+	}
+
+	/**
+	 * Load data and create random column pairs
+	 */
+	public void load() {
+		Epistasis ep = new Epistasis();
+		ep.setTreeFile(treeFile);
+		ep.setMultAlignFile(multAlignFile);
+		ep.setIdMapFile(idMapFile);
+		ep.setqMatrixFile(qMatrixFile);
+		ep.setAaFreqsFile(aaFreqsFile);
+		ep.setQ2MatrixFile(q2MatrixFile);
+		ep.setAaFreqsContactFile(aaFreqsContactFile);
+		ep.load();
+
+		coEvolutionLikelihood = ep.newInteractionLikelihood();
+		coEvolutionLikelihood.precalcExps();
+		coEvolutionLikelihood.getMsas().calcPatterns(); // Needed for memoization by column pattern pairs
+
+		// Branch lengths
+		Set<Double> timesSet = new HashSet<>();
+		coEvolutionLikelihood.getTreeNull().times(timesSet);
+		List<Double> timesList = new ArrayList<>(timesSet);
+		Collections.sort(timesList);
+		times = timesList.stream().mapToDouble(t -> t).toArray();
+
+		// Random column pairs
+		Timer.showStdErr("Creating " + NUM_COLUMN_PAIRS + " random column pairs");
+		MultipleSequenceAlignmentSet msas = coEvolutionLikelihood.getMsas();
+		Random random = new Random(RANDOM_SEED);
+		msas1 = new MultipleSequenceAlignment[NUM_COLUMN_PAIRS];
+		msas2 = new MultipleSequenceAlignment[NUM_COLUMN_PAIRS];
+		idxs1 = new int[NUM_COLUMN_PAIRS];
+		idxs2 = new int[NUM_COLUMN_PAIRS];
+		codesNull = new int[NUM_COLUMN_PAIRS][];
+		codesAlt = new int[NUM_COLUMN_PAIRS][];
+
+		for (int i = 0; i < NUM_COLUMN_PAIRS; i++) {
+			msas1[i] = msas.rand(random);
+			msas2[i] = msas.rand(random);
+			idxs1[i] = random.nextInt(msas1[i].getAaSeqLen());
+			idxs2[i] = random.nextInt(msas2[i].getAaSeqLen());
+
+			byte seq1[] = msas1[i].getColumn(idxs1[i]);
+			byte seq2[] = msas2[i].getColumn(idxs2[i]);
+			codesNull[i] = new int[seq1.length];
+			codesAlt[i] = new int[seq1.length];
+			for (int j = 0; j < seq1.length; j++) {
+				codesNull[i][j] = (seq1[j] < 0 || seq2[j] < 0 ? -1 : seq1[j]);
+				codesAlt[i][j] = GprSeq.aaPairCode(seq1[j], seq2[j]);
+			}
+		}
+	}
+
+	/**
+	 * Run all benchmarks
+	 */
+	public void run() {
+		System.out.println(MicroBenchmark.HEADER);
+
+		benchmarkExp("matrix.exp.Q.20", coEvolutionLikelihood.getQ());
+		benchmarkExp("matrix.exp.Q2.400", coEvolutionLikelihood.getQ2());
+		benchmarkLikelihood();
+		benchmarkLogLikelihoodRatio();
+		benchmarkPrecalcExps();
+
+		Timer.showStdErr("Done (sink: " + bench.getSink() + ")");
+	}
+
+}
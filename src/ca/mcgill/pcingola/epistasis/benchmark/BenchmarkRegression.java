@@ -0,0 +1,158 @@
+package ca.mcgill.pcingola.epistasis.benchmark;
+
+import java.util.Random;
+
+import ca.mcgill.mcb.pcingola.util.Gpr;
+import ca.mcgill.mcb.pcingola.util.Timer;
+import ca.mcgill.pcingola.regression.DesignMatrix;
+import ca.mcgill.pcingola.regression.LogisticRegression;
+import ca.mcgill.pcingola.regression.LogisticRegressionIrwls;
+import ca.mcgill.pcingola.regression.WeightedLeastSquares;
+import ca.mcgill.pcingola.regression.WeightedLinearRegression;
+
+/**
+ * Benchmarks for logistic regression (IRWLS) and weighted least squares solvers
+ *
+ * Uses the logistic regression test data in 'test' directory (same as
+ * TestCaseLogisticRegression) and a larger random data set (similar in size
+ * to a GWAS with covariates). Results are shown as a tab separated table
+ * (see MicroBenchmark.HEADER) that can be compared between runs.
+ *
+ * Usage: BenchmarkRegression [warmup iterations minIterationTimeMs [filter]]
+ *
+ * @author pcingola
+ */
+public class BenchmarkRegression {
+
+	public static int NUM_SAMPLES_RAND = 13000; // Number of samples in random data set
+	public static int NUM_INPUTS_RAND = 14; // Number of inputs (excluding intercept) in random data set
+	public static long RANDOM_SEED = 20140716;
+
+	String dataFiles[] = { "test/logReg_test_IRWLS_01.txt", "test/logReg_test_IRWLS_02.txt" };
+
+	MicroBenchmark bench;
+
+	public static void main(String[] args) {
+		MicroBenchmark bench;
+		if (args.length >= 3) bench = new MicroBenchmark(Gpr.parseIntSafe(args[0]), Gpr.parseIntSafe(args[1]), Gpr.parseIntSafe(args[2]), args.length > 3 ? args[3] : null);
+		else bench = new MicroBenchmark();
+
+		BenchmarkRegression br = new BenchmarkRegression(bench);
+		br.run();
+	}
+
+	public BenchmarkRegression(MicroBenchmark bench) {
+		this.bench = bench;
+	}
+
+	/**
+	 * Benchmark fitting a logistic regression model (IRWLS)
+	 */
+	void benchmarkIrwls(String name, double in[][], double y[]) {
+		bench.run("irwls.learn." + name, op -> {
+			LogisticRegression lr = new LogisticRegressionIrwls(in[0].length);
+			lr.setSamplesAddIntercept(in, y);
+			lr.learn();
+			return lr.logLikelihood();
+		});
+	}
+
+	/**
+	 * Benchmark one weighted least squares step (IRWLS weights and working
+	 * responses from a fitted model) using both solvers
+	 */
+	void benchmarkWls(String name, double in[][], double y[]) {
+		// Fit model and calculate IRWLS weights and working responses
+		LogisticRegression lr = new LogisticRegressionIrwls(in[0].length);
+		lr.setSamplesAddIntercept(in, y);
+		lr.learn();
+
+		double eta[] = lr.getSamplesX().multiply(lr.getTheta(), new double[y.length]);
+		double w[] = new double[y.length], z[] = new double[y.length];
+		for (int i = 0; i < y.length; i++) {
+			double mu = 1.0 / (1.0 + Math.exp(-eta[i]));
+			w[i] = mu * (1.0 - mu);
+			z[i] = eta[i] + (y[i] - mu) / w[i];
+		}
+
+		DesignMatrix x = lr.getSamplesX();
+		bench.run("wls.WeightedLinearRegression." + name, op -> {
+			WeightedLinearRegression wlr = new WeightedLinearRegression();
+			wlr.regress(z, x, w);
+			return wlr.getCoefficients()[0];
+		});
+
+		WeightedLeastSquares wls = new WeightedLeastSquares(x.getNumCols());
+		bench.run("wls.WeightedLeastSquares." + name, op -> {
+			wls.solve(z, x, w);
+			return wls.getCoefficients()[0];
+		});
+	}
+
+	/**
+	 * Random data set: Inputs are uniform in [-1, 1], output from a random logistic model
+	 */
+	double[][] randData(double y[]) {
+		Random random = new Random(RANDOM_SEED);
+		double beta[] = new double[NUM_INPUTS_RAND + 1];
+		for (int j = 0; j < beta.length; j++)
+			beta[j] = random.nextGaussian() / 2;
+
+		double in[][] = new double[y.length][NUM_INPUTS_RAND];
+		for (int i = 0; i < y.length; i++) {
+			double h = beta[NUM_INPUTS_RAND];
+			for (int j = 0; j < NUM_INPUTS_RAND; j++) {
+				in[i][j] = 2 * random.nextDouble() - 1;
+				h += beta[j] * in[i][j];
+			}
+			y[i] = random.nextDouble() < 1.0 / (1.0 + Math.exp(-h)) ? 1 : 0;
+		}
+
+		return in;
+	}
+
+	/**
+	 * Read data file (same format as TestCaseLogisticRegression): Output, intercept and inputs (tab separated, one title line)
+	 */
+	double[][] readData(String fileName, double y[][]) {
+		String lines[] = Gpr.readFile(fileName).split("\n");
+		int n = lines.length - 1;
+		int size = lines[0].split("\t").length - 2;
+
+		double in[][] = new double[n][size];
+		y[0] = new double[n];
+		for (int i = 0; i < n; i++) {
+			String f[] = lines[i + 1].split("\t");
+			y[0][i] = Gpr.parseDoubleSafe(f[0]);
+			for (int j = 0; j < size; j++)
+				in[i][j] = Gpr.parseDoubleSafe(f[j + 2]);
+		}
+
+		return in;
+	}
+
+	/**
+	 * Run all benchmarks
+	 */
+	public void run() {
+		System.out.println(MicroBenchmark.HEADER);
+
+		// Test data sets
+		for (int i = 0; i < dataFiles.length; i++) {
+			double y[][] = new double[1][];
+			double in[][] = readData(dataFiles[i], y);
+			String name = "test_0" + (i + 1);
+			benchmarkWls(name, in, y[0]);
+			benchmarkIrwls(name, in, y[0]);
+		}
+
+		// Random data set
+		double y[] = new double[NUM_SAMPLES_RAND];
+		double in[][] = randData(y);
+		benchmarkWls("rand", in, y);
+		benchmarkIrwls("rand", in, y);
+
+		Timer.showStdErr("Done (sink: " + bench.getSink() + ")");
+	}
+
+}
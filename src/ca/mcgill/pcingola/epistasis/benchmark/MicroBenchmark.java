@@ -0,0 +1,121 @@
+package ca.mcgill.pcingola.epistasis.benchmark;
+
+import ca.mcgill.mcb.pcingola.util.Timer;
+
+/**
+ * A minimal micro-benchmark harness (no external dependencies, runs offline)
+ *
+ * Each benchmark runs 'warmup' iterations (results discarded, so that the
+ * JIT compiler can optimize the code) and then 'iterations' measured
+ * iterations. Each iteration calls the operation repeatedly until at least
+ * 'minIterationTime' milliseconds have elapsed.
+ *
+ * Results from each operation are accumulated into 'sink', so that the JIT
+ * compiler cannot remove the calculations as dead code.
+ *
+ * @author pcingola
+ */
+public class MicroBenchmark {
+
+	/**
+	 * An operation to benchmark. Parameter 'opNum' can be used to cycle over input data
+	 */
+	@FunctionalInterface
+	public interface Operation {
+		double run(int opNum);
+	}
+
+	public static final String HEADER = "benchmark\tunit\tmean\tstddev\tmin\tmax\tops";
+
+	int warmup = 3; // Number of warmup iterations
+	int iterations = 5; // Number of measured iterations
+	long minIterationTime = 1000; // Minimum time per iteration (milliseconds)
+	String filter; // Only run benchmarks containing this string
+	double sink; // Accumulate results (avoid dead code elimination)
+
+	public MicroBenchmark() {
+	}
+
+	public MicroBenchmark(int warmup, int iterations, long minIterationTime, String filter) {
+		this.warmup = warmup;
+		this.iterations = iterations;
+		this.minIterationTime = minIterationTime;
+		this.filter = filter;
+	}
+
+	/**
+	 * Run one iteration, return time per unit (nanoseconds)
+	 * Note: Each call to the operation counts as 'unitsPerOp' units
+	 */
+	double iteration(Operation op, int unitsPerOp, int opNumStart, long ops[]) {
+		long minTime = minIterationTime * 1000L * 1000L;
+		long start = System.nanoTime(), elapsed = 0;
+		int opNum = opNumStart;
+
+		do {
+			sink += op.run(opNum++);
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < minTime);
+
+		long count = opNum - opNumStart;
+		ops[0] += count;
+		return ((double) elapsed) / (count * unitsPerOp);
+	}
+
+	/**
+	 * Run a benchmark and show results (tab separated, see HEADER)
+	 */
+	public void run(String name, Operation op) {
+		run(name, "op", 1, op);
+	}
+
+	/**
+	 * Run a benchmark and show results (tab separated, see HEADER)
+	 * Time is reported per 'unit' (each call to the operation counts as 'unitsPerOp' units)
+	 */
+	public void run(String name, String unit, int unitsPerOp, Operation op) {
+		if (filter != null && !name.contains(filter)) return;
+
+		long ops[] = new long[1];
+		int opNum = 0;
+
+		// Warmup
+		Timer.showStdErr("Benchmark '" + name + "': Warmup");
+		for (int i = 0; i < warmup; i++)
+			iteration(op, unitsPerOp, opNum, ops);
+
+		// Measure
+		opNum = (int) ops[0];
+		ops[0] = 0;
+		double times[] = new double[iterations];
+		for (int i = 0; i < iterations; i++) {
+			times[i] = iteration(op, unitsPerOp, opNum + (int) ops[0], ops);
+			Timer.showStdErr("Benchmark '" + name + "': Iteration " + (i + 1) + " / " + iterations + "\t" + String.format("%.1f", times[i]) + " ns/" + unit);
+		}
+
+		// Statistics
+		double sum = 0, sum2 = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+		for (double t : times) {
+			sum += t;
+			sum2 += t * t;
+			min = Math.min(min, t);
+			max = Math.max(max, t);
+		}
+		double mean = sum / iterations;
+		double stddev = iterations > 1 ? Math.sqrt(Math.max(0, (sum2 - iterations * mean * mean) / (iterations - 1))) : 0.0;
+
+		System.out.println(name //
+				+ "\tns/" + unit //
+				+ "\t" + String.format("%.1f", mean) //
+				+ "\t" + String.format("%.1f", stddev) //
+				+ "\t" + String.format("%.1f", min) //
+				+ "\t" + String.format("%.1f", max) //
+				+ "\t" + ops[0] //
+		);
+	}
+
+	public double getSink() {
+		return sink;
+	}
+
+}
@@ -0,0 +1,204 @@
+package ca.mcgill.pcingola.epistasis.coEvolutionMetrics;
+
+import java.nio.ByteBuffer;
+
+import ca.mcgill.mcb.pcingola.util.GprSeq;
+
+/**
+ * Entropy, mutual information and related functions for one or two AA columns.
+ *
+ * Counters are re-used between calculations (no allocation per call) and only the
+ * entries used by a column are reset. Columns can be given as byte buffers with
+ * offsets (e.g. MultipleSequenceAlignment.getAlign()), so no copies are needed.
+ *
+ * All values are derived from sums of c * log2(c) over integer counts, which
+ * are looked up in a pre-calculated table (no Math.log calls in inner loops):
+ *
+ * 		H(X)   = ( n log2(n) - sum_i c_i log2(c_i) ) / n
+ * 		H(X,Y) = ( n log2(n) - sum_ij c_ij log2(c_ij) ) / n
+ * 		MI     = H(X) + H(Y) - H(X,Y)
+ *
+ * Gaps in either column are ignored. Not thread safe, see EntropySeq.counter()
+ *
+ * @author pcingola
+ */
+public class EntropyCounter {
+
+	public static final int N = GprSeq.AMINO_ACIDS.length;
+	public static final double LOG_2 = Math.log(2.0);
+
+	int count; // Number of non-gap positions
+	int countI[] = new int[N], countJ[] = new int[N], countIJ[] = new int[N * N];
+	double sumI, sumJ, sumIJ; // Sum of c * log2(c) for each counter
+	double nlog2n[] = new double[0]; // Pre-calculated c * log2(c)
+	byte bufI[] = new byte[0], bufJ[] = new byte[0]; // Buffers used to convert strings to AA codes
+
+	/**
+	 * Convert sequence to AA codes, re-using 'buffer' if it is large enough
+	 */
+	byte[] codes(String seq, byte buffer[]) {
+		if (buffer.length < seq.length()) buffer = new byte[Math.max(seq.length(), 2 * buffer.length)];
+		for (int i = 0; i < seq.length(); i++)
+			buffer[i] = GprSeq.aa2Code(seq.charAt(i));
+		return buffer;
+	}
+
+	/**
+	 * Count AA pairs in columns 'codesi[offseti ... offseti + len - 1]' and 'codesj[offsetj ... offsetj + len - 1]'
+	 */
+	public EntropyCounter count(byte codesi[], int offseti, byte codesj[], int offsetj, int len) {
+		return count(ByteBuffer.wrap(codesi), offseti, ByteBuffer.wrap(codesj), offsetj, len);
+	}
+
+	/**
+	 * Count AA pairs in columns 'codesi[offseti ... offseti + len - 1]' and 'codesj[offsetj ... offsetj + len - 1]'
+	 */
+	public EntropyCounter count(ByteBuffer codesi, int offseti, ByteBuffer codesj, int offsetj, int len) {
+		count = 0;
+		for (int k = 0; k < len; k++) {
+			byte basei = codesi.get(offseti + k), basej = codesj.get(offsetj + k);
+			if (basei < 0 || basej < 0) continue; // Ignore gaps
+
+			countI[basei]++;
+			countJ[basej]++;
+			countIJ[basei * N + basej]++;
+			count++;
+		}
+
+		// Sum c * log2(c) and reset counters (each entry is added only once: the first time we find it)
+		nlog2n(count);
+		sumI = sumJ = sumIJ = 0;
+		for (int k = 0; k < len; k++) {
+			byte basei = codesi.get(offseti + k), basej = codesj.get(offsetj + k);
+			if (basei < 0 || basej < 0) continue;
+
+			sumI += nlog2n[countI[basei]];
+			countI[basei] = 0;
+			sumJ += nlog2n[countJ[basej]];
+			countJ[basej] = 0;
+			int ij = basei * N + basej;
+			sumIJ += nlog2n[countIJ[ij]];
+			countIJ[ij] = 0;
+		}
+
+		return this;
+	}
+
+	/**
+	 * Count AAs in column 'codesi[offseti ... offseti + len - 1]' (only H(X) is calculated)
+	 */
+	public EntropyCounter count(byte codesi[], int offseti, int len) {
+		count = 0;
+		for (int k = offseti; k < offseti + len; k++) {
+			byte basei = codesi[k];
+			if (basei < 0) continue;
+			countI[basei]++;
+			count++;
+		}
+
+		nlog2n(count);
+		sumI = sumJ = sumIJ = 0;
+		for (int k = offseti; k < offseti + len; k++) {
+			byte basei = codesi[k];
+			if (basei < 0) continue;
+			sumI += nlog2n[countI[basei]];
+			countI[basei] = 0;
+		}
+
+		return this;
+	}
+
+	/**
+	 * Count AAs in an AA sequence (string)
+	 */
+	public EntropyCounter count(String seqi) {
+		bufI = codes(seqi, bufI);
+		return count(bufI, 0, seqi.length());
+	}
+
+	/**
+	 * Count AA pairs in two AA sequences (strings)
+	 */
+	public EntropyCounter count(String seqi, String seqj) {
+		if (seqi.length() != seqj.length()) throw new RuntimeException("Lengths do not match!");
+		bufI = codes(seqi, bufI);
+		bufJ = codes(seqj, bufJ);
+		return count(bufI, 0, bufJ, 0, seqi.length());
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Conditional entropy H(X|Y) = H(X,Y) - H(Y)
+	 */
+	public double getHcondXY() {
+		return getHxy() - getHy();
+	}
+
+	/**
+	 * Conditional entropy H(Y|X) = H(X,Y) - H(X)
+	 */
+	public double getHcondYX() {
+		return getHxy() - getHx();
+	}
+
+	/**
+	 * Entropy H(X)
+	 */
+	public double getHx() {
+		return h(sumI);
+	}
+
+	/**
+	 * Joint entropy H(X,Y)
+	 */
+	public double getHxy() {
+		return h(sumIJ);
+	}
+
+	/**
+	 * Entropy H(Y)
+	 */
+	public double getHy() {
+		return h(sumJ);
+	}
+
+	/**
+	 * Mutual information I(X;Y) = H(X) + H(Y) - H(X,Y)
+	 */
+	public double getMi() {
+		if (count <= 0) return 0.0;
+		return (nlog2n[count] + sumIJ - sumI - sumJ) / count;
+	}
+
+	/**
+	 * Variation of information = H(X,Y) - I(X;Y)
+	 */
+	public double getVarInf() {
+		double varInf = getHxy() - getMi();
+		return varInf >= 0 ? varInf : 0.0;
+	}
+
+	/**
+	 * Entropy from a sum of c * log2(c)
+	 */
+	double h(double sum) {
+		if (count <= 0) return 0.0;
+		return (nlog2n[count] - sum) / count;
+	}
+
+	/**
+	 * Make sure the c * log2(c) table has all values up to 'n'
+	 */
+	void nlog2n(int n) {
+		if (n < nlog2n.length) return;
+
+		double t[] = new double[Math.max(n + 1, 2 * nlog2n.length)];
+		for (int c = 1; c < t.length; c++)
+			t[c] = c * Math.log(c) / LOG_2;
+		nlog2n = t;
+	}
+
+}
@@ -1,16 +1,20 @@
 package ca.mcgill.pcingola.epistasis.coEvolutionMetrics;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
-import ca.mcgill.mcb.pcingola.stats.BooleanMutable;
 import ca.mcgill.mcb.pcingola.util.GprSeq;
-import ca.mcgill.pcingola.epistasis.msa.MsaSimilarity;
-import gnu.trove.map.hash.TObjectIntHashMap;
-import gnu.trove.procedure.TObjectIntProcedure;
+import ca.mcgill.pcingola.epistasis.msa.MultipleSequenceAlignment;
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TLongIntHashMap;
 
 /**
  * Entropy and other functions for sequences
  *
+ * Instance methods calculate entropies of windows (N columns): each row in
+ * the window is packed into a 'long' key (BITS_PER_AA bits per AA). Keys are
+ * renumbered (0, 1, 2, ...) to count them and to create keys for pairs of windows.
+ *
  * @author pcingola
  */
 public class EntropySeq {
@@ -19,92 +23,34 @@ public class EntropySeq {
 		HXY, HCONDXY, MI, VARINF
 	}
 
-	public static final String SEPARATOR = "-";
 	public static boolean debug = false;
 	public static final double LOG_2 = Math.log(2.0);;
+	public static final int BITS_PER_AA = MultipleSequenceAlignment.ROTATE_BITS; // Bits per AA in a key
+	public static final int MAX_PACKED_AAS = 63 / BITS_PER_AA; // Maximum number of AAs packed in a key
+	public static final long SYMBOL_NONE = 0; // Column out of range (beginning or end of the MSA)
+	public static final long SYMBOL_GAP = 1; // Gap (or unknown AA)
+	public static final long SYMBOL_AA_FIRST = 2; // AA code 'c' is symbol 'c + SYMBOL_AA_FIRST'
 
-	final short ONE = 1;
+	static final ThreadLocal<EntropyCounter> counterByThread = ThreadLocal.withInitial(EntropyCounter::new); // One counter per thread
 
-	int count = 0;
+	int count = 0, numSeqs = 0;
 	double mi, varInf, hxy, hx, hy, hcondXY, hcondYX;
-	TObjectIntHashMap<String> countI = new TObjectIntHashMap<>();
-	TObjectIntHashMap<String> countJ = new TObjectIntHashMap<>();
-	TObjectIntHashMap<String> countIJ = new TObjectIntHashMap<>();
+	long keysI[] = new long[0], keysJ[] = new long[0], keysIJ[] = new long[0]; // One key per row: AAs in the window, packed (BITS_PER_AA bits each)
+	int countI[], countJ[], countIJ[]; // Counts for each key (after renumbering)
+	TLongIntHashMap ids = new TLongIntHashMap(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1L, -1); // Used for renumbering keys
 
 	/**
 	 * Conditional entropy
 	 */
 	public static double condEntropy(byte codei[], byte codej[]) {
-		//---
-		// Initialize counters
-		//---
-		int count = 0;
-		int numAligns = codei.length;
-		int aaLen = GprSeq.AA_TO_CODE.length;
-		short countIJ[][] = new short[aaLen][aaLen];
-		short countI[] = new short[aaLen];
-		short countJ[] = new short[aaLen];
-
-		for (int i = 0; i < aaLen; i++)
-			Arrays.fill(countIJ[i], (short) 0);
-		Arrays.fill(countI, (short) 0);
-		Arrays.fill(countJ, (short) 0);
-
-		//---
-		// Count matching bases
-		//---
-		for (int i = 0; i < numAligns; i++) {
-			byte basei = codei[i];
-			byte basej = codej[i];
-			if ((basei == MsaSimilarity.ALIGN_GAP) || (basej == MsaSimilarity.ALIGN_GAP)) continue;
-
-			// Count
-			countI[basei]++;
-			countJ[basej]++;
-			countIJ[basei][basej]++;
-			if (debug) System.out.println(GprSeq.code2aa(basei) + " / " + GprSeq.code2aa(basej) + "\t" + countIJ[basei][basej]);
-			count++;
-		}
-
-		double hcondXY = 0.0;
-		for (int i = 0; i < aaLen; i++) {
-			if (countI[i] <= 0) continue;
-
-			for (int j = 0; j < aaLen; j++) {
-				if (countJ[j] <= 0) continue;
-
-				if (countIJ[i][j] > 0) {
-					double pij = (countIJ[i][j]) / ((double) count);
-					double pi = (countI[i]) / ((double) count);
-					double pj = (countJ[j]) / ((double) count);
-
-					hcondXY += pij * Math.log(pj / pij) / LOG_2;
-
-					if (debug) System.out.println(GprSeq.code2aa(codei[i]) + " / " + GprSeq.code2aa(codej[j]) + "\tpi: " + pi + "\tpj: " + pj + "\tpij: " + pij + "\th(x|y): " + hcondXY);
-				}
-			}
-		}
-
-		// Results
-		return hcondXY;
+		return counter().count(codei, 0, codej, 0, codei.length).getHcondXY();
 	}
 
 	/**
 	 * Conditional entropy between AA sequences
 	 */
 	public static double condEntropy(String sequencei, String sequencej) {
-		if (sequencei.length() != sequencej.length()) throw new RuntimeException("Lengths do not match!");
-
-		// Convert string to byte codes
-		int numAligns = sequencei.length();
-		byte codei[] = new byte[numAligns];
-		byte codej[] = new byte[numAligns];
-		for (int i = 0; i < numAligns; i++) {
-			codei[i] = GprSeq.aa2Code(sequencei.charAt(i));
-			codej[i] = GprSeq.aa2Code(sequencej.charAt(i));
-		}
-
-		return condEntropy(codei, codej);
+		return counter().count(sequencei, sequencej).getHcondXY();
 	}
 
 	/**
@@ -139,202 +85,53 @@ public class EntropySeq {
 		return numberOfMatches(codei, codej);
 	}
 
+	/**
+	 * Counters for the current thread (re-used by all static methods, so they do not allocate memory)
+	 */
+	public static EntropyCounter counter() {
+		return counterByThread.get();
+	}
+
 	/**
 	 * Entropy of a single sequence: H(X)
 	 */
 	public static double entropy(byte codei[]) {
-		//---
-		// Initialize counters
-		//---
-		int count = 0;
-		int numAligns = codei.length;
-		int aaLen = GprSeq.AA_TO_CODE.length;
-		short countI[] = new short[aaLen];
-		Arrays.fill(countI, (short) 0);
-
-		//---
-		// Count matching bases
-		//---
-		for (int i = 0; i < numAligns; i++) {
-			byte basei = codei[i];
-			if (basei == MsaSimilarity.ALIGN_GAP) continue;
-
-			// Count
-			countI[basei]++;
-			count++;
-		}
-
-		double h = 0;
-		for (int i = 0; i < aaLen; i++) {
-			if (countI[i] <= 0) continue;
-			if (countI[i] > 0) {
-				double pi = (countI[i]) / ((double) count);
-				h -= pi * Math.log(pi) / LOG_2;
-			}
-		}
-
-		return h;
+		return counter().count(codei, 0, codei.length).getHx();
 	}
 
 	/**
 	 * Entropy of two sequences: H(X,Y)
 	 */
 	public static double entropy(byte codei[], byte codej[]) {
-		//---
-		// Initialize counters
-		//---
-		int count = 0;
-		int numAligns = codei.length;
-		int aaLen = GprSeq.AA_TO_CODE.length;
-		short countIJ[][] = new short[aaLen][aaLen];
-		short countI[] = new short[aaLen];
-		short countJ[] = new short[aaLen];
-
-		for (int i = 0; i < aaLen; i++)
-			Arrays.fill(countIJ[i], (short) 0);
-		Arrays.fill(countI, (short) 0);
-		Arrays.fill(countJ, (short) 0);
-
-		//---
-		// Count matching bases
-		//---
-		for (int i = 0; i < numAligns; i++) {
-			byte basei = codei[i];
-			byte basej = codej[i];
-			if ((basei == MsaSimilarity.ALIGN_GAP) || (basej == MsaSimilarity.ALIGN_GAP)) continue;
-
-			// Count
-			countI[basei]++;
-			countJ[basej]++;
-			countIJ[basei][basej]++;
-			if (debug) System.out.println(GprSeq.code2aa(basei) + " / " + GprSeq.code2aa(basej) + "\t" + countIJ[basei][basej]);
-			count++;
-		}
-
-		double hxy = 0;
-		for (int i = 0; i < aaLen; i++) {
-			if (countI[i] <= 0) continue;
-
-			for (int j = 0; j < aaLen; j++) {
-				if (countJ[j] <= 0) continue;
-
-				if (countIJ[i][j] > 0) {
-					double pij = (countIJ[i][j]) / ((double) count);
-					double pi = (countI[i]) / ((double) count);
-					double pj = (countJ[j]) / ((double) count);
-
-					hxy -= pij * Math.log(pij) / LOG_2;
-
-					if (debug) System.out.println(GprSeq.code2aa(codei[i]) + " / " + GprSeq.code2aa(codej[j]) + "\tpi: " + pi + "\tpj: " + pj + "\tpij: " + pij + "\thxy: " + hxy);
-				}
-			}
-		}
-
-		return hxy;
+		return counter().count(codei, 0, codej, 0, codei.length).getHxy();
 	}
 
 	/**
 	 * Entropy of a single sequence: H(X)
 	 */
 	public static double entropy(String coli) {
-		// Convert string to byte codes
-		int numAligns = coli.length();
-		byte codei[] = new byte[numAligns];
-		for (int i = 0; i < numAligns; i++)
-			codei[i] = GprSeq.aa2Code(coli.charAt(i));
-
-		return entropy(codei);
+		return counter().count(coli).getHx();
 	}
 
 	/**
 	 * Entropy of two sequences: H(X,Y)
 	 */
 	public static double entropy(String coli, String colj) {
-		if (coli.length() != colj.length()) throw new RuntimeException("Lengths do not match!");
-
-		// Convert string to byte codes
-		int numAligns = coli.length();
-		byte codei[] = new byte[numAligns];
-		byte codej[] = new byte[numAligns];
-		for (int i = 0; i < numAligns; i++) {
-			codei[i] = GprSeq.aa2Code(coli.charAt(i));
-			codej[i] = GprSeq.aa2Code(colj.charAt(i));
-		}
-
-		return entropy(codei, codej);
+		return counter().count(coli, colj).getHxy();
 	}
 
 	/**
 	 * Mutual Information
 	 */
 	public static double mutualInformation(byte codei[], byte codej[]) {
-		//---
-		// Initialize counters
-		//---
-		int count = 0;
-		int numAligns = codei.length;
-		int aaLen = GprSeq.AA_TO_CODE.length;
-		short countIJ[][] = new short[aaLen][aaLen];
-		short countI[] = new short[aaLen];
-		short countJ[] = new short[aaLen];
-
-		for (int i = 0; i < aaLen; i++)
-			Arrays.fill(countIJ[i], (short) 0);
-		Arrays.fill(countI, (short) 0);
-		Arrays.fill(countJ, (short) 0);
-
-		//---
-		// Count matching bases
-		//---
-		for (int i = 0; i < numAligns; i++) {
-			byte basei = codei[i];
-			byte basej = codej[i];
-			if ((basei == MsaSimilarity.ALIGN_GAP) || (basej == MsaSimilarity.ALIGN_GAP)) continue;
-
-			// Count
-			countI[basei]++;
-			countJ[basej]++;
-			countIJ[basei][basej]++;
-			count++;
-		}
-
-		double mutInf = 0.0;
-		for (int i = 0; i < aaLen; i++) {
-			if (countI[i] <= 0) continue;
-
-			for (int j = 0; j < aaLen; j++) {
-				if (countJ[j] <= 0) continue;
-
-				if (countIJ[i][j] > 0) {
-					double pij = ((double) countIJ[i][j]) / ((double) count);
-					double pi = ((double) countI[i]) / ((double) count);
-					double pj = ((double) countJ[j]) / ((double) count);
-
-					mutInf += pij * Math.log(pij / (pi * pj)) / LOG_2;
-				}
-			}
-		}
-
-		// Results
-		return mutInf;
+		return counter().count(codei, 0, codej, 0, codei.length).getMi();
 	}
 
 	/**
 	 * Mutual Information
 	 */
 	public static double mutualInformation(String coli, String colj) {
-		if (coli.length() != colj.length()) throw new RuntimeException("Lengths do not match!");
-
-		// Convert string to byte codes
-		int numAligns = coli.length();
-		byte codei[] = new byte[numAligns];
-		byte codej[] = new byte[numAligns];
-		for (int i = 0; i < numAligns; i++) {
-			codei[i] = GprSeq.aa2Code(coli.charAt(i));
-			codej[i] = GprSeq.aa2Code(colj.charAt(i));
-		}
-
-		return mutualInformation(codei, codej);
+		return counter().count(coli, colj).getMi();
 	}
 
 	/**
@@ -364,126 +161,88 @@ public class EntropySeq {
 	 * It can be used as a distance metric
 	 */
 	public static double variationOfInformation(byte codei[], byte codej[]) {
-		//---
-		// Initialize counters
-		//---
-		int count = 0;
-		int numAligns = codei.length;
-		int aaLen = GprSeq.AA_TO_CODE.length;
-		short countIJ[][] = new short[aaLen][aaLen];
-		short countI[] = new short[aaLen];
-		short countJ[] = new short[aaLen];
-
-		for (int i = 0; i < aaLen; i++)
-			Arrays.fill(countIJ[i], (short) 0);
-		Arrays.fill(countI, (short) 0);
-		Arrays.fill(countJ, (short) 0);
-
-		//---
-		// Count matching bases
-		//---
-		for (int i = 0; i < numAligns; i++) {
-			byte basei = codei[i];
-			byte basej = codej[i];
-			if ((basei == MsaSimilarity.ALIGN_GAP) || (basej == MsaSimilarity.ALIGN_GAP)) continue;
-
-			// Count
-			countI[basei]++;
-			countJ[basej]++;
-			countIJ[basei][basej]++;
-			count++;
-		}
-
-		double mutInf = 0.0;
-		double hxy = 0;
-		for (int i = 0; i < aaLen; i++) {
-			if (countI[i] <= 0) continue;
-
-			for (int j = 0; j < aaLen; j++) {
-				if (countJ[j] <= 0) continue;
-
-				if (countIJ[i][j] > 0) {
-					double pij = ((double) countIJ[i][j]) / ((double) count);
-					double pi = ((double) countI[i]) / ((double) count);
-					double pj = ((double) countJ[j]) / ((double) count);
-
-					mutInf += pij * Math.log(pij / (pi * pj)) / LOG_2;
-					hxy -= pij * Math.log(pij) / LOG_2;
-				}
-			}
-		}
-
-		// Results
-		double varInf = hxy - mutInf;
-		return varInf >= 0 ? varInf : 0.0;
+		return counter().count(codei, 0, codej, 0, codei.length).getVarInf();
 	}
 
 	public static double variationOfInformation(String coli, String colj) {
-		if (coli.length() != colj.length()) throw new RuntimeException("Lengths do not match!");
-
-		// Convert string to byte codes
-		int numAligns = coli.length();
-		byte codei[] = new byte[numAligns];
-		byte codej[] = new byte[numAligns];
-		for (int i = 0; i < numAligns; i++) {
-			codei[i] = GprSeq.aa2Code(coli.charAt(i));
-			codej[i] = GprSeq.aa2Code(colj.charAt(i));
-		}
-
-		return variationOfInformation(codei, codej);
+		return counter().count(coli, colj).getVarInf();
 	}
 
 	public EntropySeq() {
 	}
 
 	/**
-	 * Calculate
+	 * Add a column to the keys (one key per row).
+	 * Column is 'codes[offset ... offset + numSeqs - 1]', or null if out of range.
+	 * Returns the updated number of AAs packed into the keys
 	 */
-	protected void calc() {
-		hx = hy = hxy = hcondXY = hcondYX = mi = varInf = 0.0;
-		BooleanMutable firstIteration = new BooleanMutable(true);
-		if (count <= 0) return;
-
-		countI.forEachEntry(new TObjectIntProcedure<String>() {
+	int add(long keys[], int numPacked, ByteBuffer codes, int offset) {
+		if (numPacked >= MAX_PACKED_AAS) numPacked = renumberPacked(keys);
 
-			@Override
-			public boolean execute(String basesI, int countBasesI) {
-				if (countBasesI <= 0) return true; // Nothing to do
-				double pi = ((double) countBasesI) / (count);
+		for (int row = 0; row < numSeqs; row++)
+			keys[row] = (keys[row] << BITS_PER_AA) | (codes != null ? symbol(codes.get(offset + row)) : SYMBOL_NONE);
 
-				countJ.forEachEntry(new TObjectIntProcedure<String>() {
-
-					@Override
-					public boolean execute(String basesJ, int countBasesJ) {
-						if (countBasesJ == 0) return true; // Nothing to do
-						double pj = ((double) countBasesJ) / (count);
-						if (firstIteration.is()) hy -= pj * Math.log(pj) / LOG_2;
+		return numPacked + 1;
+	}
 
-						String basesIJ = basesI + SEPARATOR + basesJ;
-						int countBasesIJ = countIJ.get(basesIJ);
-						if (countBasesIJ == 0) return true; // Nothing to do
+	/**
+	 * Add a column (string) to the keys (one key per row). Column is null if out of range.
+	 */
+	int add(long keys[], int numPacked, String col) {
+		if (numPacked >= MAX_PACKED_AAS) numPacked = renumberPacked(keys);
 
-						double pij = ((double) countBasesIJ) / (count);
-						mi += pij * Math.log(pij / (pi * pj)) / LOG_2;
-						hxy -= pij * Math.log(pij) / LOG_2;
-						hcondXY += pij * Math.log(pj / pij) / LOG_2;
-						hcondYX += pij * Math.log(pi / pij) / LOG_2;
+		for (int row = 0; row < numSeqs; row++)
+			keys[row] = (keys[row] << BITS_PER_AA) | (col != null ? symbol(GprSeq.aa2Code(col.charAt(row))) : SYMBOL_NONE);
 
-						return true;
-					}
-				});
+		return numPacked + 1;
+	}
 
-				hx -= pi * Math.log(pi) / LOG_2;
-				firstIteration.setFalse();
+	/**
+	 * Calculate entropies from the keys: Each row is one 'symbol' (the AAs in the window)
+	 */
+	protected void calc() {
+		hx = hy = hxy = hcondXY = hcondYX = mi = varInf = 0.0;
+		count = numSeqs;
+		if (count <= 0) return;
 
-				return true;
-			}
-		});
+		// Replace keys by consecutive numbers, so that pairs can be packed into one key
+		int numI = renumber(keysI, countI);
+		int numJ = renumber(keysJ, countJ);
+		for (int row = 0; row < numSeqs; row++)
+			keysIJ[row] = keysJ[row] * numI + keysI[row];
+		int numIJ = renumber(keysIJ, countIJ);
+
+		// Entropies
+		hx = entropy(countI, numI);
+		hy = entropy(countJ, numJ);
+		hxy = entropy(countIJ, numIJ);
+		hcondXY = hxy - hy;
+		hcondYX = hxy - hx;
+		mi = hx + hy - hxy;
 
 		varInf = hxy - mi;
 		if (varInf < 0) varInf = 0;
 	}
 
+	/**
+	 * Calculate using columns 'posi - numBases ... posi + numBases' from 'msai'
+	 * and 'posj - numBases ... posj + numBases' from 'msaj'
+	 */
+	public void calc(MultipleSequenceAlignment msai, int posi, MultipleSequenceAlignment msaj, int posj, int numBases) {
+		init(msai.getNumSeqs());
+
+		int numPackedI = 0, numPackedJ = 0;
+		for (int k = -numBases; k <= numBases; k++) {
+			int pi = posi + k, pj = posj + k;
+			boolean ini = (pi >= 0) && (pi < msai.getAaSeqLen());
+			boolean inj = (pj >= 0) && (pj < msaj.getAaSeqLen());
+			numPackedI = add(keysI, numPackedI, ini ? msai.getAlign() : null, ini ? msai.getColumnOffset(pi) : 0);
+			numPackedJ = add(keysJ, numPackedJ, inj ? msaj.getAlign() : null, inj ? msaj.getColumnOffset(pj) : 0);
+		}
+
+		calc();
+	}
+
 	/**
 	 * Calculate using sequences 'seqsi' and 'seqsj'
 	 */
@@ -496,16 +255,30 @@ public class EntropySeq {
 				break;
 			}
 
-		// Count each alignment
-		for (int i = 0; i < len; i++) {
-			String basesi = seq(seqsi, i);
-			String basesj = seq(seqsj, i);
-			inc(basesi, basesj);
-		}
+		init(len);
+
+		// Add each column
+		int numPackedI = 0, numPackedJ = 0;
+		for (int i = 0; i < seqsi.length; i++)
+			numPackedI = add(keysI, numPackedI, seqsi[i]);
+		for (int j = 0; j < seqsj.length; j++)
+			numPackedJ = add(keysJ, numPackedJ, seqsj[j]);
 
 		calc();
 	}
 
+	/**
+	 * Entropy from counts 'counts[0 ... num - 1]'
+	 */
+	double entropy(int counts[], int num) {
+		double sum = 0;
+		for (int i = 0; i < num; i++)
+			sum += counts[i] * Math.log(counts[i]);
+
+		double n = count;
+		return (n * Math.log(n) - sum) / (n * LOG_2);
+	}
+
 	public long getCount() {
 		return count;
 	}
@@ -538,22 +311,61 @@ public class EntropySeq {
 		return varInf;
 	}
 
-	public void inc(String basesI, String basesJ) {
-		countI.adjustOrPutValue(basesI, ONE, ONE);
-		countJ.adjustOrPutValue(basesJ, ONE, ONE);
-		countIJ.adjustOrPutValue(basesI + SEPARATOR + basesJ, ONE, ONE);
-		count++;
+	/**
+	 * Initialize keys and counters for 'numSeqs' rows
+	 */
+	void init(int numSeqs) {
+		this.numSeqs = numSeqs;
+		if (keysI.length < numSeqs) {
+			keysI = new long[numSeqs];
+			keysJ = new long[numSeqs];
+			keysIJ = new long[numSeqs];
+			countI = new int[numSeqs];
+			countJ = new int[numSeqs];
+			countIJ = new int[numSeqs];
+		}
+
+		Arrays.fill(keysI, 0, numSeqs, 0L);
+		Arrays.fill(keysJ, 0, numSeqs, 0L);
 	}
 
 	/**
-	 * Create a string from bases at position 'idx'
+	 * Replace keys by consecutive numbers (0, 1, 2, ...) preserving equality
+	 * and count the number of rows for each number in 'counts'.
+	 * Returns the number of different keys
 	 */
-	String seq(String seqs[], int idx) {
-		char bases[] = new char[seqs.length];
-		for (int i = 0; i < seqs.length; i++)
-			bases[i] = seqs[i] != null ? seqs[i].charAt(idx) : ' ';
+	int renumber(long keys[], int counts[]) {
+		ids.clear();
+		for (int row = 0; row < numSeqs; row++) {
+			int id = ids.get(keys[row]);
+			if (id < 0) {
+				id = ids.size();
+				ids.put(keys[row], id);
+				counts[id] = 0;
+			}
 
-		return new String(bases);
+			keys[row] = id;
+			counts[id]++;
+		}
+
+		return ids.size();
+	}
+
+	/**
+	 * Renumber keys that are about to overflow.
+	 * Returns the number of AAs the new keys are equivalent to (in bits)
+	 */
+	int renumberPacked(long keys[]) {
+		int num = renumber(keys, countIJ);
+		int bits = 64 - Long.numberOfLeadingZeros(num);
+		return (bits + BITS_PER_AA - 1) / BITS_PER_AA;
+	}
+
+	/**
+	 * Symbol for an AA code (gaps are also symbols)
+	 */
+	long symbol(byte code) {
+		return code < 0 ? SYMBOL_GAP : code + SYMBOL_AA_FIRST;
 	}
 
 }
@@ -0,0 +1,162 @@
+package ca.mcgill.pcingola.epistasis.gwas;
+
+import ca.mcgill.pcingola.epistasis.Genotype;
+
+/**
+ * Statistics used to filter out pairs of genotypes, calculated on
+ * packed genotypes (see Genotype) using bitwise operations and popcounts.
+ *
+ * A sample is 'skipped' if either genotype or the phenotype is missing. All
+ * sums needed to check linear dependency of gti, gtj and gtij = gti * gtj are
+ * derived from counts of (gti, gtj) values in non-skipped samples.
+ *
+ * Objects are re-used (no memory is allocated for each pair), so they are not
+ * thread safe: use one object per thread.
+ *
+ * @author pcingola
+ */
+public class GenotypePairStats {
+
+	int numSamples;
+	int countSkip; // Number of samples skipped (missing genotype or phenotype)
+	int countGtij; // Number of non-skipped samples having non-Ref genotypes in both variants
+	int countI[] = new int[3], countJ[] = new int[3]; // Non-skipped samples having gti = a (or gtj = b). Only a, b > 0 are used
+	int countIJ[][] = new int[3][3]; // Non-skipped samples having gti = a and gtj = b. Only a, b > 0 are used
+	boolean variantDependency; // Non-zero gti (or gtj) in exactly the same samples as non-zero gtij?
+
+	/**
+	 * Bitset of missing phenotypes (negative values)
+	 */
+	public static long[] missing(double pheno[]) {
+		long missing[] = new long[(pheno.length + 63) >>> 6];
+		for (int i = 0; i < pheno.length; i++)
+			if (pheno[i] < 0) missing[i >>> 6] |= 1L << i;
+		return missing;
+	}
+
+	/**
+	 * Calculate statistics for genotypes 'genoi' and 'genoj'
+	 * @param phenoMissing : Missing phenotypes bitset (can be null)
+	 */
+	public GenotypePairStats calc(Genotype genoi, Genotype genoj, long phenoMissing[]) {
+		numSamples = genoi.numberSamples();
+		long loi[] = genoi.getGtLo(), hii[] = genoi.getGtHi(), missi[] = genoi.getGtMissing();
+		long loj[] = genoj.getGtLo(), hij[] = genoj.getGtHi(), missj[] = genoj.getGtMissing();
+
+		int countNoSkip = 0, ci1 = 0, ci2 = 0, cj1 = 0, cj2 = 0, c11 = 0, c12 = 0, c21 = 0, c22 = 0;
+		boolean eqI = true, eqJ = true;
+		int numWords = loi.length;
+		for (int w = 0; w < numWords; w++) {
+			long noSkip = noSkip(missi, missj, phenoMissing, w, numSamples);
+			countNoSkip += Long.bitCount(noSkip);
+
+			long i1 = loi[w] & noSkip, i2 = hii[w] & noSkip;
+			ci1 += Long.bitCount(i1);
+			ci2 += Long.bitCount(i2);
+			cj1 += Long.bitCount(loj[w] & noSkip);
+			cj2 += Long.bitCount(hij[w] & noSkip);
+			c11 += Long.bitCount(i1 & loj[w]);
+			c12 += Long.bitCount(i1 & hij[w]);
+			c21 += Long.bitCount(i2 & loj[w]);
+			c22 += Long.bitCount(i2 & hij[w]);
+
+			// Variant dependency (on all samples, gtij is zero on skipped samples)
+			long nzi = loi[w] | hii[w], nzj = loj[w] | hij[w];
+			long nzij = nzi & nzj & noSkip;
+			eqI &= (nzi == nzij);
+			eqJ &= (nzj == nzij);
+		}
+
+		countSkip = numSamples - countNoSkip;
+		countI[1] = ci1;
+		countI[2] = ci2;
+		countJ[1] = cj1;
+		countJ[2] = cj2;
+		countIJ[1][1] = c11;
+		countIJ[1][2] = c12;
+		countIJ[2][1] = c21;
+		countIJ[2][2] = c22;
+		countGtij = c11 + c12 + c21 + c22;
+		variantDependency = eqI || eqJ;
+
+		return this;
+	}
+
+	public int getCountGtij() {
+		return countGtij;
+	}
+
+	public int getCountSkip() {
+		return countSkip;
+	}
+
+	/**
+	 * Word 'w' of the bitset of samples that are not skipped (unused bits in the last word are masked out)
+	 */
+	static long noSkip(long missi[], long missj[], long phenoMissing[], int w, int numSamples) {
+		long noSkip = ~(missi[w] | missj[w] | (phenoMissing != null ? phenoMissing[w] : 0L));
+		if (w == missi.length - 1 && (numSamples & 63) != 0) noSkip &= (1L << numSamples) - 1;
+		return noSkip;
+	}
+
+	/**
+	 * Indexes of samples that are not skipped (missing genotype or phenotype), calculated on packed genotypes
+	 * @param countNoSkip : Number of samples not skipped (see 'getCountSkip()')
+	 */
+	public static int[] rowsNoSkip(Genotype genoi, Genotype genoj, long phenoMissing[], int countNoSkip) {
+		int numSamples = genoi.numberSamples();
+		long missi[] = genoi.getGtMissing(), missj[] = genoj.getGtMissing();
+
+		int rows[] = new int[countNoSkip];
+		int idx = 0;
+		for (int w = 0; w < missi.length; w++)
+			for (long bits = noSkip(missi, missj, phenoMissing, w, numSamples); bits != 0; bits &= bits - 1)
+				rows[idx++] = (w << 6) + Long.numberOfTrailingZeros(bits);
+
+		return rows;
+	}
+
+	/**
+	 * Are vectors gti, gtj and gtij linearly dependent (on non-skipped samples)?
+	 *
+	 * Calculates det(M^T * M), where M = [gti, gtj, gtij]. All entries of M^T * M
+	 * are integers (at most 16 * numSamples), so the determinant is calculated exactly.
+	 */
+	public boolean linearDependency() {
+		long sii = 0, sjj = 0, sij = 0, siij = 0, sjij = 0, sijij = 0;
+		for (int a = 1; a <= 2; a++) {
+			sii += a * a * countI[a];
+			sjj += a * a * countJ[a];
+
+			for (int b = 1; b <= 2; b++) {
+				long c = countIJ[a][b];
+				sij += a * b * c; // gti . gtj
+				siij += a * a * b * c; // gti . gtij
+				sjij += a * b * b * c; // gtj . gtij
+				sijij += a * a * b * b * c; // gtij . gtij
+			}
+		}
+
+		// Determinant of the (symmetric) 3x3 matrix
+		long det = sii * (sjj * sijij - sjij * sjij) //
+				- sij * (sij * sijij - sjij * siij) //
+				+ siij * (sij * sjij - sjj * siij);
+
+		return det == 0;
+	}
+
+	/**
+	 * Should we filter out this variant pair? See GwasResult.shouldFilter()
+	 */
+	public boolean shouldFilter() {
+		return countGtij < GwasResult.MIN_SHARED_VARIANTS || linearDependency() || variantDependency();
+	}
+
+	/**
+	 * Are non-zero entries in gti[] (or gtj[]) at the same places as in gtij[]?
+	 */
+	public boolean variantDependency() {
+		return variantDependency;
+	}
+
+}
@@ -25,6 +25,7 @@ import ca.mcgill.pcingola.epistasis.coordinates.GenomicCoordinates;
 import ca.mcgill.pcingola.epistasis.likelihood.CoEvolutionLikelihood;
 import ca.mcgill.pcingola.epistasis.likelihood.LogisticRegressionGtPair;
 import ca.mcgill.pcingola.epistasis.likelihood.MarkerPairLikelihood;
+import ca.mcgill.pcingola.epistasis.msa.MultipleSequenceAlignment;
 import ca.mcgill.pcingola.epistasis.msa.MultipleSequenceAlignmentSet;
 import ca.mcgill.pcingola.epistasis.pdb.PdbGenomeMsas;
 
@@ -41,6 +42,7 @@ public class GwasEpistasis {
 	public static double SHOW_LINE_LL_MIN = 1.0;
 	public static int MINOR_ALLELE_COUNT = 5;
 	public static double LL_THRESHOLD_LOGREG = 6.0; // Log likelihood threshold for logistic regression
+	public static double SCORE_THRESHOLD_RATIO = 0.5; // Score test prefilter: Fit 'Alt' model only if score statistic is at least 'SCORE_THRESHOLD_RATIO * LL_THRESHOLD_LOGREG'
 	public static double LL_THRESHOLD_MSA = 0.0; // Log likelihood threshold for co-evolutionary model
 	public static double LL_THRESHOLD_TOTAL = 5.0; // Total Log likelihood threshold
 
@@ -108,6 +110,7 @@ public class GwasEpistasis {
 
 		if (llan == null) {
 			llan = new LogisticRegressionGtPair(phenoCovariatesFile, vcfFile);
+			llan.setScoreThreshold(SCORE_THRESHOLD_RATIO * logLikelihoodRatioLogRegThreshold);
 			llan.init();
 			llAnByThreadId.put(threadId, llan);
 		}
@@ -120,13 +123,16 @@ public class GwasEpistasis {
 
 	/**
 	 * Perform analysis on genotypes 'i' and 'j'
+	 * Returns null if the pair is filtered out (see GwasResult.shouldFilter())
 	 */
 	GwasResult gwas(Genotype genoi, Genotype genoj) {
 		//---
 		// Likelihood based on logistic regression
 		//---
 		LogisticRegressionGtPair llan = getLikelihoodAnalysis2();
-		GwasResult gwasRes = llan.logLikelihood(genoi, genoj);
+		GenotypePairStats pairStats = llan.pairStats(genoi, genoj);
+		if (pairStats.shouldFilter()) return null; // Filtered out: Don't bother to create models
+		GwasResult gwasRes = llan.logLikelihood(genoi, genoj, pairStats); // Statistics are not calculated again
 
 		// Log likelihood form logistic regression is too low?
 		// => Don't bother to calculate next part
@@ -198,12 +204,15 @@ public class GwasEpistasis {
 						.parallel() //
 						.forEach(j -> {
 							GwasResult gwasRes = gwas(gti, gtsSplitJ.get(j));
+							if (gwasRes == null) return;
 							double llTot = gwasRes.logLik();
 							if (llTot > logLikelihoodRatioLogRegThreshold) countLl.inc();
 							if (llTot != 0.0) Timer.show(count.inc() + " (" + i + " / " + j + ")\t" + countLl + "\t" + gwasRes);
 						});
 			}
 		}
+
+		showStatsModels();
 	}
 
 	/**
@@ -262,13 +271,27 @@ public class GwasEpistasis {
 			return marker;
 		}
 
-		String idRep = id.replace(':', '_').replace('-', '_').replace('[', '_').replace(']', '_');
-		String f[] = idRep.split("_");
-		String trId = f[0] + "_" + f[1];
-		String chr = f[2];
-		int start = Gpr.parseIntSafe(f[3]);
-		int end = Gpr.parseIntSafe(f[4]);
-		int aaIdx = Gpr.parseIntSafe(f[5]);
+		// Find MSA in symbol table (no need to parse coordinates)
+		String trId, chr;
+		int start, end, aaIdx;
+		int idxBracket = id.lastIndexOf('[');
+		MultipleSequenceAlignmentSet msas = pdbGenomeMsas.getMsas();
+		MultipleSequenceAlignment msa = (msas != null && idxBracket > 0 ? msas.getMsa(id.substring(0, idxBracket)) : null);
+		if (msa != null) {
+			trId = msa.getTranscriptId();
+			chr = msa.getChromosomeName();
+			start = msa.getStart();
+			end = msa.getEnd();
+			aaIdx = Gpr.parseIntSafe(id.substring(idxBracket + 1, id.length() - 1));
+		} else {
+			String idRep = id.replace(':', '_').replace('-', '_').replace('[', '_').replace(']', '_');
+			String f[] = idRep.split("_");
+			trId = f[0] + "_" + f[1];
+			chr = f[2];
+			start = Gpr.parseIntSafe(f[3]);
+			end = Gpr.parseIntSafe(f[4]);
+			aaIdx = Gpr.parseIntSafe(f[5]);
+		}
 
 		// Create a marker that lies onto the referred AA
 		Chromosome chromo = pdbGenomeMsas.getConfig().getGenome().getOrCreateChromosome(chr);
@@ -415,4 +438,26 @@ public class GwasEpistasis {
 			if (tot % SHOW_LINE_GENES_LL_EVERY == 0) System.err.print("\n" + tot + "\t");
 		}
 	}
+
+	/**
+	 * Show logistic regression statistics: Number of models fitted and IRWLS iterations (all threads)
+	 */
+	void showStatsModels() {
+		int countFitNull = 0, countFitAlt = 0, countScoreFiltered = 0;
+		long iterationsNull = 0, iterationsAlt = 0;
+		for (LogisticRegressionGtPair llan : llAnByThreadId.values()) {
+			countFitNull += llan.getCountFitNull();
+			countFitAlt += llan.getCountFitAlt();
+			countScoreFiltered += llan.getCountScoreFiltered();
+			iterationsNull += llan.getIterationsNull();
+			iterationsAlt += llan.getIterationsAlt();
+		}
+
+		Timer.showStdErr("Logistic regression models" //
+				+ "\n\tNull models fitted     : " + countFitNull + "\tIterations: " + iterationsNull + "\tIterations per model: " + (countFitNull > 0 ? ((double) iterationsNull) / countFitNull : 0) //
+				+ "\n\tAlt models fitted      : " + countFitAlt + "\tIterations: " + iterationsAlt + "\tIterations per model: " + (countFitAlt > 0 ? ((double) iterationsAlt) / countFitAlt : 0) //
+				+ "\n\tAlt models score filter: " + countScoreFiltered //
+		);
+	}
+
 }
@@ -1,13 +1,11 @@
 package ca.mcgill.pcingola.epistasis.gwas;
 
-import org.apache.commons.math3.linear.Array2DRowRealMatrix;
-import org.apache.commons.math3.linear.LUDecomposition;
-
 import ca.mcgill.mcb.pcingola.interval.Genome;
 import ca.mcgill.mcb.pcingola.probablility.FisherExactTest;
 import ca.mcgill.mcb.pcingola.util.Gpr;
 import ca.mcgill.mcb.pcingola.util.Timer;
 import ca.mcgill.pcingola.epistasis.Genotype;
+import ca.mcgill.pcingola.regression.DesignMatrix;
 import ca.mcgill.pcingola.regression.LogisticRegression;
 
 /**
@@ -26,22 +24,29 @@ public class GwasResult {
 	String id;
 	public Genotype genoi, genoj;
 	public String genoiId, genojId;
-	public byte gtij[]; // Genotype data used to fit the logistic regression
+	double gtiNoSkip[], gtjNoSkip[], gtijNoSkip[]; // Genotypes for samples that are not skipped (regression inputs)
+	int rowsNoSkip[]; // Samples that are not skipped
 	double pheno[]; // Phenotypes
+	long phenoMissing[]; // Missing phenotypes (bitset)
+	boolean pairStatsDone; // Have pair statistics been set? (see setPairStats)
+	boolean linearDependency, variantDependency; // Filter criteria for pairs of variants (see GenotypePairStats)
 	int countGtij; // Count number of samples having non-Ref and non-Missing genotypes in both variants
 
 	int countSkip; // Number of samples skipped
-	boolean skip[]; // Samples to skip (e.g. missing genotype or missing phenotype info
+	boolean skip[]; // Samples to skip (e.g. missing genotype or missing phenotype info). Single variant only, pairs use packed genotypes
 	String skipKey; // A string symbolizing the skipped samples. Used for caching results (null model)
 
 	public double likelihoodLogRegAlt = 0.0; // Likelihood from logistic regression (ALT model)
 	public double likelihoodLogRegNull = 0.0; // Likelihood from logistic regression (NULL model)
 	public double logLikelihoodRatioLogReg = 0.0; // Log likelihood ratio from Logistic Regression model
 	public double pvalueLogReg = 1.0; // P-value from log-likelihood ratio in logistic regression model
+	public double scoreLogReg = Double.NaN; // Score test statistic for interaction term gtij (NaN if not calculated)
 
 	public double logLikelihoodRatioMsa = 0.0; // Log likelihood from MSA (epistasis) model
 	public double likelihoodMsaAlt = 0.0; // Likelihood from MSA (ALT model)
 	public double likelihoodMsaNull = 0.0; // Likelihood from MSA (NULL model)
+	public double logLikelihoodMsaAlt = 0.0; // Log-likelihood from MSA (ALT model). Note: Likelihood can underflow, log-likelihood does not
+	public double logLikelihoodMsaNull = 0.0; // Log-likelihood from MSA (NULL model)
 	public LogisticRegression logisticRegressionNull; // Logistc regression Null model
 	public LogisticRegression logisticRegressionAlt; // Logistc regression Alt model
 
@@ -65,12 +70,25 @@ public class GwasResult {
 	}
 
 	public GwasResult(Genotype genoi, Genotype genoj, double pheno[]) {
+		this(genoi, genoj, pheno, null);
+	}
+
+	public GwasResult(Genotype genoi, Genotype genoj, double pheno[], long phenoMissing[]) {
 		this.genoi = genoi;
 		this.genoj = genoj;
 		this.pheno = pheno;
+		this.phenoMissing = phenoMissing;
 		id = genoi.getId() + "-" + genoj.getId();
 	}
 
+	/**
+	 * Create a result using statistics already calculated for this pair (so they are not calculated again by 'calcSkip()')
+	 */
+	public GwasResult(Genotype genoi, Genotype genoj, double pheno[], long phenoMissing[], GenotypePairStats pairStats) {
+		this(genoi, genoj, pheno, phenoMissing);
+		setPairStats(pairStats);
+	}
+
 	/**
 	 * Calculate "total" Bayes factor (BF_logReg * BF_MSA)
 	 *
@@ -123,34 +141,12 @@ public class GwasResult {
 
 	/**
 	 * Which samples should be skipped? Either missing genotype or missing phenotype
-	 * Also: Calculate gti * gtj vector and count number of positive entries
-	 * (i.e. number of samples that have non-Ref (and non-Missing) genotypes in both variants)
+	 * Also: Count number of samples that have non-Ref (and non-Missing) genotypes in both variants
+	 * Note: Counts are calculated on packed genotypes, only if they were not set by the constructor
 	 */
 	void calcSkipPair() {
-		// Initialize
-		int numSamples = getNumSamples();
-		byte gti[] = genoi.getGt();
-		byte gtj[] = genoj.getGt();
-
-		skip = new boolean[numSamples];
-		gtij = new byte[numSamples];
-		countSkip = 0;
-		countGtij = 0;
-
-		// Which samples should be skipped?
-		gtij = new byte[numSamples];
-		for (int vcfSampleNum = 0; vcfSampleNum < numSamples; vcfSampleNum++) {
-			skip[vcfSampleNum] = (gti[vcfSampleNum] < 0) || (gtj[vcfSampleNum] < 0) || (pheno[vcfSampleNum] < 0);
-
-			// Should we skip this sample?
-			if (skip[vcfSampleNum]) {
-				countSkip++;
-			} else {
-				// Calculate gt[i] * gt[j]
-				gtij[vcfSampleNum] = (byte) (gti[vcfSampleNum] * gtj[vcfSampleNum]);
-				if (gtij[vcfSampleNum] > 0) countGtij++; // Is it a non-Ref and non-Missing entry?
-			}
-		}
+		if (phenoMissing == null) phenoMissing = GenotypePairStats.missing(pheno);
+		if (!pairStatsDone) setPairStats(new GenotypePairStats().calc(genoi, genoj, phenoMissing));
 	}
 
 	/**
@@ -162,9 +158,8 @@ public class GwasResult {
 		skip = new boolean[numSamples];
 		char skipChar[] = new char[numSamples];
 		countSkip = 0;
-		byte[] gt = genoi.getGt();
 		for (int vcfSampleNum = 0; vcfSampleNum < numSamples; vcfSampleNum++) {
-			skip[vcfSampleNum] = (gt[vcfSampleNum] < 0) || (pheno[vcfSampleNum] < 0);
+			skip[vcfSampleNum] = (genoi.getGt(vcfSampleNum) < 0) || (pheno[vcfSampleNum] < 0);
 			if (skip[vcfSampleNum]) {
 				countSkip++;
 				skipChar[vcfSampleNum] = '1';
@@ -196,45 +191,53 @@ public class GwasResult {
 	}
 
 	/**
-	 * Are these vectors linearly dependent?
+	 * Return genotypes gti[] (only the ones that should not be skipped)
 	 */
-	boolean linearDependency() {
-		byte gti[] = genoi.getGt();
-		byte gtj[] = genoj.getGt();
-
-		int len = gti.length - countSkip;
-		int n = 3;
-		byte M[][] = new byte[n][len];
+	public double[] gtiNoSkip() {
+		if (gtiNoSkip == null) gtiNoSkip = gtNoSkip(genoi);
+		return gtiNoSkip;
+	}
 
-		// Create a matrix 'M'
-		for (int i = 0, idx = 0; i < gti.length; i++) {
-			if (skip[i]) continue;
+	/**
+	 * Return combined genotypes gtij[] = gti[] * gtj[] (only the ones that should not be skipped)
+	 */
+	public double[] gtijNoSkip() {
+		if (gtijNoSkip != null) return gtijNoSkip;
 
-			M[0][idx] = gti[i];
-			M[1][idx] = gtj[i];
-			M[2][idx] = gtij[i];
-			idx++;
-		}
+		double gti[] = gtiNoSkip(), gtj[] = gtjNoSkip();
+		gtijNoSkip = new double[gti.length];
+		for (int i = 0; i < gti.length; i++)
+			gtijNoSkip[i] = gti[i] * gtj[i];
 
-		// Calculate M^t * M
-		double MM[][] = new double[n][n];
-		for (int i = 0; i < n; i++) {
-			for (int j = 0; j < n; j++) {
-				int sum = 0;
+		return gtijNoSkip;
+	}
 
-				for (int h = 0; h < len; h++)
-					sum += M[i][h] * M[j][h];
+	/**
+	 * Return genotypes gtj[] (only the ones that should not be skipped)
+	 */
+	public double[] gtjNoSkip() {
+		if (gtjNoSkip == null) gtjNoSkip = gtNoSkip(genoj);
+		return gtjNoSkip;
+	}
 
-				MM[i][j] = sum;
-			}
-		}
+	/**
+	 * Genotypes (only the ones that should not be skipped)
+	 */
+	double[] gtNoSkip(Genotype geno) {
+		int rows[] = rowsNoSkip();
+		double gtNoSkip[] = new double[rows.length];
+		for (int i = 0; i < rows.length; i++)
+			gtNoSkip[i] = geno.getGt(rows[i]);
 
-		// Is det( M^T * M ) zero?
-		Array2DRowRealMatrix MMr = new Array2DRowRealMatrix(MM);
-		double detMM = (new LUDecomposition(MMr)).getDeterminant();
-		if (debug) Gpr.debug("det(MM): " + detMM + "\tMM:\n" + Gpr.toString(MM));
+		return gtNoSkip;
+	}
 
-		return Math.abs(detMM) < EPSILON;
+	/**
+	 * Are these vectors linearly dependent?
+	 */
+	boolean linearDependency() {
+		if (debug) Gpr.debug("Linear dependency: " + linearDependency);
+		return linearDependency;
 	}
 
 	/**
@@ -330,12 +333,10 @@ public class GwasResult {
 	 * Return phenotypes (only the ones that should not be skipped)
 	 */
 	public double[] phenoNoSkip() {
-		int totalSamples = getNumSamples() - countSkip;
-		double phenoNoSkip[] = new double[totalSamples];
-
-		int idx = 0;
-		for (int i = 0; i < getNumSamples(); i++)
-			if (!skip[i]) phenoNoSkip[idx++] = pheno[i];
+		int rows[] = rowsNoSkip();
+		double phenoNoSkip[] = new double[rows.length];
+		for (int i = 0; i < rows.length; i++)
+			phenoNoSkip[i] = pheno[rows[i]];
 
 		return phenoNoSkip;
 	}
@@ -349,6 +350,17 @@ public class GwasResult {
 		return pvalueLogReg;
 	}
 
+	/**
+	 * Indexes of samples that should not be skipped (i.e. rows in regression models)
+	 */
+	public int[] rowsNoSkip() {
+		if (rowsNoSkip != null) return rowsNoSkip;
+
+		if (genoj == null) rowsNoSkip = DesignMatrix.rows(skip, countSkip); // Single variant
+		else rowsNoSkip = GenotypePairStats.rowsNoSkip(genoi, genoj, phenoMissing, getNumSamples() - countSkip); // Pair of variants: Use packed genotypes
+		return rowsNoSkip;
+	}
+
 	/**
 	 * Set logistic regression's Alt and Null models
 	 */
@@ -365,6 +377,17 @@ public class GwasResult {
 		pvalueLogReg();
 	}
 
+	/**
+	 * Set statistics calculated for this pair of genotypes (values are copied, so 'pairStats' can be re-used)
+	 */
+	public void setPairStats(GenotypePairStats pairStats) {
+		countSkip = pairStats.getCountSkip();
+		countGtij = pairStats.getCountGtij();
+		linearDependency = pairStats.linearDependency();
+		variantDependency = pairStats.variantDependency();
+		pairStatsDone = true;
+	}
+
 	/**
 	 * Should we filter out this variant pair?
 	 */
@@ -437,24 +460,6 @@ public class GwasResult {
 	 * Are these vectors linearly dependent?
 	 */
 	boolean variantDependency() {
-		byte gti[] = genoi.getGt();
-		byte gtj[] = genoj.getGt();
-
-		boolean eqI = true;
-		boolean eqJ = true;
-		for (int i = 0; i < gti.length; i++) {
-			boolean isVariantI = (gti[i] > 0);
-			boolean isVariantJ = (gtj[i] > 0);
-			boolean isVariantIj = (gtij[i] > 0);
-
-			eqI &= (isVariantI == isVariantIj); // Are all variant entries in gti[] equal to variant entries in gtij[]?
-			eqJ &= (isVariantJ == isVariantIj); // Are all variant entries in gtj[] equal to variant entries in gtij[]?
-
-			// If both are different, we are done
-			if (!eqI && !eqJ) return false;
-		}
-
-		// All entries in either gti[] or gtj[] are non-zero in the same positions as gtij[]
-		return true;
+		return variantDependency;
 	}
 }
@@ -0,0 +1,79 @@
+package ca.mcgill.pcingola.epistasis.likelihood;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A bounded cache that can be shared by many threads
+ *
+ * Entries are kept in two generations: New entries go into 'current', when
+ * it is full it becomes 'previous' (the old 'previous' is dropped). Entries
+ * found in 'previous' are moved back to 'current', so entries in use survive
+ * and old ones are evicted (approximate LRU, no locking on reads).
+ *
+ * @author pcingola
+ */
+public class BoundedCache<K, V> {
+
+	int maxSizeGeneration; // Maximum number of entries in each generation
+	volatile ConcurrentHashMap<K, V> current, previous;
+	long evicted; // Number of entries evicted
+
+	public BoundedCache(int maxSize) {
+		maxSizeGeneration = Math.max(1, maxSize / 2);
+		current = new ConcurrentHashMap<K, V>();
+		previous = new ConcurrentHashMap<K, V>();
+	}
+
+	/**
+	 * Remove all entries
+	 */
+	public synchronized void clear() {
+		current = new ConcurrentHashMap<K, V>();
+		previous = new ConcurrentHashMap<K, V>();
+		evicted = 0;
+	}
+
+	/**
+	 * Get an entry (null if not found)
+	 */
+	public V get(K key) {
+		V value = current.get(key);
+		if (value != null) return value;
+
+		// Found in previous generation? Keep it
+		value = previous.get(key);
+		if (value != null) put(key, value);
+		return value;
+	}
+
+	public synchronized long getEvicted() {
+		return evicted;
+	}
+
+	/**
+	 * Add an entry (evicts old entries if the cache is full)
+	 */
+	public void put(K key, V value) {
+		ConcurrentHashMap<K, V> current = this.current;
+		current.put(key, value);
+		if (current.size() >= maxSizeGeneration) newGeneration(current);
+	}
+
+	/**
+	 * Current generation is full: Drop previous generation and start a new one
+	 */
+	synchronized void newGeneration(ConcurrentHashMap<K, V> full) {
+		if (full != current) return; // Another thread already did it
+		evicted += previous.size();
+		previous = full;
+		current = new ConcurrentHashMap<K, V>();
+	}
+
+	/**
+	 * Number of entries (an entry can be counted twice if it is in both generations)
+	 */
+	public int size() {
+		return current.size() + previous.size();
+	}
+
+}
@@ -3,15 +3,16 @@ package ca.mcgill.pcingola.epistasis.likelihood;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Random;
 import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 import org.apache.commons.math3.linear.RealVector;
 
@@ -35,6 +36,7 @@ import ca.mcgill.pcingola.epistasis.phylotree.EstimateTransitionMatrixPairs;
 import ca.mcgill.pcingola.epistasis.phylotree.LikelihoodTreeAa;
 import ca.mcgill.pcingola.epistasis.phylotree.TransitionMatrix;
 import ca.mcgill.pcingola.epistasis.phylotree.UniformTreeValueCache;
+import gnu.trove.set.hash.TLongHashSet;
 
 /**
  * Calculate co-evolution likelihood based on:
@@ -47,23 +49,27 @@ import ca.mcgill.pcingola.epistasis.phylotree.UniformTreeValueCache;
 public class CoEvolutionLikelihood {
 
 	public static int MAX_RAND_ITER = 1000;
+	public static int MAX_PATTERN_PAIR_CACHE = 1000 * 1000; // Maximum number of entries in 'logLikByPatternPair' (older entries are evicted)
+	public static int MAX_NULL_COLUMN_CACHE = 1000 * 1000; // Maximum number of entries in 'logLikNullByColumn' (older entries are evicted)
 
 	boolean debug = false;
 	int cpus = -1; // Limit the number of parallel threads?
 	double aaFreqs[], aaFreqsContact[];
 	String treeFile;
-	Random random = new Random(20140716);
 	LikelihoodTreeAa tree;
 	DistanceResults aaContacts;
 	TransitionMatrix Q, Q2;
 	MultipleSequenceAlignmentSet msas;
 	IdMapper idMapper;
 	PdbGenomeMsas pdbGenomeMsas;
-	HashMap<Thread, LikelihoodTreeAa> treeNullByThread = new HashMap<Thread, LikelihoodTreeAa>();
-	HashMap<Thread, LikelihoodTreeAa> treeAltByThread = new HashMap<Thread, LikelihoodTreeAa>();
 	UniformTreeValueCache lcacheNull = new UniformTreeValueCache(GprSeq.AMINO_ACIDS.length);
 	UniformTreeValueCache lcacheAlt = new UniformTreeValueCache(GprSeq.AMINO_ACIDS.length * GprSeq.AMINO_ACIDS.length);
-	Set<String> done = new HashSet<>();
+	ThreadLocal<LikelihoodTreeAa> treeNullByThread = ThreadLocal.withInitial(() -> newTree(lcacheNull)); // One tree per thread (null model)
+	ThreadLocal<LikelihoodTreeAa> treeAltByThread = ThreadLocal.withInitial(() -> newTree(lcacheAlt)); // One tree per thread (alt model)
+	TLongHashSet done = new TLongHashSet(); // MSA pairs already calculated, key: msaPairKey(). Not thread safe: synchronize on it
+	BoundedCache<Long, double[]> logLikByPatternPair = new BoundedCache<Long, double[]>(MAX_PATTERN_PAIR_CACHE); // Memoized { logLikNull, logLikAlt } by column pattern pair
+	BoundedCache<ColumnGapKey, Double> logLikNullByColumn = new BoundedCache<ColumnGapKey, Double>(MAX_NULL_COLUMN_CACHE); // Memoized null model log-likelihood by (msaIdNum, idx, gapMask)
+	AtomicLong nullCacheHits = new AtomicLong(), nullCacheMisses = new AtomicLong();
 
 	public CoEvolutionLikelihood(int cpus, String treeFile, DistanceResults aaContacts, TransitionMatrix Q, TransitionMatrix Q2, double aaFreqs[], double aaFreqsContact[], MultipleSequenceAlignmentSet msas, IdMapper idMapper, PdbGenomeMsas pdbGenomeMsas) {
 		this.cpus = cpus;
@@ -80,6 +86,29 @@ public class CoEvolutionLikelihood {
 		loadTree(treeFile);
 	}
 
+	/**
+	 * AA pair codes for columns 'codes1[offset1 ...]' and 'codes2[offset2 ...]' (gaps are coded as -1)
+	 */
+	int[] aaPairCodes(ByteBuffer codes1, int offset1, ByteBuffer codes2, int offset2, int n) {
+		int c[] = new int[n];
+		for (int i = 0; i < n; i++)
+			c[i] = GprSeq.aaPairCode(codes1.get(offset1 + i), codes2.get(offset2 + i));
+		return c;
+	}
+
+	/**
+	 * Remove all memoized log-likelihoods (column pattern pairs and null model columns)
+	 * and cached uniform sub-tree likelihoods
+	 */
+	public void clearCache() {
+		logLikByPatternPair.clear();
+		logLikNullByColumn.clear();
+		lcacheNull.clear();
+		lcacheAlt.clear();
+		nullCacheHits.set(0);
+		nullCacheMisses.set(0);
+	}
+
 	/**
 	 * Estimate Q matrix from MSA and Phylogenetic-Tree
 	 */
@@ -159,48 +188,64 @@ public class CoEvolutionLikelihood {
 		return resList;
 	}
 
+	/**
+	 * A bitset of the positions having a gap in either sequence
+	 */
+	long[] gapMask(ByteBuffer codes1, int offset1, ByteBuffer codes2, int offset2, int n) {
+		long gapMask[] = new long[(n + 63) >>> 6];
+		for (int i = 0; i < n; i++)
+			if (codes1.get(offset1 + i) < 0 || codes2.get(offset2 + i) < 0) gapMask[i >>> 6] |= 1L << i;
+		return gapMask;
+	}
+
+	public double[] getAaFreqs() {
+		return aaFreqs;
+	}
+
+	public double[] getAaFreqsContact() {
+		return aaFreqsContact;
+	}
+
 	public IdMapper getIdMapper() {
 		return idMapper;
 	}
 
+	public MultipleSequenceAlignmentSet getMsas() {
+		return msas;
+	}
+
+	public long getNullCacheHits() {
+		return nullCacheHits.get();
+	}
+
+	public long getNullCacheMisses() {
+		return nullCacheMisses.get();
+	}
+
 	public PdbGenomeMsas getPdbGenomeMsas() {
 		return pdbGenomeMsas;
 	}
 
+	public TransitionMatrix getQ() {
+		return Q;
+	}
+
+	public TransitionMatrix getQ2() {
+		return Q2;
+	}
+
 	/**
 	 * Get a tree for the current thread (alt model)
 	 */
 	public LikelihoodTreeAa getTreeAlt() {
-		LikelihoodTreeAa currentTree = treeAltByThread.get(Thread.currentThread());
-
-		if (currentTree == null) {
-			// No tree? load one
-			Timer.showStdErr("Loading phylogenetic tree from " + treeFile);
-			currentTree = new LikelihoodTreeAa();
-			currentTree.load(treeFile);
-			currentTree.setLcache(lcacheAlt);
-			treeAltByThread.put(Thread.currentThread(), currentTree);
-		}
-
-		return currentTree;
+		return treeAltByThread.get();
 	}
 
 	/**
 	 * Get a tree for the current thread (null model)
 	 */
 	public LikelihoodTreeAa getTreeNull() {
-		LikelihoodTreeAa currentTree = treeNullByThread.get(Thread.currentThread());
-
-		if (currentTree == null) {
-			// No tree? load one
-			Timer.showStdErr("Loading phylogenetic tree from " + treeFile);
-			currentTree = new LikelihoodTreeAa();
-			currentTree.load(treeFile);
-			currentTree.setLcache(lcacheNull);
-			treeNullByThread.put(Thread.currentThread(), currentTree);
-		}
-
-		return currentTree;
+		return treeNullByThread.get();
 	}
 
 	/**
@@ -218,6 +263,8 @@ public class CoEvolutionLikelihood {
 				.map(d -> logLikelihoodRatioStr(msas.getMsa(d.msa1), d.msaIdx1, msas.getMsa(d.msa2), d.msaIdx2, false, neighbours)) //
 				.forEach(System.out::println) //
 		;
+
+		showCacheStats();
 	}
 
 	/**
@@ -247,6 +294,9 @@ public class CoEvolutionLikelihood {
 		Timer.showStdErr("Pre-calculating matrix exponentials");
 		precalcExps();
 
+		// Identical columns have the same likelihood: Use column patterns
+		msas.calcPatterns();
+
 		// Calculate likelihoods
 		Timer.showStdErr("Calculating likelihood on all pairs");
 		Set<String> genes = idMapper.getEntries().stream().map(im -> im.geneName).collect(Collectors.toSet());
@@ -266,74 +316,50 @@ public class CoEvolutionLikelihood {
 					logLikelihoodGenes(g1, g2, msasByGeneName.get(g1), msasByGeneName.get(g2), outDir); //
 					} //
 				);
+
+		showCacheStats();
 	}
 
 	/**
 	 * Calculate likelihood for the 'alternative model' (H1, i.e. using Qhat2)
 	 */
 	public double likelihoodAltModel(LikelihoodTreeAa tree, byte seq1[], byte seq2[]) {
-		// Set sequence and calculate likelihood
-		tree.setLeafSequenceAaPair(seq1, seq2);
-		double lik = tree.likelihood(Q2, aaFreqsContact);
-		return lik;
+		return Math.exp(logLikelihoodAltModel(tree, seq1, seq2));
 	}
 
 	/**
-	 * Calculate likelihood for the 'alternative model' (H1, i.e. using Qhat2)
+	 * Likelihood 'null distribution
 	 */
-	double likelihoodAltModel(LikelihoodTreeAa tree, MultipleSequenceAlignment msa1, int idx1, MultipleSequenceAlignment msa2, int idx2) {
-		// Set sequence and calculate likelihood
-		byte seq1[] = msa1.getColumn(idx1);
-		byte seq2[] = msa2.getColumn(idx2);
-		return likelihoodAltModel(tree, seq1, seq2);
+	public void likelihoodNullModel(long numSamples, int neighbours) {
+		likelihoodNullModel(new LikelihoodNullSampler(this, neighbours), numSamples);
 	}
 
 	/**
-	 * Likelihood 'null distribution
+	 * Likelihood 'null distribution (see LikelihoodNullSampler for chunks, output files and splits)
 	 */
-	public void likelihoodNullModel(int numSamples, int neighbours) {
+	public void likelihoodNullModel(LikelihoodNullSampler sampler, long numSamples) {
 		// Pre-calculate matrix exponentials
 		Timer.showStdErr("Pre-calculating matrix exponentials");
 		precalcExps();
 
 		// Calculate likelihoods
-		Timer.showStdErr("Calculating likelihood on AA pairs in contact");
-		IntStream.range(0, numSamples).parallel() //
-				.mapToObj(i -> likelihoodRatioRand(neighbours)) // Calculate likelihood
-				.forEach(System.out::println);
-	}
-
-	/**
-	 * Calculate likelihood for the 'null model' (H0, i.e. using Qhat)
-	 */
-	public double likelihoodNullModel(LikelihoodTreeAa tree, byte seq1b[], byte seq2b[]) {
-		// Set sequence and calculate likelihood
-		tree.setLeafSequenceCode(sequenceGaps(seq1b, seq2b));
-		double lik1 = tree.likelihood(Q, aaFreqs);
-
-		// Set sequence and calculate likelihood
-		tree.setLeafSequenceCode(sequenceGaps(seq2b, seq1b));
-		double lik2 = tree.likelihood(Q, aaFreqs);
+		Timer.showStdErr("Calculating likelihood on random AA pairs");
+		sampler.run(numSamples);
 
-		double lik = lik1 * lik2;
-		return lik;
+		showCacheStats();
 	}
 
 	/**
 	 * Calculate likelihood for the 'null model' (H0, i.e. using Qhat)
 	 */
-	double likelihoodNullModel(LikelihoodTreeAa tree, MultipleSequenceAlignment msa1, int idx1, MultipleSequenceAlignment msa2, int idx2) {
-		// Get sequences
-		byte seq1b[] = msa1.getColumn(idx1);
-		byte seq2b[] = msa2.getColumn(idx2);
-		return likelihoodNullModel(tree, seq1b, seq2b);
-
+	public double likelihoodNullModel(LikelihoodTreeAa tree, byte seq1b[], byte seq2b[]) {
+		return Math.exp(logLikelihoodNullModel(tree, seq1b, seq2b));
 	}
 
 	/**
 	 * Pick two random columns from MSA and calculate likelihood ratio
 	 */
-	String likelihoodRatioRand(int neighbours) {
+	String likelihoodRatioRand(int neighbours, SplittableRandom random) {
 		// Pick different transcripts
 		MultipleSequenceAlignment msa1, msa2;
 		do {
@@ -343,8 +369,8 @@ public class CoEvolutionLikelihood {
 
 		int msaIdx1 = -1, msaIdx2 = -1;
 		for (int i = 0; (msaIdx1 < 0 || msaIdx2 < 0 || msa1.isSkip(msaIdx1) || msa2.isSkip(msaIdx2)) && i < MAX_RAND_ITER; i++) {
-			msaIdx1 = random.nextInt(msa1.getAaSeqLen());
-			msaIdx2 = random.nextInt(msa2.getAaSeqLen());
+			msaIdx1 = msa1.randomColumnNumber(random);
+			msaIdx2 = msa2.randomColumnNumber(random);
 		}
 
 		return logLikelihoodRatioStr(msa1, msaIdx1, msa2, msaIdx2, false, neighbours);
@@ -382,6 +408,8 @@ public class CoEvolutionLikelihood {
 				.filter(gp -> gp.mapGenomic2Msa(pdbGenomeMsas)) // Successfully mapped to MSA ?
 				.forEach(gp -> logLikelihoodGenomicPosVsTranscript(outDir, gp)) // Calculate likelihood
 		;
+
+		showCacheStats();
 	}
 
 	void loadTree(String phyloFileName) {
@@ -390,6 +418,41 @@ public class CoEvolutionLikelihood {
 		tree.load(phyloFileName);
 	}
 
+	/**
+	 * Calculate log-likelihood for the 'alternative model' (H1, i.e. using Qhat2)
+	 */
+	public double logLikelihoodAltModel(LikelihoodTreeAa tree, byte seq1[], byte seq2[]) {
+		// Set sequence and calculate likelihood
+		tree.setLeafSequenceAaPair(seq1, seq2);
+		return tree.logLikelihood(Q2, aaFreqsContact);
+	}
+
+	/**
+	 * Calculate log-likelihoods for the 'alternative model' (H1, i.e. using Qhat2) for many column pairs
+	 * Columns pairs are 'seqs1[k]' and 'seqs2[k]', all pairs are calculated in blocks (see LikelihoodTreeAa)
+	 */
+	public double[] logLikelihoodAltModel(LikelihoodTreeAa tree, byte seqs1[][], byte seqs2[][]) {
+		if (seqs1.length != seqs2.length) throw new RuntimeException("Number of columns do not match: " + seqs1.length + " != " + seqs2.length);
+
+		int codes[][] = new int[seqs1.length][];
+		for (int k = 0; k < seqs1.length; k++) {
+			byte seq1[] = seqs1[k], seq2[] = seqs2[k];
+			if (seq1.length != seq2.length) throw new RuntimeException("Sequence lengths do not match: " + seq1.length + " != " + seq2.length);
+			codes[k] = aaPairCodes(ByteBuffer.wrap(seq1), 0, ByteBuffer.wrap(seq2), 0, seq1.length);
+		}
+
+		return tree.logLikelihood(Q2, aaFreqsContact, codes);
+	}
+
+	/**
+	 * Calculate log-likelihood for the 'alternative model' (H1, i.e. using Qhat2)
+	 */
+	double logLikelihoodAltModel(LikelihoodTreeAa tree, MultipleSequenceAlignment msa1, int idx1, MultipleSequenceAlignment msa2, int idx2) {
+		// Set sequence and calculate likelihood
+		tree.setLeafSequenceCode(aaPairCodes(msa1.getAlign(), msa1.getColumnOffset(idx1), msa2.getAlign(), msa2.getColumnOffset(idx2), msa1.getNumSeqs()));
+		return tree.logLikelihood(Q2, aaFreqsContact);
+	}
+
 	/**
 	 * Calculate log-likelihood ratio for all MSAs matching gene names
 	 * Output format:
@@ -417,11 +480,13 @@ public class CoEvolutionLikelihood {
 			// Compare all MSA combinations
 			for (MultipleSequenceAlignment msa1 : msasGene1)
 				for (MultipleSequenceAlignment msa2 : msasGene2) {
-					String key = msa1.getId() + "\t" + msa2.getId();
+					// Already calculated? Ignore (genes are processed in parallel)
+					boolean isNew;
+					synchronized (done) {
+						isNew = done.add(msaPairKey(msa1, msa2));
+					}
 
-					// Already calculated? Ignore
-					if (!done.contains(key)) {
-						done.add(key);
+					if (isNew) {
 						String lout = logLikelihoodRatio(msa1, msa2, true);
 						if (!lout.isEmpty()) tmp.write(lout + "\n");
 					}
@@ -464,8 +529,9 @@ public class CoEvolutionLikelihood {
 
 		// Compare position from VCF against ALL other possitions in the transcript
 		for (MultipleSequenceAlignment msaTr : msasTr) {
+			double logLiks[][] = logLikelihoodNullAlt(msaVcf, aaIdxVcf, msaTr);
 			for (int aaIdxTr = 0; aaIdxTr < msaTr.getAaSeqLen(); aaIdxTr++) {
-				String res = logLikelihoodRatioStr(msaVcf, aaIdxVcf, msaTr, aaIdxTr, true);
+				String res = logLikelihoodRatioStr(msaVcf, aaIdxVcf, msaTr, aaIdxTr, true, logLiks[aaIdxTr]);
 
 				// Show & update output
 				String outLine = gp.getId() + "\t" + res;
@@ -480,21 +546,146 @@ public class CoEvolutionLikelihood {
 	}
 
 	/**
-	 * Calculate likelihood ratio for these entries
+	 * Calculate log-likelihoods for both null and alternative models: { logLikNull, logLikAlt }
+	 *
+	 * Note: Results only depend on the columns, so they are memoized by
+	 * column pattern pair (if column patterns have been calculated)
 	 */
-	double logLikelihoodRatio(MultipleSequenceAlignment msa1, int msaIdx1, MultipleSequenceAlignment msa2, int msaIdx2, GwasResult gwasRes) {
+	double[] logLikelihoodNullAlt(MultipleSequenceAlignment msa1, int msaIdx1, MultipleSequenceAlignment msa2, int msaIdx2) {
+		// Already calculated for these column patterns?
+		int pid1 = msa1.getPatternId(msaIdx1);
+		int pid2 = msa2.getPatternId(msaIdx2);
+		Long key = null;
+		if (pid1 >= 0 && pid2 >= 0) {
+			key = (((long) pid1) << 32) | pid2;
+			double logLiks[] = logLikByPatternPair.get(key);
+			if (logLiks != null) return logLiks;
+		}
+
 		// Since we execute in parallel, we need one tree per thread
 		LikelihoodTreeAa treeNull = getTreeNull();
 		LikelihoodTreeAa treeAlt = getTreeAlt();
 
 		// Calculate likelihoods for the null and alternative model
-		double likNull = likelihoodNullModel(treeNull, msa1, msaIdx1, msa2, msaIdx2);
-		double likAlt = likelihoodAltModel(treeAlt, msa1, msaIdx1, msa2, msaIdx2);
-		double logLikRatio = -2.0 * (Math.log(likNull) - Math.log(likAlt));
+		double logLikNull = logLikelihoodNullModel(treeNull, msa1, msaIdx1, msa2, msaIdx2);
+		double logLikAlt = logLikelihoodAltModel(treeAlt, msa1, msaIdx1, msa2, msaIdx2);
+		double logLiks[] = { logLikNull, logLikAlt };
+
+		if (key != null) logLikByPatternPair.put(key, logLiks);
+		return logLiks;
+	}
+
+	/**
+	 * Calculate log-likelihoods for both null and alternative models, for
+	 * column 'msaIdx1' in 'msa1' against all columns in 'msa2': { logLikNull, logLikAlt }[msaIdx2]
+	 *
+	 * Alternative model likelihoods not found in the pattern pair cache are
+	 * calculated in blocks (i.e. many columns per tree traversal)
+	 */
+	double[][] logLikelihoodNullAlt(MultipleSequenceAlignment msa1, int msaIdx1, MultipleSequenceAlignment msa2) {
+		int len = msa2.getAaSeqLen();
+		double logLiks[][] = new double[len][];
+		int pid1 = msa1.getPatternId(msaIdx1);
+
+		// Find which column pairs are not in the cache
+		List<Integer> pending = new ArrayList<Integer>();
+		for (int msaIdx2 = 0; msaIdx2 < len; msaIdx2++) {
+			int pid2 = msa2.getPatternId(msaIdx2);
+			if (pid1 >= 0 && pid2 >= 0) logLiks[msaIdx2] = logLikByPatternPair.get((((long) pid1) << 32) | pid2);
+			if (logLiks[msaIdx2] == null) pending.add(msaIdx2);
+		}
+		if (pending.isEmpty()) return logLiks;
+
+		// Since we execute in parallel, we need one tree per thread
+		LikelihoodTreeAa treeNull = getTreeNull();
+		LikelihoodTreeAa treeAlt = getTreeAlt();
+
+		// Alternative model: All pending columns at once
+		ByteBuffer align1 = msa1.getAlign(), align2 = msa2.getAlign();
+		int offset1 = msa1.getColumnOffset(msaIdx1);
+		int codes[][] = new int[pending.size()][];
+		for (int k = 0; k < pending.size(); k++)
+			codes[k] = aaPairCodes(align1, offset1, align2, msa2.getColumnOffset(pending.get(k)), msa1.getNumSeqs());
+		double logLiksAlt[] = treeAlt.logLikelihood(Q2, aaFreqsContact, codes);
+
+		// Null model (memoized by column) and update cache
+		for (int k = 0; k < pending.size(); k++) {
+			int msaIdx2 = pending.get(k);
+			double logLikNull = logLikelihoodNullModel(treeNull, msa1, msaIdx1, msa2, msaIdx2);
+			logLiks[msaIdx2] = new double[] { logLikNull, logLiksAlt[k] };
+
+			int pid2 = msa2.getPatternId(msaIdx2);
+			if (pid1 >= 0 && pid2 >= 0) logLikByPatternPair.put((((long) pid1) << 32) | pid2, logLiks[msaIdx2]);
+		}
+
+		return logLiks;
+	}
+
+	/**
+	 * Calculate log-likelihood for the 'null model' (H0, i.e. using Qhat)
+	 */
+	public double logLikelihoodNullModel(LikelihoodTreeAa tree, byte seq1b[], byte seq2b[]) {
+		// Set sequence and calculate likelihood
+		tree.setLeafSequenceCode(sequenceGaps(seq1b, seq2b));
+		double logLik1 = tree.logLikelihood(Q, aaFreqs);
+
+		// Set sequence and calculate likelihood
+		tree.setLeafSequenceCode(sequenceGaps(seq2b, seq1b));
+		double logLik2 = tree.logLikelihood(Q, aaFreqs);
+
+		return logLik1 + logLik2;
+	}
+
+	/**
+	 * Calculate log-likelihood for the 'null model' (H0, i.e. using Qhat)
+	 */
+	double logLikelihoodNullModel(LikelihoodTreeAa tree, MultipleSequenceAlignment msa1, int idx1, MultipleSequenceAlignment msa2, int idx2) {
+		// Get sequences (no copy)
+		ByteBuffer align1 = msa1.getAlign(), align2 = msa2.getAlign();
+		int offset1 = msa1.getColumnOffset(idx1), offset2 = msa2.getColumnOffset(idx2);
+		int n = msa1.getNumSeqs();
+
+		// Each term only depends on one column and the gaps in the other column
+		long gapMask[] = gapMask(align1, offset1, align2, offset2, n);
+		return logLikelihoodNullModel(tree, msa1, idx1, align1, offset1, align2, offset2, gapMask) + logLikelihoodNullModel(tree, msa2, idx2, align2, offset2, align1, offset1, gapMask);
+	}
+
+	/**
+	 * Calculate log-likelihood for the 'null model' for one column (codes1[offset1 ...]), using gaps from both columns.
+	 * Results are memoized by (msaIdNum, idx, gapMask)
+	 */
+	double logLikelihoodNullModel(LikelihoodTreeAa tree, MultipleSequenceAlignment msa, int idx, ByteBuffer codes1, int offset1, ByteBuffer codes2, int offset2, long gapMask[]) {
+		ColumnGapKey key = new ColumnGapKey(ColumnGapKey.column(msa.getIdNum(), idx), gapMask);
+		Double logLik = logLikNullByColumn.get(key);
+		if (logLik != null) {
+			nullCacheHits.incrementAndGet();
+			return logLik;
+		}
+		nullCacheMisses.incrementAndGet();
+
+		// Set sequence and calculate likelihood
+		tree.setLeafSequenceCode(sequenceGaps(codes1, offset1, codes2, offset2, msa.getNumSeqs()));
+		logLik = tree.logLikelihood(Q, aaFreqs);
+
+		logLikNullByColumn.put(key, logLik);
+		return logLik;
+	}
+
+	/**
+	 * Calculate likelihood ratio for these entries
+	 */
+	double logLikelihoodRatio(MultipleSequenceAlignment msa1, int msaIdx1, MultipleSequenceAlignment msa2, int msaIdx2, GwasResult gwasRes) {
+		// Calculate likelihoods for the null and alternative model
+		double logLiks[] = logLikelihoodNullAlt(msa1, msaIdx1, msa2, msaIdx2);
+		double logLikNull = logLiks[0];
+		double logLikAlt = logLiks[1];
+		double logLikRatio = -2.0 * (logLikNull - logLikAlt);
 
 		// Update 'GwasResult'
-		gwasRes.likelihoodMsaNull = likNull;
-		gwasRes.likelihoodMsaAlt = likAlt;
+		gwasRes.logLikelihoodMsaNull = logLikNull;
+		gwasRes.logLikelihoodMsaAlt = logLikAlt;
+		gwasRes.likelihoodMsaNull = Math.exp(logLikNull);
+		gwasRes.likelihoodMsaAlt = Math.exp(logLikAlt);
 		gwasRes.logLikelihoodRatioMsa = logLikRatio;
 
 		return logLikRatio;
@@ -509,8 +700,9 @@ public class CoEvolutionLikelihood {
 		StringBuilder sb = new StringBuilder();
 
 		for (int i1 = 0; i1 < msa1.getAaSeqLen(); i1++) {
+			double logLiks[][] = logLikelihoodNullAlt(msa1, i1, msa2);
 			for (int i2 = 0; i2 < msa2.getAaSeqLen(); i2++) {
-				String res = logLikelihoodRatioStr(msa1, i1, msa2, i2, brief);
+				String res = logLikelihoodRatioStr(msa1, i1, msa2, i2, brief, logLiks[i2]);
 				if (res != null) {
 					if (debug) System.err.println(res);
 					sb.append(res + "\n");
@@ -597,14 +789,18 @@ public class CoEvolutionLikelihood {
 	 * Calculate likelihood ratio for these entries
 	 */
 	String logLikelihoodRatioStr(MultipleSequenceAlignment msa1, int msaIdx1, MultipleSequenceAlignment msa2, int msaIdx2, boolean brief) {
-		// Since we execute in parallel, we need one tree per thread
-		LikelihoodTreeAa treeNull = getTreeNull();
-		LikelihoodTreeAa treeAlt = getTreeAlt();
-
 		// Calculate likelihoods for the null and alternative model
-		double likNull = likelihoodNullModel(treeNull, msa1, msaIdx1, msa2, msaIdx2);
-		double likAlt = likelihoodAltModel(treeAlt, msa1, msaIdx1, msa2, msaIdx2);
-		double logLikRatio = -2.0 * (Math.log(likNull) - Math.log(likAlt));
+		double logLiks[] = logLikelihoodNullAlt(msa1, msaIdx1, msa2, msaIdx2);
+		return logLikelihoodRatioStr(msa1, msaIdx1, msa2, msaIdx2, brief, logLiks);
+	}
+
+	/**
+	 * Likelihood ratio string from pre-calculated log-likelihoods { logLikNull, logLikAlt }
+	 */
+	String logLikelihoodRatioStr(MultipleSequenceAlignment msa1, int msaIdx1, MultipleSequenceAlignment msa2, int msaIdx2, boolean brief, double logLiks[]) {
+		double logLikNull = logLiks[0];
+		double logLikAlt = logLiks[1];
+		double logLikRatio = -2.0 * (logLikNull - logLikAlt);
 
 		// Return results
 		String seqsStr = "";
@@ -616,8 +812,8 @@ public class CoEvolutionLikelihood {
 
 		return msa1.getId() + "[" + msaIdx1 + "]\t" + msa2.getId() + "[" + msaIdx2 + "]"//
 				+ "\t" + logLikRatio //
-				+ "\t" + likNull //
-				+ "\t" + likAlt //
+				+ "\t" + Math.exp(logLikNull) //
+				+ "\t" + Math.exp(logLikAlt) //
 				+ seqsStr //
 		;
 	}
@@ -633,6 +829,10 @@ public class CoEvolutionLikelihood {
 		return llrn + "\t" + msa1.getId() + "[" + msaIdx1 + "]\t" + msa2.getId() + "[" + msaIdx2 + "]";
 	}
 
+	public String logLikelihoodRatioStr(int msaIdNum1, int msaIdx1, int msaIdNum2, int msaIdx2, boolean brief, int neighbours) {
+		return logLikelihoodRatioStr(msas.getMsa(msaIdNum1), msaIdx1, msas.getMsa(msaIdNum2), msaIdx2, brief, neighbours);
+	}
+
 	public String logLikelihoodRatioStr(String msaId1, int msaIdx1, String msaId2, int msaIdx2, boolean brief, int neighbours) {
 		MultipleSequenceAlignment msa1 = msas.getMsa(msaId1);
 		if (msa1 == null) return null;
@@ -643,6 +843,22 @@ public class CoEvolutionLikelihood {
 		return logLikelihoodRatioStr(msa1, msaIdx1, msa2, msaIdx2, brief, neighbours);
 	}
 
+	/**
+	 * Key for a pair of MSAs (packed integer IDs)
+	 */
+	long msaPairKey(MultipleSequenceAlignment msa1, MultipleSequenceAlignment msa2) {
+		return (((long) msa1.getIdNum()) << 32) | (msa2.getIdNum() & 0xffffffffL);
+	}
+
+	/**
+	 * Create a new tree (copy of the one loaded from 'treeFile')
+	 */
+	LikelihoodTreeAa newTree(UniformTreeValueCache lcache) {
+		LikelihoodTreeAa newTree = tree.copyTree();
+		newTree.setLcache(lcache);
+		return newTree;
+	}
+
 	/**
 	 * Pre-calculate matrix exponential
 	 */
@@ -655,25 +871,47 @@ public class CoEvolutionLikelihood {
 		// Pre-calculate Q's exponentials
 		times.parallelStream() //
 				.peek(t -> System.err.println("Matrix\tdim:" + Q.getRowDimension() + "x" + Q.getColumnDimension() + "\tExp(" + t + ")")) //
-				.forEach(t -> Q.matrix(t)) //
+				.forEach(t -> Q.matrixFlat(t)) //
 		;
 
 		// Calculate all gene-gene
 		(cpus == 1 ? times.stream() : times.parallelStream()) //
 				.peek(t -> System.err.println("Matrix\tdim:" + Q2.getRowDimension() + "x" + Q2.getColumnDimension() + "\tExp(" + t + ")")) //
-				.forEach(t -> Q2.matrix(t)) //
+				.forEach(t -> Q2.matrixFlat(t)) //
 		;
 	}
 
+	/**
+	 * Show memoization statistics
+	 */
+	public void showCacheStats() {
+		long hits = nullCacheHits.get();
+		long total = hits + nullCacheMisses.get();
+		double hitRate = total > 0 ? ((double) hits) / total : 0.0;
+		Timer.showStdErr("Null model cache (by column): hits " + hits + " / " + total + " (" + String.format("%.1f%%", 100.0 * hitRate) + "), entries " + logLikNullByColumn.size() + ", evicted " + logLikNullByColumn.getEvicted() //
+				+ ". Pattern pair cache: entries " + logLikByPatternPair.size() + ", evicted " + logLikByPatternPair.getEvicted() //
+		);
+		Timer.showStdErr("Uniform sub-tree cache. Null model: " + lcacheNull + ". Alt model: " + lcacheAlt);
+	}
+
 	/**
 	 * Create a copy of 'seq1' having gaps present in either seq1 or seq2
 	 */
 	int[] sequenceGaps(byte seq1[], byte seq2[]) {
-		int c[] = new int[seq1.length];
+		return sequenceGaps(ByteBuffer.wrap(seq1), 0, ByteBuffer.wrap(seq2), 0, seq1.length);
+	}
 
-		for (int i = 0; i < seq1.length; i++)
-			if (seq1[i] < 0 || seq2[i] < 0) c[i] = -1;
-			else c[i] = seq1[i];
+	/**
+	 * Same as 'sequenceGaps(seq1, seq2)' for columns 'codes1[offset1 ...]' and 'codes2[offset2 ...]'
+	 */
+	int[] sequenceGaps(ByteBuffer codes1, int offset1, ByteBuffer codes2, int offset2, int n) {
+		int c[] = new int[n];
+
+		for (int i = 0; i < n; i++) {
+			byte code1 = codes1.get(offset1 + i);
+			if (code1 < 0 || codes2.get(offset2 + i) < 0) c[i] = -1;
+			else c[i] = code1;
+		}
 
 		return c;
 	}
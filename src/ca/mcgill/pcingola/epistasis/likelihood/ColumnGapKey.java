@@ -0,0 +1,43 @@
+package ca.mcgill.pcingola.epistasis.likelihood;
+
+import java.util.Arrays;
+
+/**
+ * Key used to memoize null model log-likelihoods: An MSA column (packed
+ * MSA idNum and column index) and a bitset of gap positions
+ *
+ * @author pcingola
+ */
+public class ColumnGapKey {
+
+	final long column; // MSA idNum (high 32 bits) and column index (low 32 bits)
+	final long gapMask[]; // Bitset: Positions having a gap (in either column)
+	final int hashCode;
+
+	/**
+	 * Pack MSA idNum and column index
+	 */
+	public static long column(int idNum, int idx) {
+		return (((long) idNum) << 32) | (idx & 0xffffffffL);
+	}
+
+	public ColumnGapKey(long column, long gapMask[]) {
+		this.column = column;
+		this.gapMask = gapMask;
+		hashCode = 31 * Long.hashCode(column) + Arrays.hashCode(gapMask);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) return true;
+		if (!(obj instanceof ColumnGapKey)) return false;
+		ColumnGapKey key = (ColumnGapKey) obj;
+		return column == key.column && hashCode == key.hashCode && Arrays.equals(gapMask, key.gapMask);
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+}
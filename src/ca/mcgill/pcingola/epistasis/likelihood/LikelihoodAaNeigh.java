@@ -54,8 +54,8 @@ public class LikelihoodAaNeigh {
 
 	public void update(GwasResult gwasRes) {
 		logLikelihoodRatio += gwasRes.logLikelihoodRatioMsa;
-		logLikelihoodNull += Math.log(gwasRes.likelihoodMsaNull);
-		logLikelihoodAlt += Math.log(gwasRes.likelihoodMsaAlt);
+		logLikelihoodNull += gwasRes.logLikelihoodMsaNull;
+		logLikelihoodAlt += gwasRes.logLikelihoodMsaAlt;
 		count++;
 	}
 
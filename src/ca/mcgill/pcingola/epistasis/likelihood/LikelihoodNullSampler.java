@@ -0,0 +1,174 @@
+package ca.mcgill.pcingola.epistasis.likelihood;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import ca.mcgill.mcb.pcingola.util.Gpr;
+import ca.mcgill.mcb.pcingola.util.Timer;
+
+/**
+ * Likelihood ratio 'null distribution': Monte-Carlo samples of random column pairs
+ *
+ * Samples are split into chunks of 'chunkSize'. Each chunk has its own random
+ * generator, seeded from 'seed' and the chunk number, so the output of a chunk
+ * does not depend on the number of threads, scheduling or other chunks. All
+ * chunks are submitted to the thread pool at once. Each chunk's output is buffered
+ * and written at once: chunk files as soon as the chunk finishes, output to 'out'
+ * in chunk order (as soon as all previous chunks are done).
+ *
+ * Chunks can be written to one file each ('outDir/null.CHUNK.txt'). Chunks having
+ * an output file are skipped, so an interrupted run can be resumed. Runs can be
+ * distributed across processes using 'numSplits' and 'split' (only chunks where
+ * 'chunk % numSplits == split' are calculated).
+ *
+ * @author pcingola
+ */
+public class LikelihoodNullSampler {
+
+	public static int CHUNK_SIZE = 10000; // Default number of samples per chunk
+	public static long RANDOM_SEED = 20140716;
+
+	boolean verbose = true;
+	int chunkSize = CHUNK_SIZE;
+	int neighbours;
+	int numSplits = 1, split = 0;
+	long seed = RANDOM_SEED;
+	String outDir; // Write each chunk to a file in this directory (null: write to 'out')
+	PrintStream out = System.out;
+	CoEvolutionLikelihood coEvolutionLikelihood;
+
+	public LikelihoodNullSampler(CoEvolutionLikelihood coEvolutionLikelihood, int neighbours) {
+		this.coEvolutionLikelihood = coEvolutionLikelihood;
+		this.neighbours = neighbours;
+	}
+
+	/**
+	 * Calculate all samples in a chunk
+	 */
+	public String chunk(long numSamples, int chunk) {
+		SplittableRandom random = random(chunk);
+		long samples = Math.min(chunkSize, numSamples - ((long) chunk) * chunkSize);
+
+		StringBuilder sb = new StringBuilder();
+		for (long i = 0; i < samples; i++)
+			sb.append(coEvolutionLikelihood.likelihoodRatioRand(neighbours, random) + "\n");
+
+		return sb.toString();
+	}
+
+	/**
+	 * Output file for a chunk
+	 */
+	public String chunkFile(int chunk) {
+		return outDir + "/null." + chunk + ".txt";
+	}
+
+	/**
+	 * Should this chunk be calculated?
+	 */
+	boolean isCalc(int chunk) {
+		if (chunk % numSplits != split) return false;
+		if (outDir != null && Gpr.exists(chunkFile(chunk))) return false; // Already calculated (resume)
+		return true;
+	}
+
+	/**
+	 * Number of chunks needed for 'numSamples'
+	 */
+	public int numChunks(long numSamples) {
+		long numChunks = (numSamples + chunkSize - 1) / chunkSize;
+		if (numChunks > Integer.MAX_VALUE) throw new RuntimeException("Too many chunks (" + numChunks + "), use a larger chunk size");
+		return (int) numChunks;
+	}
+
+	/**
+	 * Random number generator for a chunk
+	 * Note: Seeds for consecutive chunks are mixed, so the streams do not overlap
+	 */
+	SplittableRandom random(int chunk) {
+		long chunkSeed = new SplittableRandom(seed ^ (0x9E3779B97F4A7C15L * (chunk + 1))).nextLong();
+		return new SplittableRandom(chunkSeed);
+	}
+
+	/**
+	 * Calculate 'numSamples' samples
+	 */
+	public void run(long numSamples) {
+		int numChunks = numChunks(numSamples);
+		int chunks[] = IntStream.range(0, numChunks).filter(this::isCalc).toArray();
+		if (verbose) Timer.showStdErr("Likelihood null distribution: " + numSamples + " samples, " + numChunks + " chunks (" + chunkSize + " samples per chunk), calculating " + chunks.length + " chunks" + (outDir != null ? ", output dir '" + outDir + "'" : ""));
+		if (outDir != null) (new File(outDir)).mkdirs();
+
+		// Submit all chunks. Chunk files are written as soon as each chunk finishes
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		AtomicInteger finished = new AtomicInteger();
+		List<ForkJoinTask<String>> tasks = new ArrayList<>(chunks.length);
+		for (int chunk : chunks)
+			tasks.add(pool.submit(() -> {
+				String chunkOut = chunk(numSamples, chunk);
+				if (outDir != null) {
+					write(chunk, chunkOut);
+					chunkOut = null;
+				}
+				if (verbose) Timer.showStdErr("Likelihood null distribution: Finished " + finished.incrementAndGet() + " / " + chunks.length + " chunks");
+				return chunkOut;
+			}));
+
+		// Wait for all chunks. Output to 'out' is written in chunk order
+		for (int i = 0; i < chunks.length; i++) {
+			String chunkOut = tasks.get(i).join();
+			if (chunkOut != null) write(chunks[i], chunkOut);
+		}
+	}
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public void setOut(PrintStream out) {
+		this.out = out;
+	}
+
+	public void setOutDir(String outDir) {
+		this.outDir = outDir;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public void setSplit(int numSplits, int split) {
+		if (numSplits <= 0 || split < 0 || split >= numSplits) throw new RuntimeException("Invalid split " + split + " / " + numSplits);
+		this.numSplits = numSplits;
+		this.split = split;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Write a chunk's output (to 'out' or to the chunk's file)
+	 */
+	void write(int chunk, String chunkOut) {
+		if (outDir == null) {
+			out.print(chunkOut);
+			out.flush();
+			return;
+		}
+
+		// Write to a temporary file and then rename, so that partial files are never used on resume
+		String outFile = chunkFile(chunk);
+		String tmpFile = outFile + ".tmp";
+		Gpr.toFile(tmpFile, chunkOut);
+		if (!(new File(tmpFile)).renameTo(new File(outFile))) throw new RuntimeException("Cannot rename file '" + tmpFile + "' to '" + outFile + "'");
+	}
+
+}
@@ -11,7 +11,9 @@ import ca.mcgill.mcb.pcingola.util.Gpr;
 import ca.mcgill.mcb.pcingola.util.Timer;
 import ca.mcgill.mcb.pcingola.vcf.VcfEntry;
 import ca.mcgill.pcingola.epistasis.Genotype;
+import ca.mcgill.pcingola.epistasis.gwas.GenotypePairStats;
 import ca.mcgill.pcingola.epistasis.gwas.GwasResult;
+import ca.mcgill.pcingola.regression.DesignMatrix;
 import ca.mcgill.pcingola.regression.LogisticRegression;
 import ca.mcgill.pcingola.regression.LogisticRegressionIrwls;
 
@@ -37,7 +39,10 @@ public class LogisticRegressionGt {
 	int numGtAlt = 1, numGtNull = 0;
 	int deltaDf = 1; // Difference in degrees of freedom between Alt and Null model
 	double covariates[][];
+	double covariatesCols[][]; // Covariates, column-major: covariatesCols[covariate][sample] (shared by all models)
+	double covariatesGram[][]; // Cross product of covariates and intercept over all samples (shared by all models)
 	double pheno[];
+	long phenoMissing[]; // Missing phenotypes (bitset, see GenotypePairStats)
 	double logLik = 0;
 	double logLikMax = Double.NEGATIVE_INFINITY;
 	String logLikInfoField; // If not null, an INFO field is added
@@ -122,32 +127,14 @@ public class LogisticRegressionGt {
 	protected LogisticRegression createAltModel(GwasResult gwasResult, double phenoNonSkip[]) {
 		LogisticRegression lrAlt = new LogisticRegressionIrwls(numCovariates + 1); // Add genotype
 
-		// Copy all covariates (except one that are skipped)
-		int totalSamples = numSamples - gwasResult.getCountSkip();
-		double xAlt[][] = new double[totalSamples][numCovariates + 1];
-
-		boolean skip[] = gwasResult.getSkip();
-		byte gt[] = gwasResult.genoi.getGt();
-		int idx = 0;
-		double gtmax = Double.NEGATIVE_INFINITY, gtmin = Double.POSITIVE_INFINITY;
-		for (int i = 0; i < numSamples; i++) {
-			if (skip[i]) continue;
-
-			// First row from phenotypes file is phenotype. But we want to predict using 'genotype', so we replace it
-			xAlt[idx][0] = gt[i];
-
-			gtmax = Math.max(gtmax, gt[i]);
-			gtmin = Math.min(gtmin, gt[i]);
-
-			// Copy all other covariates
-			for (int j = 0; j < numCovariates; j++)
-				xAlt[idx][j + 1] = covariates[i][j];
-
-			idx++;
-		}
+		// Genotype column (only samples that are not skipped) and shared covariates
+		// Note: First row from phenotypes file is phenotype. But we want to predict using 'genotype'
+		double gts[][] = { gwasResult.gtiNoSkip() };
+		DesignMatrix xAlt = new DesignMatrix(gts, covariatesCols, gwasResult.rowsNoSkip(), true);
+		xAlt.setSharedGram(covariatesGram);
 
 		// Set samples
-		lrAlt.setSamplesAddIntercept(xAlt, phenoNonSkip);
+		lrAlt.setSamples(xAlt, phenoNonSkip);
 		lrAlt.setDebug(debug);
 
 		this.lrAlt = lrAlt;
@@ -160,22 +147,12 @@ public class LogisticRegressionGt {
 	protected LogisticRegression createNullModel(boolean skip[], int countSkip, double phenoNonSkip[]) {
 		LogisticRegression lrNull = new LogisticRegressionIrwls(numCovariates); // Null model: No genotypes
 
-		// Copy all covariates (except one that are skipped)
-		int totalSamples = numSamples - countSkip;
-		double xNull[][] = new double[totalSamples][numCovariates];
-
-		int idx = 0;
-		for (int i = 0; i < numSamples; i++) {
-			if (skip[i]) continue;
-
-			for (int j = 0; j < numCovariates; j++)
-				xNull[idx][j] = covariates[i][j];
-
-			idx++;
-		}
+		// Only shared covariates (samples that are not skipped)
+		DesignMatrix xNull = new DesignMatrix(new double[0][], covariatesCols, DesignMatrix.rows(skip, countSkip), true);
+		xNull.setSharedGram(covariatesGram);
 
 		// Set samples
-		lrNull.setSamplesAddIntercept(xNull, phenoNonSkip);
+		lrNull.setSamples(xNull, phenoNonSkip);
 		lrNull.setDebug(debug);
 
 		this.lrNull = lrNull;
@@ -228,7 +205,7 @@ public class LogisticRegressionGt {
 	/**
 	 * Load phenotypes and covariates
 	 */
-	void loadPhenoAndCovariates(String phenoCovariates) {
+	public void loadPhenoAndCovariates(String phenoCovariates) {
 		Timer.showStdErr("Reading data form '" + phenoCovariates + "'");
 
 		// Read "phenotypes + covariates" file
@@ -265,6 +242,7 @@ public class LogisticRegressionGt {
 
 			lineNum++;
 		}
+		phenoMissing = GenotypePairStats.missing(pheno);
 		Timer.showStdErr("Done. Phenotype and " + covNum + "/" + numCovariates + " covariates for " + numSamples + " samples.");
 
 		//---
@@ -272,6 +250,9 @@ public class LogisticRegressionGt {
 		//---
 		for (int cov : covariatesToNormalize)
 			normalizeCovariates(cov);
+
+		covariatesCols = DesignMatrix.columns(covariates);
+		covariatesGram = DesignMatrix.gram(covariatesCols, true);
 	}
 
 	/**
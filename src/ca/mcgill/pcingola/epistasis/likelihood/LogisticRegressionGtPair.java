@@ -10,7 +10,9 @@ import ca.mcgill.mcb.pcingola.util.Gpr;
 import ca.mcgill.mcb.pcingola.util.Timer;
 import ca.mcgill.mcb.pcingola.vcf.VcfEntry;
 import ca.mcgill.pcingola.epistasis.Genotype;
+import ca.mcgill.pcingola.epistasis.gwas.GenotypePairStats;
 import ca.mcgill.pcingola.epistasis.gwas.GwasResult;
+import ca.mcgill.pcingola.regression.DesignMatrix;
 import ca.mcgill.pcingola.regression.LogisticRegression;
 import ca.mcgill.pcingola.regression.LogisticRegressionIrwls;
 
@@ -23,6 +25,12 @@ public class LogisticRegressionGtPair extends LogisticRegressionGt {
 
 	ArrayList<String> keys;
 	HashMap<String, Genotype> gtByKey;
+	GenotypePairStats pairStats = new GenotypePairStats(); // Re-used for each pair (not thread safe)
+	double scoreThreshold = 0.0; // Only fit 'Alt' model if the score test statistic is at least this value (0: always fit)
+	int countScoreFiltered = 0; // Number of pairs where 'Alt' model was not fitted (score test)
+	boolean warmStart = true; // Start fitting 'Alt' model from 'Null' model's solution (interaction term set to zero)
+	int countFitNull = 0, countFitAlt = 0; // Number of models fitted
+	long iterationsNull = 0, iterationsAlt = 0; // Total number of IRWLS iterations
 
 	public static void main(String[] args) {
 		Timer.showStdErr("Start");
@@ -61,39 +69,23 @@ public class LogisticRegressionGtPair extends LogisticRegressionGt {
 	protected LogisticRegression createAltModel(GwasResult gwasResult, double phenoNonSkip[]) {
 		LogisticRegression lrAlt = new LogisticRegressionIrwls(numCovariates + 3); // Alt model: Include "combined" genotype gtij[]
 
-		// Copy all covariates (except one that are skipped)
-		int totalSamples = numSamples - gwasResult.getCountSkip();
-		double xAlt[][] = new double[totalSamples][numCovariates + 3];
+		// Genotype columns (only samples that are not skipped) and shared covariates
+		double gti[] = gwasResult.gtiNoSkip();
+		double gtj[] = gwasResult.gtjNoSkip();
+		double gtij[] = gwasResult.gtijNoSkip(); // Combined genotype: gti[i] * gtj[i]
+		double gts[][] = { gti, gtj, gtij };
+		DesignMatrix xAlt = new DesignMatrix(gts, covariatesCols, gwasResult.rowsNoSkip(), true);
+		xAlt.setSharedGram(covariatesGram);
 
-		int idx = 0;
 		boolean oki = false, okj = false, okij = false;
-		byte gti[] = gwasResult.genoi.getGt();
-		byte gtj[] = gwasResult.genoj.getGt();
-		byte gtij[] = gwasResult.gtij;
-		boolean skip[] = gwasResult.getSkip();
-
-		for (int i = 0; i < numSamples; i++) {
-			if (skip[i]) continue;
-
-			// Add genotypes
-			xAlt[idx][0] = gti[i];
-			xAlt[idx][1] = gtj[i];
-			xAlt[idx][2] = gtij[i]; // Combined genotype: gti[i] * gtj[i]
-
-			for (int j = 0; j < numCovariates; j++)
-				xAlt[idx][j + 3] = covariates[i][j];
-
-			if (idx > 0) {
-				oki |= (xAlt[idx][0] != xAlt[idx - 1][0]);
-				okj |= (xAlt[idx][1] != xAlt[idx - 1][1]);
-				okij |= (xAlt[idx][2] != xAlt[idx - 1][2]);
-			}
-
-			idx++;
+		for (int idx = 1; idx < gti.length; idx++) {
+			oki |= (gti[idx] != gti[idx - 1]);
+			okj |= (gtj[idx] != gtj[idx - 1]);
+			okij |= (gtij[idx] != gtij[idx - 1]);
 		}
 
 		// Set samples
-		lrAlt.setSamplesAddIntercept(xAlt, phenoNonSkip);
+		lrAlt.setSamples(xAlt, phenoNonSkip);
 		lrAlt.setDebug(debug);
 
 		this.lrAlt = lrAlt;
@@ -108,43 +100,54 @@ public class LogisticRegressionGtPair extends LogisticRegressionGt {
 	protected LogisticRegression createNullModel(GwasResult gwasResult, double phenoNonSkip[]) {
 		LogisticRegression lrNull = new LogisticRegressionIrwls(numCovariates + 2); // Null model: Include "simple" genotypes
 
-		// Copy all covariates (except one that are skipped)
-		int totalSamples = numSamples - gwasResult.getCountSkip();
-		double xNull[][] = new double[totalSamples][numCovariates + 2];
+		// Genotype columns (only samples that are not skipped) and shared covariates
+		double gts[][] = { gwasResult.gtiNoSkip(), gwasResult.gtjNoSkip() };
+		DesignMatrix xNull = new DesignMatrix(gts, covariatesCols, gwasResult.rowsNoSkip(), true);
+		xNull.setSharedGram(covariatesGram);
 
-		int idx = 0;
-		byte gti[] = gwasResult.genoi.getGt();
-		byte gtj[] = gwasResult.genoj.getGt();
-		boolean skip[] = gwasResult.getSkip();
+		// Set samples
+		lrNull.setSamples(xNull, phenoNonSkip);
+		lrNull.setDebug(debug);
 
-		for (int i = 0; i < numSamples; i++) {
-			if (skip[i]) continue;
+		this.lrNull = lrNull;
+		return lrNull;
+	}
 
-			xNull[idx][0] = gti[i];
-			xNull[idx][1] = gtj[i];
+	public int getCountFitAlt() {
+		return countFitAlt;
+	}
 
-			for (int j = 0; j < numCovariates; j++)
-				xNull[idx][j + 2] = covariates[i][j];
+	public int getCountFitNull() {
+		return countFitNull;
+	}
 
-			idx++;
-		}
+	public int getCountScoreFiltered() {
+		return countScoreFiltered;
+	}
 
-		// Set samples
-		lrNull.setSamplesAddIntercept(xNull, phenoNonSkip);
-		lrNull.setDebug(debug);
+	public long getIterationsAlt() {
+		return iterationsAlt;
+	}
 
-		this.lrNull = lrNull;
-		return lrNull;
+	public long getIterationsNull() {
+		return iterationsNull;
 	}
 
 	/**
 	 * Calculate log likelihood
 	 */
 	public GwasResult logLikelihood(Genotype genoi, Genotype genoj) {
+		return logLikelihood(genoi, genoj, pairStats(genoi, genoj));
+	}
+
+	/**
+	 * Calculate log likelihood, using statistics already calculated for this pair (see 'pairStats()')
+	 */
+	public GwasResult logLikelihood(Genotype genoi, Genotype genoj, GenotypePairStats pairStats) {
 		//---
 		// Create 'result' object
 		//---
-		GwasResult gwasResult = new GwasResult(genoi, genoj, pheno);
+		GwasResult gwasResult = new GwasResult(genoi, genoj, pheno, phenoMissing, pairStats);
 
 		// Should we filter this pair out?
 		gwasResult.calcSkip();
@@ -160,10 +163,27 @@ public class LogisticRegressionGtPair extends LogisticRegressionGt {
 		//LogisticRegression logRegrNull = createNullModel(skip, countSkip, phenoNonSkip, gti, gtj);
 		LogisticRegression logRegrNull = createNullModel(gwasResult, phenoNonSkip);
 		logRegrNull.learn();
+		countFitNull++;
+		iterationsNull += logRegrNull.getNumIterations();
+
+		// Score test for interaction term: Only fit 'Alt' model if the likelihood ratio could be high enough
+		if (scoreThreshold > 0) {
+			gwasResult.scoreLogReg = logRegrNull.scoreTest(gwasResult.gtijNoSkip());
+			if (gwasResult.scoreLogReg < scoreThreshold) {
+				gwasResult.logisticRegressionNull = logRegrNull;
+				gwasResult.likelihoodLogRegNull = logRegrNull.logLikelihood();
+				countScoreFiltered++;
+				if (debug) Timer.show(count + "\t" + gwasResult.getId() + "\tScore: " + gwasResult.scoreLogReg + "\tBelow threshold " + scoreThreshold + ", Alt model not fitted");
+				return gwasResult;
+			}
+		}
 
 		// Create and calculate 'Alt' model
 		LogisticRegression logRegrAlt = createAltModel(gwasResult, phenoNonSkip);
+		if (warmStart) logRegrAlt.setThetaInit(thetaAltInit(logRegrNull.getTheta()));
 		logRegrAlt.learn();
+		countFitAlt++;
+		iterationsAlt += logRegrAlt.getNumIterations();
 
 		// Set models and calculate likelihood ratio
 		gwasResult.setLogRegModels(logRegrAlt, logRegrNull);
@@ -223,6 +243,22 @@ public class LogisticRegressionGtPair extends LogisticRegressionGt {
 		return gwasResult;
 	}
 
+	/**
+	 * Calculate statistics used to filter this pair, on packed genotypes (no memory is allocated)
+	 * Note: The returned object is re-used for the next pair
+	 */
+	public GenotypePairStats pairStats(Genotype genoi, Genotype genoj) {
+		return pairStats.calc(genoi, genoj, phenoMissing);
+	}
+
+	/**
+	 * Should we filter out this pair? Same criteria as GwasResult.shouldFilter(), but
+	 * calculated on packed genotypes (no memory is allocated)
+	 */
+	public boolean shouldFilter(Genotype genoi, Genotype genoj) {
+		return pairStats(genoi, genoj).shouldFilter();
+	}
+
 	@Override
 	public void run() {
 		//---
@@ -295,4 +331,25 @@ public class LogisticRegressionGtPair extends LogisticRegressionGt {
 		return new ArrayList<VcfEntry>();
 	}
 
+	public void setScoreThreshold(double scoreThreshold) {
+		this.scoreThreshold = scoreThreshold;
+	}
+
+	public void setWarmStart(boolean warmStart) {
+		this.warmStart = warmStart;
+	}
+
+	/**
+	 * Initial parameters for 'Alt' model: Null model's parameters, adding zero for the interaction term gtij
+	 * Note: Parameters are [gti, gtj, covariates..., intercept] for 'Null' and [gti, gtj, gtij, covariates..., intercept] for 'Alt'
+	 */
+	double[] thetaAltInit(double thetaNull[]) {
+		double thetaAlt[] = new double[thetaNull.length + 1];
+		thetaAlt[0] = thetaNull[0];
+		thetaAlt[1] = thetaNull[1];
+		thetaAlt[2] = 0.0;
+		System.arraycopy(thetaNull, 2, thetaAlt, 3, thetaNull.length - 2);
+		return thetaAlt;
+	}
+
 }
@@ -1,11 +1,14 @@
 package ca.mcgill.pcingola.epistasis.msa;
 
 import java.util.List;
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.IntStream;
 
 import ca.mcgill.mcb.pcingola.util.Gpr;
 import ca.mcgill.mcb.pcingola.util.Timer;
+import ca.mcgill.pcingola.epistasis.coEvolutionMetrics.EntropyCounter;
 import ca.mcgill.pcingola.epistasis.coEvolutionMetrics.EntropySeq;
 import ca.mcgill.pcingola.epistasis.coEvolutionMetrics.EntropySeq.InformationFunction;
 import ca.mcgill.pcingola.epistasis.pdb.DistanceResult;
@@ -24,8 +27,10 @@ public class MsaSimilarity {
 	public static final int MIN_AA_DISTANCE = 25;
 	public static final int SCORE_BINS = 1000;
 	public static int SHOW_EVERY = 1000;
+	public static int SAMPLES_PER_CHUNK = 10000; // Background samples using the same random generator
+	public static long RANDOM_SEED = 20140716;
 
-	int count = 1;
+	AtomicInteger count = new AtomicInteger(1);
 	protected int minCount = 0;
 	protected double threshold = 0;
 	protected boolean debug = false;
@@ -33,9 +38,9 @@ public class MsaSimilarity {
 	protected int numBases;
 	protected double max = 0.0;
 	double minScore, maxScore;
-	protected int countScore[];
+	protected LongAdder countScore[]; // Score histogram (bins can be updated concurrently)
 	protected MultipleSequenceAlignmentSet msas;
-	protected Random random = new Random();
+	protected long randomSeed = RANDOM_SEED;
 	protected InformationFunction func = InformationFunction.MI;
 
 	public MsaSimilarity(MultipleSequenceAlignmentSet msas, InformationFunction func) {
@@ -43,14 +48,16 @@ public class MsaSimilarity {
 		this.func = func;
 		minScore = 0.0;
 		maxScore = 1.0;
-		countScore = new int[SCORE_BINS];
+		countScore = new LongAdder[SCORE_BINS];
+		for (int i = 0; i < countScore.length; i++)
+			countScore[i] = new LongAdder();
 		numBases = 1;
 	}
 
 	/**
 	 * Calculate one sample of a random distribution
 	 */
-	void backgroundDistribution() {
+	void backgroundDistribution(SplittableRandom random) {
 		while (true) {
 			// Select one MSA and position randomly
 			MultipleSequenceAlignment msai = msas.rand(random);
@@ -71,23 +78,36 @@ public class MsaSimilarity {
 			double calc = calc(msai, msaj, posi, posj);
 			if (debug) System.err.println(calc + "\t" + showSeqs(msai, msaj, posi, posj));
 			else if (verbose) System.out.printf("%.6e\n", calc);
-			else Gpr.showMark(count++, SHOW_EVERY);
+			else Gpr.showMark(count.getAndIncrement(), SHOW_EVERY);
 			return;
 		}
 	}
 
 	/**
-	 * Measure similarity between all alignments
+	 * Measure similarity between random pairs of alignments
+	 *
+	 * Samples are split into chunks of SAMPLES_PER_CHUNK. Each chunk has its own
+	 * random generator, seeded from 'randomSeed', so the resulting histogram does
+	 * not depend on the number of threads or on scheduling.
 	 */
 	public void backgroundDistribution(int numberOfSamples) {
 		// Pre-calculate skip on all msas
 		msas.calcSkip();
 
+		// One seed per chunk
+		int numChunks = (numberOfSamples + SAMPLES_PER_CHUNK - 1) / SAMPLES_PER_CHUNK;
+		long seeds[] = new SplittableRandom(randomSeed).longs(numChunks).toArray();
+
 		// Calculate in parallel
 		Timer.showStdErr("Calculating " + numberOfSamples + " iterations");
-		IntStream.range(1, numberOfSamples) //
+		IntStream.range(0, numChunks) //
 				.parallel() //
-				.forEach(i -> backgroundDistribution());
+				.forEach(chunk -> {
+					SplittableRandom random = new SplittableRandom(seeds[chunk]);
+					int samples = Math.min(SAMPLES_PER_CHUNK, numberOfSamples - chunk * SAMPLES_PER_CHUNK);
+					for (int i = 0; i < samples; i++)
+						backgroundDistribution(random);
+				});
 	}
 
 	public double calc(DistanceResult d) {
@@ -104,29 +124,22 @@ public class MsaSimilarity {
 	 * Measure similarity: Correlation between two loci
 	 */
 	public double calc(MultipleSequenceAlignment msai, MultipleSequenceAlignment msaj, int posi, int posj) {
-		int numAligns = msas.getNumAligns();
-		byte basesi[] = new byte[numAligns];
-		byte basesj[] = new byte[numAligns];
-
-		// Convert
-		for (int i = 0; i < numAligns; i++) {
-			basesi[i] = msai.getCode(i, posi);
-			basesj[i] = msaj.getCode(i, posj);
-		}
+		// Count directly on alignment columns (no copy)
+		EntropyCounter counter = EntropySeq.counter().count(msai.getAlign(), msai.getColumnOffset(posi), msaj.getAlign(), msaj.getColumnOffset(posj), msas.getNumAligns());
 
 		// Calculate
 		double score = 0;
 		switch (func) {
 		case MI:
-			score = EntropySeq.mutualInformation(basesi, basesj);
+			score = counter.getMi();
 			break;
 
 		case VARINF:
-			score = EntropySeq.variationOfInformation(basesi, basesj);
+			score = counter.getVarInf();
 			break;
 
 		case HXY:
-			score = EntropySeq.entropy(basesi, basesj);
+			score = counter.getHxy();
 			break;
 
 		default:
@@ -144,7 +157,14 @@ public class MsaSimilarity {
 	protected void incScore(double score) {
 		int idx = mapScore(score);
 		if (idx >= countScore.length) throw new RuntimeException("score:" + score + " out of range. maxScore: " + maxScore);
-		countScore[idx]++;
+		countScore[idx].increment();
+	}
+
+	/**
+	 * Number of scores in histogram bin 'idx'
+	 */
+	public long getCountScore(int idx) {
+		return countScore[idx].sum();
 	}
 
 	protected boolean isRecord(double score) {
@@ -183,10 +203,18 @@ public class MsaSimilarity {
 		return second;
 	}
 
+	public void setRandomSeed(long randomSeed) {
+		this.randomSeed = randomSeed;
+	}
+
 	public void setThreshold(double threshold) {
 		this.threshold = threshold;
 	}
 
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
 	/**
 	 * Show columns from MultipleSequenceAlignment
 	 */
@@ -222,7 +250,7 @@ public class MsaSimilarity {
 		sb.append("score\tcount\n");
 		for (int i = 0; i < countScore.length; i++) {
 			double sc = minScore + ((maxScore - minScore) / SCORE_BINS) * i;
-			sb.append(sc + "\t" + countScore[i] + "\n");
+			sb.append(sc + "\t" + countScore[i].sum() + "\n");
 		}
 
 		return sb.toString();
@@ -1,6 +1,7 @@
 package ca.mcgill.pcingola.epistasis.msa;
 
 import java.util.List;
+import java.util.SplittableRandom;
 
 import ca.mcgill.mcb.pcingola.util.Gpr;
 import ca.mcgill.mcb.pcingola.util.GprSeq;
@@ -15,6 +16,8 @@ import ca.mcgill.pcingola.epistasis.pdb.DistanceResult;
  */
 public class MsaSimilarityN extends MsaSimilarity {
 
+	ThreadLocal<EntropySeq> entropyByThread = ThreadLocal.withInitial(EntropySeq::new); // Re-use keys and counters (one per thread)
+
 	public MsaSimilarityN(MultipleSequenceAlignmentSet msas, int numBases, InformationFunction func) {
 		super(msas, func);
 		this.numBases = numBases;
@@ -27,7 +30,7 @@ public class MsaSimilarityN extends MsaSimilarity {
 	 * Calculate one sample of a random distribution
 	 */
 	@Override
-	void backgroundDistribution() {
+	void backgroundDistribution(SplittableRandom random) {
 		while (true) {
 			// Select one MSA and position randomly
 			MultipleSequenceAlignment msai = msas.rand(random);
@@ -48,7 +51,7 @@ public class MsaSimilarityN extends MsaSimilarity {
 			double calc = calc(msai.getId(), msaj.getId(), posi, posj);
 			if (debug) System.err.println(calc + "\t" + showSeqs(msai, msaj, posi, posj));
 			else if (verbose) System.out.printf("%.6e\n", calc);
-			else Gpr.showMark(count++, SHOW_EVERY);
+			else Gpr.showMark(count.getAndIncrement(), SHOW_EVERY);
 			return;
 		}
 	}
@@ -64,11 +67,14 @@ public class MsaSimilarityN extends MsaSimilarity {
 	}
 
 	double calc(String msaiId, String msajId, int posi, int posj) {
-		// Find column sequences
-		String seqsi[] = msas.colSequences(msaiId, posi, numBases);
-		String seqsj[] = msas.colSequences(msajId, posj, numBases);
+		MultipleSequenceAlignment msai = msas.getMsa(msaiId);
+		MultipleSequenceAlignment msaj = msas.getMsa(msajId);
 
 		if (debug) {
+			// Show column sequences
+			String seqsi[] = msas.colSequences(msaiId, posi, numBases);
+			String seqsj[] = msas.colSequences(msajId, posj, numBases);
+
 			System.out.println(msaiId + "\t" + posi);
 			for (int i = 0; i < seqsi.length; i++)
 				System.out.println("\t" + (seqsi[i] != null ? seqsi[i] : ""));
@@ -80,8 +86,8 @@ public class MsaSimilarityN extends MsaSimilarity {
 
 		// Calculate
 		double score = 0;
-		EntropySeq entropy = new EntropySeq();
-		entropy.calc(seqsi, seqsj);
+		EntropySeq entropy = entropyByThread.get();
+		entropy.calc(msai, posi, msaj, posj, numBases);
 		switch (func) {
 		case MI:
 			score = entropy.getMi();
@@ -1,6 +1,8 @@
 package ca.mcgill.pcingola.epistasis.msa;
 
+import java.nio.ByteBuffer;
 import java.util.Random;
+import java.util.SplittableRandom;
 
 import ca.mcgill.mcb.pcingola.interval.Chromosome;
 import ca.mcgill.mcb.pcingola.interval.Marker;
@@ -11,6 +13,14 @@ import ca.mcgill.mcb.pcingola.util.GprSeq;
  *
  * Note: This class does NOT perform an alignmet, only represents the result loaded form a file
  *
+ * Alignments are stored in column-major order (one contiguous array), since
+ * most calculations use columns (i.e. the same position in all species).
+ * Column 'colNum' is 'align[getColumnOffset(colNum) ... getColumnOffset(colNum) + getNumSeqs() - 1]'
+ *
+ * The alignment is either a heap array or, for MSAs loaded from a binary file, a read only
+ * slice of a memory mapped region (see MultipleSequenceAlignmentSet.loadBinary). Buffers are
+ * shared between threads, so only absolute get/put methods are used (position is never changed)
+ *
  * @author pcingola
  */
 public class MultipleSequenceAlignment extends Marker {
@@ -21,15 +31,33 @@ public class MultipleSequenceAlignment extends Marker {
 
 	MultipleSequenceAlignmentSet msas;
 	String transcriptId;
-	byte[][] align;
-	Boolean skip[];
-	String headers[];
+	int idNum = -1, trIdNum = -1; // Dense integer IDs for this MSA and its transcript (assigned by MultipleSequenceAlignmentSet.add)
+	ByteBuffer align; // Column-major: align.get(colNum * numSeqs + seqNum)
+	int numSeqs, length; // Number of sequences (rows) and columns
+	volatile long skip[]; // Bitmap: Should column be skipped? (see calcSkip)
+	long conserved[]; // Bitmap: Is column fully conserved?
+	float gapFraction[]; // Fraction of gaps in each column
+	long headersOffset = -1; // Offset of FASTA headers in binary file (-1 if not loaded from a binary file)
+	String headers[]; // FASTA headers (null entries are loaded on demand, see MultipleSequenceAlignmentSet.loadHeaders)
+	int patternId[]; // Column pattern IDs (see MultipleSequenceAlignmentSet.calcPatterns)
+	int exonNum = -1; // Position of this MSA within its transcript (see MultipleSequenceAlignmentSet.indexTranscripts)
+	int trOffset; // Transcript-wide AA position of the first column
+	MultipleSequenceAlignment prevExon, nextExon; // Previous and next MSAs within the same transcript
 
 	public MultipleSequenceAlignment(MultipleSequenceAlignmentSet msas, String trId, int numAlign, int length) {
+		this(msas, trId, numAlign, length, ByteBuffer.wrap(new byte[numAlign * length]));
+	}
+
+	/**
+	 * Create an MSA backed by 'align' (no copy), e.g. a slice of a memory mapped file
+	 */
+	MultipleSequenceAlignment(MultipleSequenceAlignmentSet msas, String trId, int numAlign, int length, ByteBuffer align) {
 		transcriptId = trId;
 		this.msas = msas;
 
-		align = new byte[numAlign][length];
+		numSeqs = numAlign;
+		this.length = length;
+		this.align = align;
 		headers = new String[numAlign];
 		calcId();
 	}
@@ -38,18 +66,60 @@ public class MultipleSequenceAlignment extends Marker {
 		id = transcriptId + "_" + getChromosomeName() + ":" + start + "-" + end;
 	}
 
-	public synchronized void calcSkip() {
-		for (int i = 0; i < getAaSeqLen(); i++)
-			isSkip(i);
+	/**
+	 * Calculate pattern IDs for all columns, using the pattern dictionary in 'msaSet'
+	 */
+	public void calcPatterns(MultipleSequenceAlignmentSet msaSet) {
+		int pids[] = new int[getAaSeqLen()];
+		for (int i = 0; i < pids.length; i++)
+			pids[i] = msaSet.patternId(align, getColumnOffset(i), numSeqs);
+		patternId = pids;
+	}
+
+	/**
+	 * Calculate 'skip' and 'fully conserved' bitmaps, as well as gap fractions, for all columns (one pass over the alignment)
+	 * Note: Arrays are published by writing 'skip' last, so queries need no locking
+	 */
+	public void calcSkip() {
+		int len = getAaSeqLen();
+		long skip[] = new long[(len + 63) >>> 6];
+		long conserved[] = new long[skip.length];
+		float gapFraction[] = new float[len];
+
+		for (int pos = 0, off = 0; pos < len; pos++, off += numSeqs) {
+			int gaps = 0;
+			boolean fullyConserved = true;
+			byte prevBase = -1;
+
+			for (int i = off; i < off + numSeqs; i++) {
+				byte base = align.get(i);
+				if (base < 0) {
+					gaps++;
+				} else {
+					if (prevBase != base && prevBase >= 0) fullyConserved = false;
+					prevBase = base;
+				}
+			}
+
+			double gapPercent = ((double) gaps) / ((double) numSeqs);
+			gapFraction[pos] = (float) gapPercent;
+			if (fullyConserved) conserved[pos >>> 6] |= 1L << pos;
+
+			// Skip if it is a GAP in the first alignment (human, we only care about human), too many gaps or fully conserved
+			if (align.get(off) < 0 || gapPercent >= MAX_GAP_PERCENT || fullyConserved) skip[pos >>> 6] |= 1L << pos;
+		}
+
+		this.gapFraction = gapFraction;
+		this.conserved = conserved;
+		this.skip = skip;
 	}
 
 	/**
 	 * Count amino acids for a specific alignment
 	 */
 	public void countAa(int alignNum, int[] countAa) {
-		int len = getAaSeqLen();
-		for (int j = 0; j < len; j++) {
-			byte base = align[alignNum][j];
+		for (int j = alignNum; j < align.capacity(); j += numSeqs) {
+			byte base = align.get(j);
 			if (base >= 0) countAa[base]++;
 		}
 	}
@@ -59,8 +129,10 @@ public class MultipleSequenceAlignment extends Marker {
 	 * @param countAa : vector to be updated
 	 */
 	public void countAa(int[] countAa) {
-		for (int i = 0; i < align.length; i++)
-			countAa(i, countAa);
+		for (int i = 0; i < align.capacity(); i++) {
+			byte base = align.get(i);
+			if (base >= 0) countAa[base]++;
+		}
 	}
 
 	/**
@@ -85,12 +157,11 @@ public class MultipleSequenceAlignment extends Marker {
 	 * Count number of transitions between two sequences
 	 */
 	public void countTransitions(int seqNum1, int seqNum2, int counts[][]) {
-		int len = getAaSeqLen();
-		for (int j = 0; j < len; j++) {
-			byte base1 = align[seqNum1][j];
+		for (int off = 0; off < align.capacity(); off += numSeqs) {
+			byte base1 = align.get(off + seqNum1);
 			if (base1 < 0) continue;
 
-			byte base2 = align[seqNum2][j];
+			byte base2 = align.get(off + seqNum2);
 			if (base2 < 0) continue;
 
 			counts[base1][base2]++;
@@ -98,40 +169,40 @@ public class MultipleSequenceAlignment extends Marker {
 	}
 
 	/**
-	 * Percentage of gaps at position 'pos'
+	 * Fraction of gaps at position 'pos'
 	 */
-	double gapPercent(int pos) {
-		int gaps = 0;
-		for (int i = 0; i < getNumSeqs(); i++) {
-			byte base = getCode(i, pos);
-			if (base < 0) gaps++;
-		}
-		return ((double) gaps) / ((double) getNumSeqs());
+	public float gapFraction(int pos) {
+		if (skip == null) calcSkip();
+		return gapFraction[pos];
 	}
 
 	/**
 	 * Sequence length (i.e. number of columns)
 	 */
 	public int getAaSeqLen() {
-		return align[0].length;
+		return length;
 	}
 
-	public byte[][] getAlign() {
+	/**
+	 * Alignment (column-major), see 'getColumnOffset()'
+	 * Note: Buffer may be shared and read only, use absolute 'get(index)' only
+	 */
+	public ByteBuffer getAlign() {
 		return align;
 	}
 
 	public char getChar(int sequenceNum, int baseNum) {
-		return GprSeq.code2aa(align[sequenceNum][baseNum]);
+		return GprSeq.code2aa(getCode(sequenceNum, baseNum));
 	}
 
 	public byte getCode(int sequenceNum, int baseNum) {
-		return align[sequenceNum][baseNum];
+		return align.get(baseNum * numSeqs + sequenceNum);
 	}
 
 	public int getCodeInt(int sequenceNum, int baseStart, int baseCount) {
 		int tot = 0;
 		for (int i = 0; i < baseCount; i++) {
-			byte base = align[sequenceNum][baseStart + i];
+			byte base = getCode(sequenceNum, baseStart + i);
 			if (base == MsaSimilarity.ALIGN_GAP) return 0;
 			tot = (tot << ROTATE_BITS) | base;
 		}
@@ -142,22 +213,29 @@ public class MultipleSequenceAlignment extends Marker {
 	public long getCodeLong(int sequenceNum, int baseStart, int baseCount) {
 		long tot = 0;
 		for (int i = 0; i < baseCount; i++)
-			tot = (tot << 5) | align[sequenceNum][baseStart + i];
+			tot = (tot << 5) | getCode(sequenceNum, baseStart + i);
 		return tot;
 	}
 
 	/**
-	 * Get all characters in column 'colNum'
+	 * Get all characters in column 'colNum' (a copy)
+	 * Note: Use 'getAlign()' and 'getColumnOffset()' to avoid copying
 	 */
 	public byte[] getColumn(int colNum) {
-
-		byte col[] = new byte[getNumSeqs()];
-		for (int i = 0; i < col.length; i++)
-			col[i] = align[i][colNum];
-
+		byte col[] = new byte[numSeqs];
+		ByteBuffer buf = align.duplicate();
+		buf.position(getColumnOffset(colNum));
+		buf.get(col);
 		return col;
 	}
 
+	/**
+	 * Offset of column 'colNum' in 'getAlign()' buffer
+	 */
+	public int getColumnOffset(int colNum) {
+		return colNum * numSeqs;
+	}
+
 	/**
 	 * Get all characters in column 'colNum'
 	 */
@@ -176,11 +254,56 @@ public class MultipleSequenceAlignment extends Marker {
 		return end;
 	}
 
+	/**
+	 * Position of this MSA within its transcript (exons sorted 5' to 3')
+	 */
+	public int getExonNum() {
+		return exonNum;
+	}
+
+	/**
+	 * Integer ID: Index in MultipleSequenceAlignmentSet.getMsas() (-1 if it was not added to a set)
+	 */
+	public int getIdNum() {
+		return idNum;
+	}
+
+	/**
+	 * FASTA header for sequence 'seqNum'
+	 */
+	public String getHeader(int seqNum) {
+		if (headers[seqNum] == null && msas != null) msas.loadHeaders(this);
+		return headers[seqNum];
+	}
+
+	/**
+	 * MSA for the next exon in the same transcript (null if this is the last one)
+	 * Note: Links are set by MultipleSequenceAlignmentSet, use 'findNextExon()' to make sure they are up to date
+	 */
+	public MultipleSequenceAlignment getNextExon() {
+		return nextExon;
+	}
+
 	/**
 	 * Number of sequences (i.e. number of species aligned)
 	 */
 	public int getNumSeqs() {
-		return align.length;
+		return numSeqs;
+	}
+
+	/**
+	 * Pattern ID for column 'colNum' (or -1 if patterns have not been calculated)
+	 */
+	public int getPatternId(int colNum) {
+		if (patternId == null) return -1;
+		return patternId[colNum];
+	}
+
+	/**
+	 * MSA for the previous exon in the same transcript (null if this is the first one)
+	 */
+	public MultipleSequenceAlignment getPrevExon() {
+		return prevExon;
 	}
 
 	/**
@@ -205,19 +328,26 @@ public class MultipleSequenceAlignment extends Marker {
 		return transcriptId;
 	}
 
+	/**
+	 * Integer transcript ID (see MultipleSequenceAlignmentSet.getTrId)
+	 */
+	public int getTrIdNum() {
+		return trIdNum;
+	}
+
+	/**
+	 * Transcript-wide AA position for column 'colNum' (i.e. offset in the concatenation of all MSAs in this transcript)
+	 */
+	public int getTranscriptPos(int colNum) {
+		return trOffset + colNum;
+	}
+
 	/**
 	 * Is position 'pos' fully conserved?
 	 */
 	public boolean isFullyConserved(int pos) {
-		byte prevBase = -1;
-		for (int i = 0; i < getNumSeqs(); i++) {
-			byte base = getCode(i, pos);
-			if (base < 0) continue;
-			if (prevBase != base && prevBase >= 0) return false;
-			prevBase = base;
-		}
-
-		return true;
+		if (skip == null) calcSkip();
+		return (conserved[pos >>> 6] & (1L << pos)) != 0;
 	}
 
 	/**
@@ -233,19 +363,13 @@ public class MultipleSequenceAlignment extends Marker {
 	/**
 	 * Should we skip position 'pos'?
 	 */
-	public synchronized boolean isSkip(int pos) {
-		if (skip == null) skip = new Boolean[getAaSeqLen()];
-		if (skip[pos] != null) return skip[pos];
-
-		// Should we skip this base?
-		boolean skipThis = false;
-
-		if (getCode(0, pos) < 0) skipThis = true; // Is it a GAP in the first alignment (human). Skip, because we only care about human
-		if (!skipThis) skipThis = (gapPercent(pos) >= MAX_GAP_PERCENT);
-		if (!skipThis) skipThis = isFullyConserved(pos);
-		skip[pos] = skipThis;
-
-		return skip[pos];
+	public boolean isSkip(int pos) {
+		long skip[] = this.skip;
+		if (skip == null) {
+			calcSkip();
+			skip = this.skip;
+		}
+		return (skip[pos >>> 6] & (1L << pos)) != 0;
 	}
 
 	/**
@@ -255,6 +379,13 @@ public class MultipleSequenceAlignment extends Marker {
 		return random.nextInt(getAaSeqLen());
 	}
 
+	/**
+	 * Return a random column number
+	 */
+	public int randomColumnNumber(SplittableRandom random) {
+		return random.nextInt(getAaSeqLen());
+	}
+
 	/**
 	 * Set genomic coordinates (chr:start-end)
 	 */
@@ -271,9 +402,10 @@ public class MultipleSequenceAlignment extends Marker {
 	 */
 	public void set(int seqNum, String seq, String header) {
 		headers[seqNum] = header;
+		skip = null; // Alignment changed, re-calculate skip
 
-		for (int i = 0; i < seq.length(); i++)
-			align[seqNum][i] = GprSeq.aa2Code(seq.charAt(i));
+		for (int i = 0, j = seqNum; i < seq.length(); i++, j += numSeqs)
+			align.put(j, GprSeq.aa2Code(seq.charAt(i)));
 	}
 
 	/**
@@ -288,8 +420,8 @@ public class MultipleSequenceAlignment extends Marker {
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 
-		for (int i = 0; i < align.length; i++) {
-			sb.append(headers[i] + "\n");
+		for (int i = 0; i < numSeqs; i++) {
+			sb.append(getHeader(i) + "\n");
 			sb.append(getRowString(i) + "\n");
 		}
 
@@ -1,6 +1,25 @@
 package ca.mcgill.pcingola.epistasis.msa;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -8,11 +27,14 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
 
 import ca.mcgill.mcb.pcingola.collections.AutoHashMap;
-import ca.mcgill.mcb.pcingola.fileIterator.LineFileIterator;
 import ca.mcgill.mcb.pcingola.interval.Chromosome;
 import ca.mcgill.mcb.pcingola.interval.Genome;
 import ca.mcgill.mcb.pcingola.interval.Marker;
@@ -30,12 +52,28 @@ import ca.mcgill.pcingola.epistasis.phylotree.PhylogeneticTree;
  * Load a multiple sequence alignment file (UCSC)
  * E.g. http://hgdownload.soe.ucsc.edu/goldenPath/hg19/multiz100way/alignments/knownCanonical.exonAA.fa.gz
  *
+ * MSAs can also be saved to (and loaded from) a binary file (see 'saveBinary()'), which
+ * is much faster to load than parsing the FASTA file. Binary file format:
+ * 		header  : magic, version, numAligns, indexSize
+ * 		index   : species names, number of MSAs and, for each MSA: transcriptId, chromosome, start, end, strandMinus, length, data offset, headers offset
+ * 		data    : Column-major AA codes for each MSA (see MultipleSequenceAlignment)
+ * 		headers : FASTA headers for each MSA (only read when needed, see 'loadHeaders()')
+ *
  * @author pcingola
  */
 public class MultipleSequenceAlignmentSet implements Iterable<MultipleSequenceAlignment> {
 
 	public static boolean debug = false;
 	public static boolean verbose = false;
+	public static final String BINARY_FILE_EXT = ".bin"; // Binary MSA files are identified by file extension
+	public static final int BINARY_MAGIC = 0x4d534131; // "MSA1"
+	public static final int BINARY_VERSION = 3;
+	public static final int BINARY_HEADER_SIZE = 4 + 4 + 4 + 8;
+	public static long MAX_MAP_SIZE = 1L << 30; // Maximum size for each memory mapped region
+	public static int FASTA_CHUNK_SIZE = 16 * 1024 * 1024; // FASTA files are read (and parsed in parallel) in chunks of this size
+	public static int FASTA_GZIP_BUFFER_SIZE = 1024 * 1024;
+	static final byte AA_CODE_UNKNOWN = Byte.MIN_VALUE;
+	static final byte FASTA_AA_CODES[] = fastaAaCodes(); // Lookup table: FASTA character to AA code
 	public double SHOW_THRESHOLD = 0.99;
 	public final int MIN_COUNT_THRESHOLD = 50;
 	public final int MIN_SECOND_TOP_BASE_COUNT = 5;
@@ -43,10 +81,17 @@ public class MultipleSequenceAlignmentSet implements Iterable<MultipleSequenceAl
 	int numAligns;
 	String sequenceAlignmentFile;
 	String species[];
+	List<String> speciesTree; // Species in the phylogenetic tree (null if unknown), checked when loading
 	ArrayList<MultipleSequenceAlignment> msas;
 	AutoHashMap<String, List<MultipleSequenceAlignment>> msasByTrId;
 	HashMap<String, MultipleSequenceAlignment> msaById;
+	ArrayList<String> trIds; // Transcript IDs, indexed by transcript number (see MultipleSequenceAlignment.getTrIdNum)
+	HashMap<String, Integer> trIdNumByTrId; // Transcript ID => transcript number
+	ArrayList<List<MultipleSequenceAlignment>> msasByTrIdNum; // MSAs by transcript number (same lists as in 'msasByTrId')
 	IntervalForest intForest; // Interval forest (MSAs intervals)
+	HashMap<String, Integer> patternIdByColumn; // Column pattern dictionary: Column => Pattern ID
+	ArrayList<byte[]> patterns; // Column patterns, indexed by pattern ID
+	volatile boolean transcriptsIndexed; // Are exon links (previous, next, transcript offset) up to date?
 
 	public MultipleSequenceAlignmentSet(String sequenceAlignmentFile, int numAligns) {
 		this.numAligns = numAligns;
@@ -55,22 +100,51 @@ public class MultipleSequenceAlignmentSet implements Iterable<MultipleSequenceAl
 		msas = new ArrayList<MultipleSequenceAlignment>();
 		msasByTrId = new AutoHashMap<String, List<MultipleSequenceAlignment>>(new ArrayList<MultipleSequenceAlignment>());
 		msaById = new HashMap<String, MultipleSequenceAlignment>();
+		trIds = new ArrayList<String>();
+		trIdNumByTrId = new HashMap<String, Integer>();
+		msasByTrIdNum = new ArrayList<List<MultipleSequenceAlignment>>();
 	}
 
 	public MultipleSequenceAlignmentSet(String sequenceAlignmentFile, PhylogeneticTree tree) {
 		this(sequenceAlignmentFile, tree.childNames().size());
+		speciesTree = tree.childNames();
 	}
 
 	/**
 	 * Add entry
+	 * Each MSA is assigned a dense integer ID (its index in 'getMsas()') and a transcript number
 	 */
 	public boolean add(MultipleSequenceAlignment msa) {
+		msa.idNum = msas.size();
 		boolean ok = msas.add(msa);
-		msasByTrId.getOrCreate(msa.getTranscriptId()).add(msa);
+
+		// Transcript number
+		String trId = msa.getTranscriptId();
+		Integer trIdNum = trIdNumByTrId.get(trId);
+		if (trIdNum == null) {
+			trIdNum = trIds.size();
+			trIds.add(trId);
+			trIdNumByTrId.put(trId, trIdNum);
+			msasByTrIdNum.add(msasByTrId.getOrCreate(trId));
+		}
+		msa.trIdNum = trIdNum;
+
+		msasByTrIdNum.get(trIdNum).add(msa);
 		msaById.put(msa.getId(), msa);
+		transcriptsIndexed = false;
 		return ok;
 	}
 
+	/**
+	 * Add all MSAs
+	 */
+	void addAll(List<MultipleSequenceAlignment> msas) {
+		for (MultipleSequenceAlignment msa : msas) {
+			Gpr.showMark(size() + 1, 100);
+			add(msa);
+		}
+	}
+
 	/**
 	 * Build interval forest using LogLik markers
 	 */
@@ -95,9 +169,44 @@ public class MultipleSequenceAlignmentSet implements Iterable<MultipleSequenceAl
 		Timer.showStdErr("Done. Added " + markers.size() + " markers.");
 	}
 
+	/**
+	 * Calculate skip bitmaps for all MSAs (MSAs loaded from files already have them)
+	 */
 	public void calcSkip() {
 		Timer.showStdErr("Pre-calculating skips.");
-		getMsas().parallelStream().forEach(MultipleSequenceAlignment::calcSkip);
+		getMsas().parallelStream() //
+				.filter(msa -> msa.skip == null) //
+				.forEach(MultipleSequenceAlignment::calcSkip);
+	}
+
+	/**
+	 * Build column pattern dictionary: Identical columns (across all MSAs) get the same pattern ID
+	 */
+	public void calcPatterns() {
+		if (patterns != null) return; // Already calculated
+
+		Timer.showStdErr("Calculating column patterns.");
+		patternIdByColumn = new HashMap<String, Integer>();
+		patterns = new ArrayList<byte[]>();
+
+		int countCols = 0;
+		for (MultipleSequenceAlignment msa : this) {
+			msa.calcPatterns(this);
+			countCols += msa.getAaSeqLen();
+		}
+
+		Timer.showStdErr("Done. Columns: " + countCols + ", unique patterns: " + patterns.size());
+	}
+
+	/**
+	 * Make sure that species in the alignment match the ones in the tree (if the tree is known)
+	 */
+	void checkSpecies() {
+		if (speciesTree == null) return;
+
+		String speciesMsa = String.join("\t", species);
+		String speciesTreeStr = String.join("\t", speciesTree);
+		if (!speciesTreeStr.equals(speciesMsa)) throw new RuntimeException("File '" + sequenceAlignmentFile + "': Species form MSA and Tree do not match:\n\tMSA : " + speciesMsa + "\n\tTree: " + speciesTreeStr);
 	}
 
 	/**
@@ -172,6 +281,16 @@ public class MultipleSequenceAlignmentSet implements Iterable<MultipleSequenceAl
 		}
 	}
 
+	/**
+	 * Count number of lines in 'buf[0 ... len - 1]'
+	 */
+	static int countLines(byte buf[], int len) {
+		int count = 0;
+		for (int i = 0; i < len; i++)
+			if (buf[i] == '\n') count++;
+		return count;
+	}
+
 	/**
 	 * Count number of transitions between two sequences
 	 */
@@ -211,6 +330,44 @@ public class MultipleSequenceAlignmentSet implements Iterable<MultipleSequenceAl
 		counts[code1][code2]++;
 	}
 
+	/**
+	 * Does string 'str' match 'buf[start ... end - 1]'?
+	 */
+	static boolean equals(String str, byte buf[], int start, int end) {
+		if (str.length() != end - start) return false;
+		for (int i = start, j = 0; i < end; i++, j++)
+			if (str.charAt(j) != (buf[i] & 0xff)) return false;
+		return true;
+	}
+
+	/**
+	 * Lookup table: FASTA character to AA code
+	 * Ambiguous AAs (B, Z, J, X), rare AAs (U, O) and stop codons ('*') are converted to gaps
+	 */
+	static byte[] fastaAaCodes() {
+		byte codes[] = new byte[256];
+		Arrays.fill(codes, AA_CODE_UNKNOWN);
+		codes['-'] = GprSeq.aa2Code('-');
+		for (char aa : "BZJXUO*".toCharArray())
+			codes[aa] = GprSeq.aa2Code('-');
+		for (char aa : GprSeq.AMINO_ACIDS)
+			codes[aa] = GprSeq.aa2Code(aa);
+		return codes;
+	}
+
+	/**
+	 * Find the end of the last complete alignment in 'buf[0 ... len - 1]' (i.e. position after the last empty line)
+	 * Return -1 if there is no empty line
+	 */
+	static int fastaChunkEnd(byte buf[], int len) {
+		for (int i = len - 1; i > 0; i--) {
+			if (buf[i] != '\n') continue;
+			if (buf[i - 1] == '\n') return i + 1;
+			if (buf[i - 1] == '\r' && i > 1 && buf[i - 2] == '\n') return i + 1;
+		}
+		return -1;
+	}
+
 	/**
 	 * Find next AA
 	 * @return null if not found
@@ -233,15 +390,8 @@ public class MultipleSequenceAlignmentSet implements Iterable<MultipleSequenceAl
 	 * Find MSA for exon following 'msa'
 	 */
 	public MultipleSequenceAlignment findNextExon(MultipleSequenceAlignment msa) {
-		boolean retNext = false;
-
-		// Find MSA following 'msa', for the same transcriptId
-		for (MultipleSequenceAlignment m : getMsasByTrId(msa.getTranscriptId())) {
-			if (retNext) return m;
-			if (m.getId().equals(msa.getId())) retNext = true;
-		}
-
-		return null;
+		if (!transcriptsIndexed) indexTranscripts();
+		return msa.getNextExon();
 	}
 
 	/**
@@ -262,28 +412,43 @@ public class MultipleSequenceAlignmentSet implements Iterable<MultipleSequenceAl
 	}
 
 	/**
-	 * Find MSA for exon following 'msa'
+	 * Find MSA for exon preceding 'msa'
 	 */
 	public MultipleSequenceAlignment findPreviousExon(MultipleSequenceAlignment msa) {
+		if (!transcriptsIndexed) indexTranscripts();
+		return msa.getPrevExon();
+	}
 
-		// Find MSA following 'msa', for the same transcriptId
-		MultipleSequenceAlignment prev = null;
-		for (MultipleSequenceAlignment m : getMsasByTrId(msa.getTranscriptId())) {
-			if (m.getId().equals(msa.getId())) return prev;
-			prev = m;
-		}
-
-		return null;
+	/**
+	 * Get MSA by integer ID (see MultipleSequenceAlignment.getIdNum)
+	 */
+	public MultipleSequenceAlignment getMsa(int msaIdNum) {
+		return msas.get(msaIdNum);
 	}
 
 	public MultipleSequenceAlignment getMsa(String msaId) {
 		return msaById.get(msaId);
 	}
 
+	/**
+	 * Integer ID for an MSA ID (-1 if not found)
+	 */
+	public int getMsaIdNum(String msaId) {
+		MultipleSequenceAlignment msa = msaById.get(msaId);
+		return msa != null ? msa.getIdNum() : -1;
+	}
+
 	public ArrayList<MultipleSequenceAlignment> getMsas() {
 		return msas;
 	}
 
+	/**
+	 * MSAs by transcript number (see MultipleSequenceAlignment.getTrIdNum)
+	 */
+	public List<MultipleSequenceAlignment> getMsasByTrId(int trIdNum) {
+		return msasByTrIdNum.get(trIdNum);
+	}
+
 	public List<MultipleSequenceAlignment> getMsasByTrId(String trId) {
 		return msasByTrId.get(trId);
 	}
@@ -305,6 +470,18 @@ public class MultipleSequenceAlignmentSet implements Iterable<MultipleSequenceAl
 		return numAligns;
 	}
 
+	public int getNumPatterns() {
+		return patterns != null ? patterns.size() : 0;
+	}
+
+	public int getNumTranscripts() {
+		return trIds.size();
+	}
+
+	public byte[] getPattern(int patternId) {
+		return patterns.get(patternId);
+	}
+
 	public String[] getSpecies() {
 		return species;
 	}
@@ -322,6 +499,56 @@ public class MultipleSequenceAlignmentSet implements Iterable<MultipleSequenceAl
 		return len;
 	}
 
+	/**
+	 * Position of the first 'c' in 'buf[start ... end - 1]' (or 'end' if not found)
+	 */
+	static int indexOf(byte buf[], char c, int start, int end) {
+		for (int i = start; i < end; i++)
+			if (buf[i] == c) return i;
+		return end;
+	}
+
+	/**
+	 * Link MSAs within each transcript (previous / next exon) and calculate transcript-wide AA offsets
+	 * Note: Uses the same order as 'getMsasByTrId()' (i.e. 5' to 3' once lists are sorted)
+	 */
+	synchronized void indexTranscripts() {
+		if (transcriptsIndexed) return;
+
+		for (List<MultipleSequenceAlignment> msasTr : msasByTrId.values()) {
+			int offset = 0;
+			MultipleSequenceAlignment prev = null;
+			for (int i = 0; i < msasTr.size(); i++) {
+				MultipleSequenceAlignment msa = msasTr.get(i);
+				msa.exonNum = i;
+				msa.trOffset = offset;
+				msa.prevExon = prev;
+				msa.nextExon = null;
+				if (prev != null) prev.nextExon = msa;
+
+				offset += msa.getAaSeqLen();
+				prev = msa;
+			}
+		}
+
+		transcriptsIndexed = true;
+	}
+
+	/**
+	 * Transcript ID for a transcript number
+	 */
+	public String getTrId(int trIdNum) {
+		return trIds.get(trIdNum);
+	}
+
+	/**
+	 * Transcript number for a transcript ID (-1 if not found)
+	 */
+	public int getTrIdNum(String trId) {
+		Integer trIdNum = trIdNumByTrId.get(trId);
+		return trIdNum != null ? trIdNum : -1;
+	}
+
 	/**
 	 * Return a list of (sorted) transcript IDs
 	 */
@@ -339,93 +566,316 @@ public class MultipleSequenceAlignmentSet implements Iterable<MultipleSequenceAl
 	}
 
 	/**
-	 * Load MSAs from a FASTA file
+	 * Is 'sequenceAlignmentFile' a binary file?
+	 */
+	public boolean isBinary() {
+		return sequenceAlignmentFile.endsWith(BINARY_FILE_EXT);
+	}
+
+	/**
+	 * End of the line starting at 'start' (excluding new line characters)
+	 */
+	static int lineEnd(byte buf[], int start, int len) {
+		int end = indexOf(buf, '\n', start, len);
+		if (end > start && buf[end - 1] == '\r') end--;
+		return end;
+	}
+
+	/**
+	 * Load MSAs from a FASTA file (or binary file)
 	 */
 	public void load() {
+		if (isBinary()) loadBinary();
+		else loadFasta();
+	}
+
+	/**
+	 * Load MSAs from a binary file (see 'saveBinary()')
+	 * The data section is memory mapped and each MSA is backed by a read only slice of a
+	 * mapped region (no copy, no parsing). FASTA headers are not read here, see 'loadHeaders()'
+	 */
+	void loadBinary() {
+		Timer.showStdErr("Loading MSA from binary file '" + sequenceAlignmentFile + "'");
+		Genome genome = new Genome();
+
+		try (RandomAccessFile raf = new RandomAccessFile(sequenceAlignmentFile, "r"); //
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sequenceAlignmentFile))) //
+		) {
+			// Header
+			if (in.readInt() != BINARY_MAGIC) throw new RuntimeException("File '" + sequenceAlignmentFile + "' is not a binary MSA file");
+			int version = in.readInt();
+			if (version != BINARY_VERSION) throw new RuntimeException("File '" + sequenceAlignmentFile + "': Unsupported binary MSA version " + version + ", expected " + BINARY_VERSION);
+			int numAlignsFile = in.readInt();
+			if (numAlignsFile != numAligns) throw new RuntimeException("File '" + sequenceAlignmentFile + "': Expecting " + numAligns + " aligned sequences, got " + numAlignsFile);
+			long dataStart = BINARY_HEADER_SIZE + in.readLong();
+
+			// Index: Species
+			for (int i = 0; i < numAligns; i++)
+				species[i] = in.readUTF();
+			checkSpecies();
+
+			// Index and data: MSAs
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = null;
+			long bufferStart = 0;
+
+			int numMsas = in.readInt();
+			for (int m = 0; m < numMsas; m++) {
+				String transcriptId = in.readUTF();
+				String chr = in.readUTF();
+				int start = in.readInt();
+				int end = in.readInt();
+				boolean strandMinus = in.readBoolean();
+				int length = in.readInt();
+				long offset = dataStart + in.readLong();
+				long headersOffset = dataStart + in.readLong();
+
+				// Map a new region, if needed
+				int size = numAligns * length;
+				if (buffer == null || offset < bufferStart || offset + size > bufferStart + buffer.capacity()) {
+					bufferStart = offset;
+					buffer = channel.map(FileChannel.MapMode.READ_ONLY, bufferStart, Math.min(Math.max(MAX_MAP_SIZE, size), channel.size() - bufferStart));
+				}
+
+				// Column-major data: Slice of the mapped region
+				ByteBuffer align = buffer.duplicate();
+				align.position((int) (offset - bufferStart));
+				align.limit(align.position() + size);
+
+				MultipleSequenceAlignment msa = new MultipleSequenceAlignment(this, transcriptId, numAligns, length, align.slice());
+				msa.set(genome.getOrCreateChromosome(chr), start, end, strandMinus);
+				msa.headersOffset = headersOffset;
+				msa.calcSkip();
+
+				add(msa);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Error reading binary MSA file '" + sequenceAlignmentFile + "'", e);
+		}
+
+		// Sort lists
+		sortTranscriptLists();
+		Timer.showStdErr("Done. Loaded " + size() + " alignments.");
+	}
+
+	/**
+	 * Load MSAs from a FASTA file (plain or gzipped)
+	 *
+	 * The file is read in large chunks which are split at alignment boundaries (empty lines).
+	 * Chunks are parsed in parallel (ForkJoin common pool) directly from bytes to AA codes,
+	 * alignments are added in the same order as they appear in the file.
+	 */
+	void loadFasta() {
 		Timer.showStdErr("Loading MSA from '" + sequenceAlignmentFile + "'");
-		LineFileIterator lif = new LineFileIterator(sequenceAlignmentFile);
 		Genome genome = new Genome();
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		int maxPending = 2 * pool.getParallelism() + 1; // Limit number of chunks in memory
+		ArrayDeque<ForkJoinTask<List<MultipleSequenceAlignment>>> pending = new ArrayDeque<>();
+
+		try (ReadableByteChannel channel = openFastaChannel()) {
+			byte buf[] = new byte[FASTA_CHUNK_SIZE];
+			int len = 0, lineNum = 1;
+			boolean eof = false, first = true;
+
+			while (!eof) {
+				// Fill buffer
+				ByteBuffer bb = ByteBuffer.wrap(buf, len, buf.length - len);
+				while (bb.hasRemaining() && !eof)
+					eof = (channel.read(bb) < 0);
+				len = bb.position();
+
+				// Split at the last alignment boundary. No boundary? Alignment is larger than the buffer
+				int end = eof ? len : fastaChunkEnd(buf, len);
+				if (end <= 0) {
+					buf = Arrays.copyOf(buf, 2 * buf.length);
+					continue;
+				}
+
+				// Move remaining bytes to a new buffer
+				byte chunk[] = buf;
+				buf = new byte[Math.max(FASTA_CHUNK_SIZE, len - end)];
+				System.arraycopy(chunk, end, buf, 0, len - end);
+				len -= end;
+
+				// Parse chunk. First chunk is parsed in this thread, so that 'species' is set before parsing other chunks
+				int chunkEnd = end, chunkLineNum = lineNum;
+				lineNum += countLines(chunk, chunkEnd);
+				if (first) {
+					addAll(parseFasta(chunk, chunkEnd, chunkLineNum, genome));
+					checkSpecies();
+				} else pending.add(pool.submit(() -> parseFasta(chunk, chunkEnd, chunkLineNum, genome)));
+				first = false;
+
+				if (pending.size() >= maxPending) addAll(pending.poll().join());
+			}
+
+			while (!pending.isEmpty())
+				addAll(pending.poll().join());
+		} catch (IOException e) {
+			throw new RuntimeException("Error reading file '" + sequenceAlignmentFile + "'", e);
+		}
+
+		// Sort lists
+		sortTranscriptLists();
+	}
+
+	/**
+	 * Load FASTA headers for an MSA loaded from a binary file (headers are only needed to show MSAs, so they are not read by 'loadBinary()')
+	 */
+	void loadHeaders(MultipleSequenceAlignment msa) {
+		if (msa.headersOffset < 0) return;
+
+		try (FileChannel channel = FileChannel.open(Paths.get(sequenceAlignmentFile)); //
+				DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(msa.headersOffset)))) //
+		) {
+			String headers[] = new String[numAligns];
+			for (int i = 0; i < numAligns; i++)
+				headers[i] = in.readUTF();
+			msa.headers = headers;
+		} catch (IOException e) {
+			throw new RuntimeException("Error reading headers from binary MSA file '" + sequenceAlignmentFile + "'", e);
+		}
+	}
+
+	/**
+	 * Start of the line after the line starting at 'start'
+	 */
+	static int nextLine(byte buf[], int start, int len) {
+		return Math.min(indexOf(buf, '\n', start, len) + 1, len);
+	}
 
-		int countAligns = 1;
-		while (lif.hasNext()) {
+	/**
+	 * Open FASTA file (plain or gzipped)
+	 */
+	ReadableByteChannel openFastaChannel() throws IOException {
+		if (sequenceAlignmentFile.endsWith(".gz")) return Channels.newChannel(new GZIPInputStream(new FileInputStream(sequenceAlignmentFile), FASTA_GZIP_BUFFER_SIZE));
+		return FileChannel.open(Paths.get(sequenceAlignmentFile));
+	}
+
+	/**
+	 * Parse alignments from FASTA bytes 'buf[0 ... len - 1]'
+	 * Note: 'lineNum' is the line number of the first line (used in error messages)
+	 */
+	List<MultipleSequenceAlignment> parseFasta(byte buf[], int len, int lineNum, Genome genome) {
+		List<MultipleSequenceAlignment> list = new ArrayList<MultipleSequenceAlignment>();
+		int pos = 0;
+
+		while (pos < len) {
 			int seqLen = -1;
 			MultipleSequenceAlignment msa = null;
 
 			// Read an alignment of a protein
 			for (int i = 0; i < numAligns; i++) {
-				String header = lif.next();
-
-				// There might be an extra empty line in the first header
-				while (header != null && header.isEmpty())
-					header = lif.next();
-				if (header == null) break;
+				// Header line. There might be extra empty lines before the first header
+				int lineStart = pos, lineEnd = lineEnd(buf, lineStart, len);
+				while (lineStart < len && lineEnd == lineStart) {
+					pos = nextLine(buf, lineStart, len);
+					lineNum++;
+					lineStart = pos;
+					lineEnd = lineEnd(buf, lineStart, len);
+				}
+				if (lineStart >= len) break;
+				pos = nextLine(buf, lineStart, len);
 
 				// Is this a header?
-				if (!header.startsWith(">")) throw new RuntimeException("Error (file '" + sequenceAlignmentFile + "', line " + lif.getLineNum() + "): Expecting header empty line, got: '" + header + "'");
-
-				if (i == 0) Gpr.showMark(countAligns++, 100);
+				if (buf[lineStart] != '>') throw new RuntimeException("Error (file '" + sequenceAlignmentFile + "', line " + lineNum + "): Expecting header empty line, got: '" + new String(buf, lineStart, lineEnd - lineStart, StandardCharsets.ISO_8859_1) + "'");
+				String header = new String(buf, lineStart, lineEnd - lineStart, StandardCharsets.ISO_8859_1);
 
-				// Parse and check species
-				String fields[] = header.split("_");
-				String transcriptId = fields[0].substring(1) + "_" + fields[1];
-				String speciesName = fields[2];
-				if (species[i] == null) species[i] = speciesName;
-				else if (!speciesName.equals(species[i])) throw new RuntimeException("Error (file '" + sequenceAlignmentFile + "', line " + lif.getLineNum() + "): Expecting species '" + species[i] + "', got: '" + speciesName + "'");
+				// Parse and check species: Header format is '>trId_trNum_species_...'
+				int idxTrId = indexOf(buf, '_', indexOf(buf, '_', lineStart, lineEnd) + 1, lineEnd);
+				int idxSpecies = indexOf(buf, '_', idxTrId + 1, lineEnd);
+				if (species[i] == null) species[i] = new String(buf, idxTrId + 1, idxSpecies - idxTrId - 1, StandardCharsets.ISO_8859_1);
+				else if (!equals(species[i], buf, idxTrId + 1, idxSpecies)) throw new RuntimeException("Error (file '" + sequenceAlignmentFile + "', line " + lineNum + "): Expecting species '" + species[i] + "', got: '" + new String(buf, idxTrId + 1, idxSpecies - idxTrId - 1, StandardCharsets.ISO_8859_1) + "'");
+				lineNum++;
 
 				// Read sequence
-				String sequence = lif.next();
-				if (sequence == null) break;
+				if (pos >= len) break;
+				int seqStart = pos, seqEnd = lineEnd(buf, seqStart, len);
+				pos = nextLine(buf, seqStart, len);
 
 				// Check sequence length
 				if (seqLen < 0) {
-					seqLen = sequence.length();
-
-					// Chr:start=end
-					fields = header.split(" ");
-					String chrpos = fields[4];
-					int idxPos = chrpos.indexOf(':');
-					int idxEnd = chrpos.indexOf('-');
-					String chr = chrpos.substring(0, idxPos);
-					String posStart = chrpos.substring(idxPos + 1, idxEnd);
-					String posEnd = chrpos.substring(idxEnd + 1, chrpos.length() - 1);
-					boolean strand = (chrpos.charAt(chrpos.length() - 1) == '-');
-					int start = Gpr.parseIntSafe(posStart) - 1;
-					int end = Gpr.parseIntSafe(posEnd) - 1;
+					seqLen = seqEnd - seqStart;
+					String transcriptId = new String(buf, lineStart + 1, idxTrId - lineStart - 1, StandardCharsets.ISO_8859_1);
+
+					// Chr:start-end (fifth field, space separated)
+					int chrposStart = lineStart;
+					for (int f = 0; f < 4; f++)
+						chrposStart = indexOf(buf, ' ', chrposStart, lineEnd) + 1;
+					int chrposEnd = indexOf(buf, ' ', chrposStart, lineEnd);
+					int idxPos = indexOf(buf, ':', chrposStart, chrposEnd);
+					int idxEnd = indexOf(buf, '-', chrposStart, chrposEnd);
+					String chr = new String(buf, chrposStart, idxPos - chrposStart, StandardCharsets.ISO_8859_1);
+					boolean strand = (buf[chrposEnd - 1] == '-');
+					int start = parseInt(buf, idxPos + 1, idxEnd) - 1;
+					int end = parseInt(buf, idxEnd + 1, chrposEnd - 1) - 1;
 
 					if (debug) System.out.println(transcriptId + " " + chr + ":" + start + "-" + end);
 					msa = new MultipleSequenceAlignment(this, transcriptId, numAligns, seqLen);
-					msa.set(genome.getOrCreateChromosome(chr), start, end, strand);
-				} else if (sequence.length() != seqLen) throw new RuntimeException("Error (file '" + sequenceAlignmentFile + "', line " + lif.getLineNum() + "): Expecting sequence of length " + seqLen);
-
-				// Add sequence
-				if (debug) System.out.println("\t" + sequence + "\t" + species[i]);
-
-				// Remove ambiguous amino acids
-				sequence = sequence.replace('B', '-');
-				sequence = sequence.replace('Z', '-');
-				sequence = sequence.replace('J', '-');
-				sequence = sequence.replace('X', '-');
-
-				// Remove rare amino acids
-				sequence = sequence.replace('U', '-');
-				sequence = sequence.replace('O', '-');
+					Chromosome chromo;
+					synchronized (genome) {
+						chromo = genome.getOrCreateChromosome(chr);
+					}
+					msa.set(chromo, start, end, strand);
+				} else if (seqEnd - seqStart != seqLen) throw new RuntimeException("Error (file '" + sequenceAlignmentFile + "', line " + lineNum + "): Expecting sequence of length " + seqLen);
+
+				// Set sequence: Convert to codes using lookup table (ambiguous AAs, rare AAs and stop codons are converted to gaps)
+				msa.headers[i] = header;
+				byte align[] = msa.getAlign().array();
+				for (int j = seqStart, k = i; j < seqEnd; j++, k += numAligns) {
+					byte code = FASTA_AA_CODES[buf[j] & 0xff];
+					if (code == AA_CODE_UNKNOWN) throw new RuntimeException("Error (file '" + sequenceAlignmentFile + "', line " + lineNum + "): Unknown amino acid '" + ((char) (buf[j] & 0xff)) + "'");
+					align[k] = code;
+				}
+				lineNum++;
+			}
 
-				// Stop codons
-				sequence = sequence.replace('*', '-');
+			if (msa != null) {
+				msa.calcSkip();
+				list.add(msa);
+			}
 
-				// Set sequence
-				msa.set(i, sequence, header);
+			// Empty line separator
+			if (pos < len) {
+				if (lineEnd(buf, pos, len) != pos) throw new RuntimeException("Error (file '" + sequenceAlignmentFile + "', line " + lineNum + "): Expecting an empty line!");
+				pos = nextLine(buf, pos, len);
+				lineNum++;
 			}
+		}
 
-			if (msa != null) add(msa);
+		return list;
+	}
 
-			// Empty line separator
-			String emptyLine = lif.next();
-			if (emptyLine != null && !emptyLine.isEmpty()) throw new RuntimeException("Error (file '" + sequenceAlignmentFile + "', line " + lif.getLineNum() + "): Expecting an empty line!");
+	/**
+	 * Parse an integer from 'buf[start ... end - 1]' (return 0 if it is not a number, same as Gpr.parseIntSafe)
+	 */
+	static int parseInt(byte buf[], int start, int end) {
+		int num = 0;
+		if (start >= end) return 0;
+		for (int i = start; i < end; i++) {
+			int digit = buf[i] - '0';
+			if (digit < 0 || digit > 9) return 0;
+			num = 10 * num + digit;
 		}
+		return num;
+	}
 
-		// Sort lists
-		sortTranscriptLists();
+	/**
+	 * Get pattern ID for a column 'codes[offset ... offset + len - 1]' (add a new pattern if not found)
+	 */
+	synchronized int patternId(ByteBuffer codes, int offset, int len) {
+		byte col[] = new byte[len];
+		for (int i = 0; i < len; i++)
+			col[i] = codes.get(offset + i);
+
+		String key = new String(col, StandardCharsets.ISO_8859_1); // One char per byte
+		Integer pid = patternIdByColumn.get(key);
+		if (pid != null) return pid;
+
+		pid = patterns.size();
+		patterns.add(col);
+		patternIdByColumn.put(key, pid);
+		return pid;
 	}
 
 	/**
@@ -442,6 +892,13 @@ public class MultipleSequenceAlignmentSet implements Iterable<MultipleSequenceAl
 		return msas.get(random.nextInt(msas.size()));
 	}
 
+	/**
+	 * Get a random element
+	 */
+	public MultipleSequenceAlignment rand(SplittableRandom random) {
+		return msas.get(random.nextInt(msas.size()));
+	}
+
 	public String rowSequence(String trid) {
 		return rowSequence(trid, null);
 	}
@@ -477,6 +934,67 @@ public class MultipleSequenceAlignmentSet implements Iterable<MultipleSequenceAl
 		return sb.toString();
 	}
 
+	/**
+	 * Save all MSAs to a binary file (it can be loaded by 'load()' if the file name ends with BINARY_FILE_EXT)
+	 */
+	public void saveBinary(String fileName) {
+		Timer.showStdErr("Saving " + size() + " alignments to binary file '" + fileName + "'");
+
+		try {
+			// Create index
+			ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+			DataOutputStream index = new DataOutputStream(indexBytes);
+
+			for (int i = 0; i < numAligns; i++)
+				index.writeUTF(species[i]);
+
+			// Headers section (after data)
+			ByteArrayOutputStream headersBytes = new ByteArrayOutputStream();
+			DataOutputStream headers = new DataOutputStream(headersBytes);
+
+			long dataSize = 0;
+			for (MultipleSequenceAlignment msa : this)
+				dataSize += msa.getAlign().capacity();
+
+			index.writeInt(size());
+			long offset = 0;
+			for (MultipleSequenceAlignment msa : this) {
+				index.writeUTF(msa.getTranscriptId());
+				index.writeUTF(msa.getChromosomeName());
+				index.writeInt(msa.getStart());
+				index.writeInt(msa.getEnd());
+				index.writeBoolean(msa.isStrandMinus());
+				index.writeInt(msa.getAaSeqLen());
+				index.writeLong(offset);
+				index.writeLong(dataSize + headers.size());
+				for (int i = 0; i < numAligns; i++)
+					headers.writeUTF(msa.getHeader(i));
+				offset += msa.getAlign().capacity();
+			}
+			index.close();
+			headers.close();
+
+			// Write header, index and data
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)))) {
+				out.writeInt(BINARY_MAGIC);
+				out.writeInt(BINARY_VERSION);
+				out.writeInt(numAligns);
+				out.writeLong(indexBytes.size());
+				indexBytes.writeTo(out);
+
+				WritableByteChannel data = Channels.newChannel(out);
+				for (MultipleSequenceAlignment msa : this)
+					data.write(msa.getAlign().duplicate());
+
+				headersBytes.writeTo(out);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing binary MSA file '" + fileName + "'", e);
+		}
+
+		Timer.showStdErr("Done.");
+	}
+
 	public void setSpecies(String[] species) {
 		this.species = species;
 	}
@@ -497,6 +1015,10 @@ public class MultipleSequenceAlignmentSet implements Iterable<MultipleSequenceAl
 			if (msa.isStrandPlus()) Collections.sort(l);
 			else Collections.sort(l, Comparator.reverseOrder());
 		}
+
+		// Update exon links
+		transcriptsIndexed = false;
+		indexTranscripts();
 	}
 
 	public Stream<MultipleSequenceAlignment> stream() {
@@ -1,5 +1,7 @@
 package ca.mcgill.pcingola.epistasis.msa;
 
+import java.nio.ByteBuffer;
+
 import ca.mcgill.mcb.pcingola.util.GprSeq;
 
 /**
@@ -59,14 +61,28 @@ public class TransitionsAa {
 	 * Count transitions
 	 */
 	public void count(byte[] codes) {
-		int n = codes.length;
+		count(codes, 0, codes.length);
+	}
 
-		for (int i = 0; i < n; i++) {
-			int idxi = codes[i];
+	/**
+	 * Count transitions in 'codes[offset ... offset + n - 1]'
+	 */
+	public void count(byte[] codes, int offset, int n) {
+		count(ByteBuffer.wrap(codes), offset, n);
+	}
+
+	/**
+	 * Count transitions in 'codes[offset ... offset + n - 1]'
+	 */
+	public void count(ByteBuffer codes, int offset, int n) {
+		int end = offset + n;
+
+		for (int i = offset; i < end; i++) {
+			int idxi = codes.get(i);
 			if (idxi < 0) continue;
 
-			for (int j = i + 1; j < n; j++) {
-				int idxj = codes[j];
+			for (int j = i + 1; j < end; j++) {
+				int idxj = codes.get(j);
 				if (idxj < 0) continue;
 
 				// Symmetric count
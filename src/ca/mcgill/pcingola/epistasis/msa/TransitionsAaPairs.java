@@ -1,5 +1,7 @@
 package ca.mcgill.pcingola.epistasis.msa;
 
+import java.nio.ByteBuffer;
+
 import ca.mcgill.mcb.pcingola.util.GprSeq;
 import ca.mcgill.pcingola.epistasis.pdb.DistanceResult;
 
@@ -47,15 +49,27 @@ public class TransitionsAaPairs extends TransitionsAa {
 	 * Count sequences transitions (AA pairs)
 	 */
 	public void count(byte[] codes1, byte[] codes2) {
-		int n = GprSeq.AMINO_ACIDS.length;
+		count(codes1, 0, codes2, 0, codes1.length);
+	}
 
-		for (int i = 0; i < codes1.length; i++) {
-			byte c1i = codes1[i], c2i = codes2[i];
+	/**
+	 * Count sequences transitions (AA pairs) in 'codes1[offset1 ... offset1 + n - 1]' and 'codes2[offset2 ... offset2 + n - 1]'
+	 */
+	public void count(byte[] codes1, int offset1, byte[] codes2, int offset2, int n) {
+		count(ByteBuffer.wrap(codes1), offset1, ByteBuffer.wrap(codes2), offset2, n);
+	}
+
+	/**
+	 * Count sequences transitions (AA pairs) in 'codes1[offset1 ... offset1 + n - 1]' and 'codes2[offset2 ... offset2 + n - 1]'
+	 */
+	public void count(ByteBuffer codes1, int offset1, ByteBuffer codes2, int offset2, int n) {
+		for (int i = 0; i < n; i++) {
+			byte c1i = codes1.get(offset1 + i), c2i = codes2.get(offset2 + i);
 			if (c1i < 0 || c2i < 0) continue;
 			int idxi = GprSeq.aaPairCode(c1i, c2i);
 
-			for (int j = i + 1; j < codes1.length; j++) {
-				byte c1j = codes1[j], c2j = codes2[j];
+			for (int j = i + 1; j < n; j++) {
+				byte c1j = codes1.get(offset1 + j), c2j = codes2.get(offset2 + j);
 				if (c1j < 0 || c2j < 0) continue;
 				int idxj = GprSeq.aaPairCode(c1j, c2j);
 
@@ -105,6 +105,27 @@ public class PhylogeneticTree {
 		return names;
 	}
 
+	/**
+	 * Copy tree structure (names, ids and distances) from 'tree'
+	 */
+	protected void copy(PhylogeneticTree tree) {
+		name = tree.name;
+		id = tree.id;
+		distanceLeft = tree.distanceLeft;
+		distanceRight = tree.distanceRight;
+		lcache = tree.lcache;
+
+		if (tree.left != null) {
+			left = newNode(this);
+			left.copy(tree.left);
+		}
+
+		if (tree.right != null) {
+			right = newNode(this);
+			right.copy(tree.right);
+		}
+	}
+
 	/**
 	 * Find distance to node recursing down
 	 */
@@ -243,6 +264,15 @@ public class PhylogeneticTree {
 		parse(phylo, new Counter());
 	}
 
+	/**
+	 * Create an empty node (used when copying a tree)
+	 */
+	protected PhylogeneticTree newNode(PhylogeneticTree parent) {
+		PhylogeneticTree node = new PhylogeneticTree();
+		node.parent = parent;
+		return node;
+	}
+
 	protected PhylogeneticTree newNode(PhylogeneticTree parent, String phyloStr, Counter ids) {
 		return new PhylogeneticTree(parent, phyloStr, ids);
 	}
@@ -260,6 +260,13 @@ public class TransitionMatrix extends Array2DRowRealMatrix {
 		return true;
 	}
 
+	/**
+	 * Is this matrix reversible? (i.e. detailed balance: pi_i * q_ij = pi_j * q_ji)
+	 */
+	public boolean isReversible() {
+		return reversiblePi() != null;
+	}
+
 	/**
 	 * Is this matrix symmetric?
 	 */
@@ -322,6 +329,70 @@ public class TransitionMatrix extends Array2DRowRealMatrix {
 		return this;
 	}
 
+	/**
+	 * Transition matrix as a flat array (row-major order), i.e. P[i][j] = Pflat[i * numCols + j]
+	 */
+	public double[] matrixFlat(double time) {
+		return toFlat(matrix(time));
+	}
+
+	/**
+	 * Copy a matrix into a flat array (row-major order)
+	 */
+	public static double[] toFlat(RealMatrix m) {
+		int rows = m.getRowDimension();
+		int cols = m.getColumnDimension();
+		double flat[] = new double[rows * cols];
+		for (int i = 0, k = 0; i < rows; i++)
+			for (int j = 0; j < cols; j++, k++)
+				flat[k] = m.getEntry(i, j);
+
+		return flat;
+	}
+
+	/**
+	 * Stationary distribution of a reversible matrix.
+	 *
+	 * Detailed balance implies pi_j / pi_0 = q_0j / q_j0, so we
+	 * calculate 'pi' from the first row and then check that
+	 * pi_i * q_ij = pi_j * q_ji holds for all other pairs.
+	 *
+	 * @return Stationary distribution or null if the matrix is not reversible
+	 */
+	public double[] reversiblePi() {
+		int n = getRowDimension();
+		if (n != getColumnDimension()) return null;
+
+		// Calculate 'pi' relative to state 0
+		double pi[] = new double[n];
+		double sum = 0;
+		for (int j = 0; j < n; j++) {
+			if (j == 0) pi[j] = 1.0;
+			else {
+				double q0j = getEntry(0, j);
+				double qj0 = getEntry(j, 0);
+				if (q0j <= 0 || qj0 <= 0) return null;
+				pi[j] = q0j / qj0;
+			}
+			sum += pi[j];
+		}
+
+		for (int j = 0; j < n; j++)
+			pi[j] /= sum;
+
+		// Check detailed balance for all pairs
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++) {
+				double fij = pi[i] * getEntry(i, j);
+				double fji = pi[j] * getEntry(j, i);
+				double maxAbs = Math.max(Math.abs(fij), Math.abs(fji));
+				if (maxAbs > 0 && Math.abs(fij - fji) / maxAbs > EPSILON) return null;
+			}
+		}
+
+		return pi;
+	}
+
 	/**
 	 * Save data to file
 	 */
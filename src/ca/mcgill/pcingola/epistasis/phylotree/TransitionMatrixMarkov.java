@@ -1,23 +1,44 @@
 package ca.mcgill.pcingola.epistasis.phylotree;
 
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.EigenDecomposition;
+import org.apache.commons.math3.linear.LUDecomposition;
 import org.apache.commons.math3.linear.RealMatrix;
 
 import ca.mcgill.mcb.pcingola.util.Gpr;
+import ca.mcgill.mcb.pcingola.util.Timer;
 
 /**
  * Calculate transition matrix
  *
  * Use Markov model: P(t) = exp( t * Q )
  *
+ * Matrix exponentials are calculated either using Jeigen's 'mexp' (default)
+ * or using an eigen-decomposition of Q, which is calculated only once:
+ *
+ * 		Q = V * D * V^-1   =>   P(t) = V * exp( t * D ) * V^-1
+ *
+ * If Q is reversible, we decompose the symmetric matrix
+ * S = Pi^1/2 * Q * Pi^-1/2 (real eigenvalues, orthogonal eigenvectors).
+ * Otherwise D may have 2x2 blocks (complex eigenvalues) which are
+ * exponentiated as rotations.
+ *
  * @author pcingola
  */
 public class TransitionMatrixMarkov extends TransitionMatrix {
 
 	private static final long serialVersionUID = 1L;
+	public static final double MAX_EIGEN_ERROR = 1e-9;
 
-	HashMap<Double, RealMatrix> matrixByTime; // Cache matrices
+	final Map<Double, RealMatrix> matrixByTime = new ConcurrentHashMap<Double, RealMatrix>(); // Cache matrices
+	final Map<Double, double[]> matrixFlatByTime = new ConcurrentHashMap<Double, double[]>(); // Cache matrices (flat arrays, row-major)
+	boolean useEigen; // Use eigen-decomposition instead of Jeigen's 'mexp'
+	boolean eigenDone; // Has eigen-decomposition been calculated?
+	double eigenV[][], eigenVinv[][]; // Eigenvectors: Q = V * D * V^-1
+	double eigenD[][]; // Eigenvalues (block diagonal matrix)
 
 	/***
 	 * Load from file
@@ -65,10 +86,125 @@ public class TransitionMatrixMarkov extends TransitionMatrix {
 		super(m.getData());
 	}
 
+	/**
+	 * Calculate eigen-decomposition (only once)
+	 */
+	protected synchronized void eigenDecomposition() {
+		if (eigenDone) return;
+
+		int n = getRowDimension();
+		double pi[] = reversiblePi();
+
+		if (pi != null) {
+			// Reversible: Decompose symmetric matrix S = Pi^1/2 * Q * Pi^-1/2
+			double sqrtPi[] = new double[n];
+			for (int i = 0; i < n; i++)
+				sqrtPi[i] = Math.sqrt(pi[i]);
+
+			double s[][] = new double[n][n];
+			for (int i = 0; i < n; i++)
+				for (int j = 0; j < n; j++)
+					s[i][j] = 0.5 * (sqrtPi[i] * getEntry(i, j) / sqrtPi[j] + sqrtPi[j] * getEntry(j, i) / sqrtPi[i]);
+
+			// S = U * D * U^T  =>  Q = (Pi^-1/2 * U) * D * (U^T * Pi^1/2)
+			EigenDecomposition eigenSym = new EigenDecomposition(new Array2DRowRealMatrix(s, false));
+			double u[][] = eigenSym.getV().getData();
+			eigenV = new double[n][n];
+			eigenVinv = new double[n][n];
+			for (int i = 0; i < n; i++)
+				for (int j = 0; j < n; j++) {
+					eigenV[i][j] = u[i][j] / sqrtPi[i];
+					eigenVinv[j][i] = u[i][j] * sqrtPi[i];
+				}
+			eigenD = eigenSym.getD().getData();
+		} else {
+			// General case: Q = V * D * V^-1, where D can have 2x2 blocks (complex eigenvalues)
+			eigen();
+			RealMatrix V = eigen.getV();
+			eigenV = V.getData();
+			eigenVinv = new LUDecomposition(V).getSolver().getInverse().getData();
+			eigenD = eigen.getD().getData();
+		}
+
+		// Sanity check: Does V * D * V^-1 reconstruct Q?
+		double err = 0;
+		RealMatrix qRec = new Array2DRowRealMatrix(eigenV, false).multiply(new Array2DRowRealMatrix(eigenD, false)).multiply(new Array2DRowRealMatrix(eigenVinv, false));
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < n; j++)
+				err = Math.max(err, Math.abs(qRec.getEntry(i, j) - getEntry(i, j)));
+
+		if (err > MAX_EIGEN_ERROR) {
+			Timer.showStdErr("WARNING: Eigen-decomposition error too large (" + err + "), using matrix exponential instead");
+			useEigen = false;
+			eigenV = eigenVinv = eigenD = null;
+		}
+
+		eigenDone = true;
+	}
+
+	/**
+	 * Matrix exponentiation
+	 */
+	@Override
+	public RealMatrix exp(double time) {
+		if (useEigen) eigenDecomposition();
+		if (!useEigen) return super.exp(time);
+		return expEigen(time);
+	}
+
+	/**
+	 * Matrix exponentiation using eigen-decomposition: P(t) = V * exp( t * D ) * V^-1
+	 */
+	RealMatrix expEigen(double time) {
+		int n = eigenD.length;
+
+		// Calculate V * exp( t * D )
+		double vexp[][] = new double[n][n];
+		for (int j = 0; j < n; j++) {
+			double lambda = eigenD[j][j];
+
+			if (j < n - 1 && eigenD[j][j + 1] != 0) {
+				// Complex eigenvalue: 2x2 block [[a, b], [-b, a]] exponentiates to exp(a t) * [[cos(b t), sin(b t)], [-sin(b t), cos(b t)]]
+				double ea = Math.exp(lambda * time);
+				double c = ea * Math.cos(eigenD[j][j + 1] * time);
+				double s = ea * Math.sin(eigenD[j][j + 1] * time);
+
+				for (int i = 0; i < n; i++) {
+					vexp[i][j] = eigenV[i][j] * c - eigenV[i][j + 1] * s;
+					vexp[i][j + 1] = eigenV[i][j] * s + eigenV[i][j + 1] * c;
+				}
+
+				j++; // Skip second column of the block
+			} else {
+				double e = Math.exp(lambda * time);
+				for (int i = 0; i < n; i++)
+					vexp[i][j] = eigenV[i][j] * e;
+			}
+		}
+
+		// Multiply by V^-1
+		double d[][] = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			double di[] = d[i];
+			double vi[] = vexp[i];
+			for (int k = 0; k < n; k++) {
+				double vik = vi[k];
+				double vinvk[] = eigenVinv[k];
+				for (int j = 0; j < n; j++)
+					di[j] += vik * vinvk[j];
+			}
+		}
+
+		return new TransitionMatrix(d);
+	}
+
+	public boolean isUseEigen() {
+		return useEigen;
+	}
+
 	@Override
 	public RealMatrix matrix(double time) {
 		// Check cache
-		if (matrixByTime == null) matrixByTime = new HashMap<Double, RealMatrix>();
 		RealMatrix m = matrixByTime.get(time);
 		if (m != null) return m;
 
@@ -100,7 +236,30 @@ public class TransitionMatrixMarkov extends TransitionMatrix {
 		return m;
 	}
 
+	@Override
+	public double[] matrixFlat(double time) {
+		// Check cache
+		double pflat[] = matrixFlatByTime.get(time);
+		if (pflat != null) return pflat;
+
+		// Convert to flat array and add to cache
+		pflat = toFlat(matrix(time));
+		matrixFlatByTime.put(time, pflat);
+		return pflat;
+	}
+
 	public void setCheck(boolean check) {
 		checkNegativeLambda = check;
 	}
+
+	/**
+	 * Use eigen-decomposition to calculate matrix exponentials
+	 * Note: Cached matrices are removed, so this should not be called while other threads use this matrix
+	 */
+	public void setUseEigen(boolean useEigen) {
+		this.useEigen = useEigen;
+		eigenDone = false;
+		matrixByTime.clear();
+		matrixFlatByTime.clear();
+	}
 }
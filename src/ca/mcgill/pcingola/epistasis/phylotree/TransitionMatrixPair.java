@@ -1,7 +1,5 @@
 package ca.mcgill.pcingola.epistasis.phylotree;
 
-import java.util.HashMap;
-
 import org.apache.commons.math3.linear.RealMatrix;
 
 /**
@@ -22,7 +20,6 @@ public class TransitionMatrixPair extends TransitionMatrixMarkov {
 	@Override
 	public RealMatrix matrix(double time) {
 		// Check cache
-		if (matrixByTime == null) matrixByTime = new HashMap<Double, RealMatrix>();
 		RealMatrix m = matrixByTime.get(time);
 		if (m != null) return m;
 
@@ -1,51 +1,157 @@
 package ca.mcgill.pcingola.epistasis.phylotree;
 
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Cache conditional likelihoods for sub-trees where all leaf nodes have the same code (uniform sub-trees)
+ *
+ * Values are indexed by [nodeId][uniformCode]. Each entry is calculated once
+ * (for a given transition matrix) and published without locking, so the
+ * cache can be shared by all threads. The values array and the transition
+ * matrix used to calculate them are swapped together (see 'Values'), so a
+ * value is never stored or read under a different matrix.
+ *
+ * @author pcingola
+ */
 public class UniformTreeValueCache {
 
-	HashMap<String, double[]> cache = new HashMap<String, double[]>();
-	int size;
+	/**
+	 * Cached values and the transition matrix used to calculate them
+	 */
+	private static class Values {
+		final TransitionMatrix tmatrix;
+		final AtomicReferenceArray<double[]> cache; // Cached values, index: nodeId * size + uniformCode
+
+		Values(TransitionMatrix tmatrix, int len) {
+			this.tmatrix = tmatrix;
+			cache = new AtomicReferenceArray<double[]>(len);
+		}
+	}
+
+	public static final int INITIAL_NUM_NODES = 256;
+
+	int size; // Number of states (i.e. possible uniform codes)
+	volatile Values values; // Cached values, only valid for 'values.tmatrix'
+	LongAdder hits = new LongAdder(), misses = new LongAdder();
 
 	public UniformTreeValueCache(int size) {
 		this.size = size;
+		values = new Values(null, INITIAL_NUM_NODES * size);
+	}
+
+	/**
+	 * Remove all cached values
+	 */
+	public synchronized void clear() {
+		values = new Values(null, values.cache.length());
+	}
+
+	/**
+	 * Get cached values for a node
+	 * Note: The scaling exponent is stored in the last element (i.e. at index 'size')
+	 */
+	public double[] get(PhylogeneticTree tree, TransitionMatrix tmatrix) {
+		return get(tree, tree.getUniformCode(), tmatrix);
+	}
+
+	/**
+	 * Get cached values for a node having all leaves set to 'uniformCode'
+	 */
+	public double[] get(PhylogeneticTree tree, int uniformCode, TransitionMatrix tmatrix) {
+		double vals[] = null;
+
+		Values values = this.values;
+		if (tmatrix == values.tmatrix) {
+			AtomicReferenceArray<double[]> cache = values.cache;
+			int idx = index(tree, uniformCode);
+			if (idx < cache.length()) vals = cache.get(idx);
+		}
+
+		if (vals != null) hits.increment();
+		else misses.increment();
+
+		return vals;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public double hitRate() {
+		long h = getHits();
+		long total = h + getMisses();
+		return total > 0 ? ((double) h) / total : 0.0;
+	}
+
+	/**
+	 * Index in 'cache' array
+	 */
+	int index(PhylogeneticTree tree, int uniformCode) {
+		return tree.getId() * size + uniformCode;
 	}
 
 	/**
-	 * Get a cached value
+	 * Make sure the cache is large enough for index 'idx'
+	 * Returns null if the transition matrix has changed (values should not be stored)
 	 */
-	public Double get(PhylogeneticTree tree, int aaCode) {
-		String key = key(tree);
+	synchronized Values resize(TransitionMatrix tmatrix, int idx) {
+		Values values = this.values;
+		if (tmatrix != values.tmatrix) return null; // Another thread changed the transition matrix
+		if (idx < values.cache.length()) return values; // Another thread already resized it
 
-		double vals[] = cache.get(key);
-		if (vals == null) return null;
+		AtomicReferenceArray<double[]> cache = values.cache;
+		Values newValues = new Values(tmatrix, Math.max(2 * cache.length(), (idx / size + 1) * size));
+		for (int i = 0; i < cache.length(); i++)
+			newValues.cache.set(i, cache.get(i));
 
-		double v = vals[aaCode];
-		return Double.isNaN(v) ? null : v;
+		this.values = newValues;
+		return newValues;
 	}
 
 	/**
-	 * Create a hash 'key'
+	 * Set all values for a node, including the scaling exponent
 	 */
-	String key(PhylogeneticTree tree) {
-		return tree.getId() + "\t" + tree.getUniformCode();
+	public void set(PhylogeneticTree tree, TransitionMatrix tmatrix, double values[], int scaleExp) {
+		set(tree, tree.getUniformCode(), tmatrix, values, 0, scaleExp);
 	}
 
 	/**
-	 * Set a value in the cache
+	 * Set values for a node having all leaves set to 'uniformCode'.
+	 * Values are read from 'values[offset ... offset + size - 1]'
 	 */
-	public synchronized void set(PhylogeneticTree tree, int aaCode, double value) {
-		String key = key(tree);
-		double vals[] = cache.get(key);
+	public void set(PhylogeneticTree tree, int uniformCode, TransitionMatrix tmatrix, double values[], int offset, int scaleExp) {
+		// Different transition matrix? Cached values are no longer valid
+		Values current = this.values;
+		if (tmatrix != current.tmatrix) current = setTransitionMatrix(tmatrix);
 
-		if (vals == null) {
-			vals = new double[size];
-			Arrays.fill(vals, Double.NaN);
-			cache.put(key, vals);
-		}
+		double vals[] = new double[size + 1];
+		System.arraycopy(values, offset, vals, 0, size);
+		vals[size] = scaleExp;
+
+		// Values are written to the array that belongs to 'tmatrix'. If another
+		// thread changes the matrix meanwhile, the array is simply discarded
+		int idx = index(tree, uniformCode);
+		if (idx >= current.cache.length()) current = resize(tmatrix, idx);
+		if (current != null) current.cache.set(idx, vals);
+	}
+
+	/**
+	 * Change transition matrix: Remove all cached values
+	 */
+	synchronized Values setTransitionMatrix(TransitionMatrix tmatrix) {
+		if (tmatrix == values.tmatrix) return values;
+		values = new Values(tmatrix, values.cache.length());
+		return values;
+	}
 
-		vals[aaCode] = value;
+	@Override
+	public String toString() {
+		return "hits: " + getHits() + " / " + (getHits() + getMisses()) + " (" + String.format("%.1f%%", 100.0 * hitRate()) + ")";
 	}
 
 }
@@ -1,5 +1,7 @@
 package ca.mcgill.pcingola.epistasis.testCases;
 
+import java.util.Random;
+
 import junit.framework.TestCase;
 
 import org.junit.Assert;
@@ -7,8 +9,11 @@ import org.junit.Assert;
 import ca.mcgill.mcb.pcingola.interval.Chromosome;
 import ca.mcgill.mcb.pcingola.util.Gpr;
 import ca.mcgill.mcb.pcingola.util.Timer;
+import ca.mcgill.pcingola.epistasis.Genotype;
 import ca.mcgill.pcingola.epistasis.coordinates.GenomicCoordinates;
+import ca.mcgill.pcingola.epistasis.gwas.GenotypePairStats;
 import ca.mcgill.pcingola.epistasis.gwas.GwasEpistasis;
+import ca.mcgill.pcingola.epistasis.gwas.GwasResult;
 import ca.mcgill.pcingola.epistasis.msa.MultipleSequenceAlignment;
 import ca.mcgill.pcingola.epistasis.msa.MultipleSequenceAlignmentSet;
 import ca.mcgill.pcingola.epistasis.pdb.PdbGenomeMsas;
@@ -223,4 +228,126 @@ public class TestCaseGwas extends TestCase {
 		Timer.showStdErr("MSA:\t" + gp.getMsaId() + ":" + gp.getAaIdx());
 	}
 
+	/**
+	 * Random genotypes: Values in {-1, 0, 1, 2}, mostly zeros (with probability 'probZero')
+	 */
+	byte[] randGt(Random rand, int numSamples, double probZero) {
+		byte gt[] = new byte[numSamples];
+		for (int i = 0; i < numSamples; i++)
+			gt[i] = (byte) (rand.nextDouble() < probZero ? 0 : rand.nextInt(4) - 1);
+		return gt;
+	}
+
+	/**
+	 * Filter using unpacked genotypes (reference implementation)
+	 */
+	boolean shouldFilterReference(byte gti[], byte gtj[], double pheno[]) {
+		int n = gti.length, countGtij = 0;
+		double sum[][] = new double[3][3];
+		boolean eqI = true, eqJ = true;
+		for (int i = 0; i < n; i++) {
+			boolean skip = gti[i] < 0 || gtj[i] < 0 || pheno[i] < 0;
+			int gtij = skip ? 0 : gti[i] * gtj[i];
+			if (gtij > 0) countGtij++;
+			eqI &= ((gti[i] > 0) == (gtij > 0));
+			eqJ &= ((gtj[i] > 0) == (gtij > 0));
+			if (skip) continue;
+
+			double v[] = { gti[i], gtj[i], gtij };
+			for (int a = 0; a < 3; a++)
+				for (int b = 0; b < 3; b++)
+					sum[a][b] += v[a] * v[b];
+		}
+
+		double det = sum[0][0] * (sum[1][1] * sum[2][2] - sum[1][2] * sum[2][1]) //
+				- sum[0][1] * (sum[1][0] * sum[2][2] - sum[1][2] * sum[2][0]) //
+				+ sum[0][2] * (sum[1][0] * sum[2][1] - sum[1][1] * sum[2][0]);
+
+		return countGtij < GwasResult.MIN_SHARED_VARIANTS || det == 0 || eqI || eqJ;
+	}
+
+	/**
+	 * Packed genotypes: Compare filtering to a reference implementation on unpacked genotypes
+	 */
+	public void test_08_packed_genotypes() {
+		Random rand = new Random(20140716);
+		GenotypePairStats pairStats = new GenotypePairStats();
+		int countFilter = 0, count = 0;
+
+		for (int iter = 0; iter < 2000; iter++) {
+			int numSamples = 1 + rand.nextInt(200);
+			double probZero = rand.nextDouble();
+
+			double pheno[] = new double[numSamples];
+			for (int i = 0; i < numSamples; i++)
+				pheno[i] = rand.nextInt(10) - 1; // Some phenotypes are missing (negative)
+
+			byte gti[] = randGt(rand, numSamples, probZero);
+			byte gtj[];
+			switch (iter % 4) {
+			case 0:
+				gtj = gti.clone(); // Linearly dependent
+				break;
+
+			case 1:
+				gtj = new byte[numSamples];
+				for (int i = 0; i < numSamples; i++)
+					gtj[i] = (byte) (gti[i] > 0 ? 2 : 1); // Variant in all samples: gtij has the same non-zero entries as gti
+				break;
+
+			default:
+				gtj = randGt(rand, numSamples, probZero);
+			}
+
+			Genotype genoi = new Genotype(null, 0, 0, "i", gti.clone());
+			Genotype genoj = new Genotype(null, 0, 0, "j", gtj.clone());
+
+			// Unpack using minor alleles
+			byte mai[] = genoi.getGt(), maj[] = genoj.getGt();
+			for (int i = 0; i < numSamples; i++) {
+				assertEquals(mai[i], genoi.getGt(i));
+				if (gti[i] < 0) assertEquals(Genotype.GT_MISSING, mai[i]);
+				else assertTrue(mai[i] == gti[i] || mai[i] == 2 - gti[i]);
+			}
+
+			boolean filter = shouldFilterReference(mai, maj, pheno);
+			assertEquals(filter, pairStats.calc(genoi, genoj, GenotypePairStats.missing(pheno)).shouldFilter());
+
+			GwasResult gwasResult = new GwasResult(genoi, genoj, pheno);
+			gwasResult.calcSkip();
+			assertEquals(filter, gwasResult.shouldFilter());
+
+			int countSkip = 0;
+			for (int i = 0; i < numSamples; i++)
+				if (mai[i] < 0 || maj[i] < 0 || pheno[i] < 0) countSkip++;
+			assertEquals(countSkip, gwasResult.getCountSkip());
+
+			// Regression inputs (calculated from packed genotypes)
+			double gtiNoSkip[] = gwasResult.gtiNoSkip(), gtjNoSkip[] = gwasResult.gtjNoSkip(), gtijNoSkip[] = gwasResult.gtijNoSkip(), phenoNoSkip[] = gwasResult.phenoNoSkip();
+			int rows[] = gwasResult.rowsNoSkip();
+			assertEquals(numSamples - countSkip, rows.length);
+			for (int i = 0, idx = 0; i < numSamples; i++) {
+				if (mai[i] < 0 || maj[i] < 0 || pheno[i] < 0) continue;
+				assertEquals(i, rows[idx]);
+				assertEquals(mai[i], gtiNoSkip[idx], 0.0);
+				assertEquals(maj[i], gtjNoSkip[idx], 0.0);
+				assertEquals(mai[i] * maj[i], gtijNoSkip[idx], 0.0);
+				assertEquals(pheno[i], phenoNoSkip[idx], 0.0);
+				idx++;
+			}
+
+			// Pre-calculated statistics: Same results
+			GwasResult gwasResultStats = new GwasResult(genoi, genoj, pheno, GenotypePairStats.missing(pheno), pairStats.calc(genoi, genoj, GenotypePairStats.missing(pheno)));
+			gwasResultStats.calcSkip();
+			assertEquals(filter, gwasResultStats.shouldFilter());
+			assertEquals(countSkip, gwasResultStats.getCountSkip());
+
+			if (filter) countFilter++;
+			count++;
+		}
+
+		if (verbose) Timer.showStdErr("Filtered: " + countFilter + " / " + count);
+		assertTrue(countFilter > 0 && countFilter < count); // Make sure both cases are tested
+	}
+
 }
@@ -1,10 +1,28 @@
 package ca.mcgill.pcingola.epistasis.testCases;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
 import junit.framework.TestCase;
 import ca.mcgill.mcb.pcingola.util.Gpr;
+import ca.mcgill.mcb.pcingola.util.GprSeq;
 import ca.mcgill.mcb.pcingola.util.Timer;
+import ca.mcgill.mcb.pcingola.util.Tuple;
 import ca.mcgill.pcingola.epistasis.Epistasis;
+import ca.mcgill.pcingola.epistasis.likelihood.BoundedCache;
 import ca.mcgill.pcingola.epistasis.likelihood.CoEvolutionLikelihood;
+import ca.mcgill.pcingola.epistasis.likelihood.LikelihoodNullSampler;
+import ca.mcgill.pcingola.epistasis.msa.MultipleSequenceAlignment;
+import ca.mcgill.pcingola.epistasis.msa.MultipleSequenceAlignmentSet;
+import ca.mcgill.pcingola.epistasis.phylotree.LikelihoodTreeAa;
+import ca.mcgill.pcingola.epistasis.phylotree.PhylogeneticTree;
 
 /**
  * Test case likelihood ratio
@@ -73,4 +91,383 @@ public class TestCaseLikelihoodRatioMsa extends TestCase {
 		timer.end();
 		System.out.println("Elapsed: " + timer);
 	}
+
+	/**
+	 * Load test data and create a CoEvolutionLikelihood object
+	 */
+	CoEvolutionLikelihood load() {
+		String treeFile = "test/hg19.100way.nh";
+		String multAlignFile = "test/msas.best.head.fa.gz";
+		String idMapFile = "test/idMap_ensemblId_refseq_pdbId.best.txt";
+		String qMatrixFile = "test/Qhat.txt";
+		String aaFreqsFile = "test/aa.frequencies.txt";
+		String q2MatrixFile = "test/Qhat2.txt";
+		String aaFreqsContactFile = "test/aa.contact.frequencies.txt";
+
+		Epistasis ep = new Epistasis();
+		ep.setTreeFile(treeFile);
+		ep.setMultAlignFile(multAlignFile);
+		ep.setIdMapFile(idMapFile);
+		ep.setqMatrixFile(qMatrixFile);
+		ep.setAaFreqsFile(aaFreqsFile);
+		ep.setQ2MatrixFile(q2MatrixFile);
+		ep.setAaFreqsContactFile(aaFreqsContactFile);
+
+		ep.load();
+		CoEvolutionLikelihood il = ep.newInteractionLikelihood();
+		il.precalcExps();
+		return il;
+	}
+
+	/**
+	 * Likelihood using column patterns should be the same as without patterns
+	 */
+	public void test_02() {
+		CoEvolutionLikelihood il = load();
+		MultipleSequenceAlignmentSet msas = il.getMsas();
+
+		// Pick random column pairs
+		Random random = new Random(20140716);
+		int numPairs = 100;
+		List<MultipleSequenceAlignment> msas1 = new ArrayList<>(), msas2 = new ArrayList<>();
+		List<Integer> idxs1 = new ArrayList<>(), idxs2 = new ArrayList<>();
+		for (int i = 0; i < numPairs; i++) {
+			MultipleSequenceAlignment msa1 = msas.rand(random);
+			MultipleSequenceAlignment msa2 = msas.rand(random);
+			msas1.add(msa1);
+			msas2.add(msa2);
+			idxs1.add(random.nextInt(msa1.getAaSeqLen()));
+			idxs2.add(random.nextInt(msa2.getAaSeqLen()));
+		}
+
+		// Calculate without patterns
+		List<String> results = new ArrayList<>();
+		for (int i = 0; i < numPairs; i++)
+			results.add(il.logLikelihoodRatioStr(msas1.get(i).getId(), idxs1.get(i), msas2.get(i).getId(), idxs2.get(i), false, 0));
+
+		// Calculate patterns and check them
+		msas.calcPatterns();
+		int countCols = 0;
+		for (MultipleSequenceAlignment msa : msas)
+			for (int i = 0; i < msa.getAaSeqLen(); i++, countCols++)
+				assertTrue(Arrays.equals(msa.getColumn(i), msas.getPattern(msa.getPatternId(i))));
+		System.out.println("Columns: " + countCols + "\tPatterns: " + msas.getNumPatterns());
+		assertTrue(msas.getNumPatterns() < countCols);
+
+		// Calculate using patterns (twice, so that the second time results are memoized)
+		for (int iter = 0; iter < 2; iter++)
+			for (int i = 0; i < numPairs; i++) {
+				String res = il.logLikelihoodRatioStr(msas1.get(i).getId(), idxs1.get(i), msas2.get(i).getId(), idxs2.get(i), false, 0);
+				assertEquals(results.get(i), res);
+			}
+	}
+
+	/**
+	 * Null model memoized by column: Results should be the same as without memoization
+	 */
+	public void test_03() {
+		CoEvolutionLikelihood il = load();
+		MultipleSequenceAlignmentSet msas = il.getMsas();
+
+		// Find the two shortest MSAs
+		List<MultipleSequenceAlignment> msasSorted = new ArrayList<>(msas.getMsas());
+		msasSorted.sort((m1, m2) -> m1.getAaSeqLen() - m2.getAaSeqLen());
+		MultipleSequenceAlignment msa1 = msasSorted.get(0), msa2 = msasSorted.get(1);
+
+		// Calculate all pairs
+		LikelihoodTreeAa treeNull = il.getTreeNull();
+		for (int i1 = 0; i1 < msa1.getAaSeqLen(); i1++)
+			for (int i2 = 0; i2 < msa2.getAaSeqLen(); i2++) {
+				String res = il.logLikelihoodRatioStr(msa1.getId(), i1, msa2.getId(), i2, true, 0);
+				double logLikNull = Math.log(Gpr.parseDoubleSafe(res.split("\t")[3]));
+
+				// Compare to null model without memoization
+				double logLikNullExp = il.logLikelihoodNullModel(treeNull, msa1.getColumn(i1), msa2.getColumn(i2));
+				assertEquals(logLikNullExp, logLikNull, EPSILON);
+			}
+
+		// Each column should only be calculated once per gap mask
+		int numPairs = msa1.getAaSeqLen() * msa2.getAaSeqLen();
+		System.out.println("Pairs: " + numPairs + "\tNull model cache hits: " + il.getNullCacheHits() + "\tmisses: " + il.getNullCacheMisses());
+		assertEquals(2 * numPairs, il.getNullCacheHits() + il.getNullCacheMisses());
+		assertTrue(il.getNullCacheHits() > 0);
+	}
+
+	/**
+	 * Column-major storage: Columns, rows and codes should be consistent
+	 */
+	public void test_04() {
+		CoEvolutionLikelihood il = load();
+		MultipleSequenceAlignmentSet msas = il.getMsas();
+
+		Random random = new Random(20140717);
+		for (int n = 0; n < 100; n++) {
+			MultipleSequenceAlignment msa = msas.rand(random);
+			int col = random.nextInt(msa.getAaSeqLen());
+			byte column[] = msa.getColumn(col);
+			ByteBuffer align = msa.getAlign();
+			int offset = msa.getColumnOffset(col);
+			assertEquals(msa.getNumSeqs(), column.length);
+
+			for (int seqNum = 0; seqNum < msa.getNumSeqs(); seqNum++) {
+				assertEquals(msa.getCode(seqNum, col), column[seqNum]);
+				assertEquals(column[seqNum], align.get(offset + seqNum));
+				assertEquals(msa.getRowString(seqNum).charAt(col), msa.getChar(seqNum, col));
+				assertEquals(GprSeq.aa2Code(msa.getChar(seqNum, col)), column[seqNum]);
+			}
+		}
+	}
+
+	/**
+	 * Binary MSA file: Save and load, all MSAs should be the same
+	 */
+	public void test_05() throws Exception {
+		MultipleSequenceAlignmentSet msas = new MultipleSequenceAlignmentSet("test/msas.best.head.fa.gz", 100);
+		msas.load();
+
+		File binFile = File.createTempFile("msas", MultipleSequenceAlignmentSet.BINARY_FILE_EXT);
+		binFile.deleteOnExit();
+		msas.saveBinary(binFile.getPath());
+
+		LikelihoodTreeAa tree = new LikelihoodTreeAa();
+		tree.load("test/hg19.100way.nh");
+		MultipleSequenceAlignmentSet msasBin = new MultipleSequenceAlignmentSet(binFile.getPath(), tree);
+		msasBin.load();
+
+		assertEquals(msas.size(), msasBin.size());
+		assertTrue(Arrays.equals(msas.getSpecies(), msasBin.getSpecies()));
+		for (int i = 0; i < msas.size(); i++) {
+			MultipleSequenceAlignment msa = msas.getMsas().get(i);
+			MultipleSequenceAlignment msaBin = msasBin.getMsas().get(i);
+
+			assertEquals(msa.getId(), msaBin.getId());
+			assertEquals(msa.getTranscriptId(), msaBin.getTranscriptId());
+			assertEquals(msa.isStrandMinus(), msaBin.isStrandMinus());
+			assertEquals(msa.getAaSeqLen(), msaBin.getAaSeqLen());
+			assertEquals(msa.getAlign(), msaBin.getAlign());
+			assertTrue(msaBin.getAlign().isDirect()); // Backed by the mapped file, not copied
+			assertTrue(msaBin == msasBin.getMsa(msa.getId()));
+			assertEquals(msa.toString(), msaBin.toString());
+		}
+
+		// Transcript lists should be the same (including order)
+		for (String trId : msas.getTrIDs()) {
+			List<MultipleSequenceAlignment> msasTr = msas.getMsasByTrId(trId), msasTrBin = msasBin.getMsasByTrId(trId);
+			assertEquals(msasTr.size(), msasTrBin.size());
+			for (int i = 0; i < msasTr.size(); i++)
+				assertEquals(msasTr.get(i).getId(), msasTrBin.get(i).getId());
+		}
+
+		// Species order does not match the tree: Should fail before loading any MSA
+		PhylogeneticTree treeSwap = new PhylogeneticTree("root", tree.getRight(), 1.0, tree.getLeft(), 1.0);
+		MultipleSequenceAlignmentSet msasSwap = new MultipleSequenceAlignmentSet(binFile.getPath(), treeSwap);
+		try {
+			msasSwap.load();
+			fail("Species mismatch not detected");
+		} catch (RuntimeException e) {
+			assertEquals(0, msasSwap.size());
+		}
+	}
+
+	/**
+	 * Parse FASTA file using small chunks (many chunks parsed in parallel, alignments split across buffers): All MSAs should be the same
+	 */
+	public void test_06() {
+		MultipleSequenceAlignmentSet msas = new MultipleSequenceAlignmentSet("test/msas.best.head.fa.gz", 100);
+		msas.load();
+
+		int chunkSize = MultipleSequenceAlignmentSet.FASTA_CHUNK_SIZE;
+		MultipleSequenceAlignmentSet msasChunks = new MultipleSequenceAlignmentSet("test/msas.best.head.fa.gz", 100);
+		try {
+			MultipleSequenceAlignmentSet.FASTA_CHUNK_SIZE = 1000; // Smaller than one alignment
+			msasChunks.load();
+		} finally {
+			MultipleSequenceAlignmentSet.FASTA_CHUNK_SIZE = chunkSize;
+		}
+
+		assertEquals(msas.size(), msasChunks.size());
+		assertTrue(Arrays.equals(msas.getSpecies(), msasChunks.getSpecies()));
+		for (int i = 0; i < msas.size(); i++) {
+			MultipleSequenceAlignment msa = msas.getMsas().get(i);
+			MultipleSequenceAlignment msaChunks = msasChunks.getMsas().get(i);
+			assertEquals(msa.getId(), msaChunks.getId());
+			assertEquals(msa.toString(), msaChunks.toString());
+			assertEquals(msa.getAlign(), msaChunks.getAlign());
+		}
+	}
+
+	/**
+	 * Skip and conservation bitmaps: Compare to values calculated from each column
+	 */
+	public void test_07() {
+		MultipleSequenceAlignmentSet msas = new MultipleSequenceAlignmentSet("test/msas.best.head.fa.gz", 100);
+		msas.load();
+
+		int countSkip = 0, countConserved = 0;
+		for (MultipleSequenceAlignment msa : msas) {
+			for (int pos = 0; pos < msa.getAaSeqLen(); pos++) {
+				// Calculate from column
+				String col = msa.getColumnString(pos);
+				String colNoGaps = col.replace("-", "");
+				boolean conserved = colNoGaps.chars().distinct().count() <= 1;
+				double gapPercent = ((double) (col.length() - colNoGaps.length())) / col.length();
+				boolean skip = (col.charAt(0) == '-') || (gapPercent >= MultipleSequenceAlignment.MAX_GAP_PERCENT) || conserved;
+
+				assertEquals(conserved, msa.isFullyConserved(pos));
+				assertEquals(skip, msa.isSkip(pos));
+				assertEquals((float) gapPercent, msa.gapFraction(pos));
+
+				if (skip) countSkip++;
+				if (conserved) countConserved++;
+			}
+		}
+
+		if (verbose) Timer.showStdErr("Skip: " + countSkip + ", fully conserved: " + countConserved);
+		assertTrue(countSkip > 0);
+		assertTrue(countConserved > 0);
+	}
+
+	/**
+	 * Exon navigation: Walk each transcript forward and backward, compare to transcript's MSA list
+	 */
+	public void test_08() {
+		MultipleSequenceAlignmentSet msas = new MultipleSequenceAlignmentSet("test/msas.best.head.fa.gz", 100);
+		msas.load();
+
+		for (String trId : msas.getTrIDs()) {
+			List<MultipleSequenceAlignment> msasTr = msas.getMsasByTrIdSorted(trId);
+			int len = msas.getTranscriptLength(trId);
+
+			// Exon links
+			for (int i = 0; i < msasTr.size(); i++) {
+				MultipleSequenceAlignment msa = msasTr.get(i);
+				assertEquals(i, msa.getExonNum());
+				assertTrue(msas.findPreviousExon(msa) == (i > 0 ? msasTr.get(i - 1) : null));
+				assertTrue(msas.findNextExon(msa) == (i < msasTr.size() - 1 ? msasTr.get(i + 1) : null));
+			}
+
+			// Walk forward
+			Tuple<MultipleSequenceAlignment, Integer> pos = new Tuple<>(msasTr.get(0), 0);
+			MultipleSequenceAlignment last = msasTr.get(msasTr.size() - 1);
+			for (int trPos = 0; trPos < len; trPos++) {
+				assertEquals(trPos, pos.first.getTranscriptPos(pos.second));
+				Tuple<MultipleSequenceAlignment, Integer> next = msas.findNext(pos.first, pos.second);
+				if (trPos < len - 1) pos = next;
+				else assertNull(next);
+			}
+			assertTrue(pos.first == last);
+			assertEquals(last.getAaSeqLen() - 1, (int) pos.second);
+
+			// Walk backward
+			for (int trPos = len - 1; trPos >= 0; trPos--) {
+				assertEquals(trPos, pos.first.getTranscriptPos(pos.second));
+				Tuple<MultipleSequenceAlignment, Integer> prev = msas.findPrevious(pos.first, pos.second);
+				if (trPos > 0) pos = prev;
+				else assertNull(prev);
+			}
+			assertTrue(pos.first == msasTr.get(0));
+		}
+	}
+
+	/**
+	 * Integer MSA and transcript IDs
+	 */
+	public void test_09() {
+		MultipleSequenceAlignmentSet msas = new MultipleSequenceAlignmentSet("test/msas.best.head.fa.gz", 100);
+		msas.load();
+
+		for (int i = 0; i < msas.size(); i++) {
+			MultipleSequenceAlignment msa = msas.getMsas().get(i);
+			assertEquals(i, msa.getIdNum());
+			assertEquals(i, msas.getMsaIdNum(msa.getId()));
+			assertTrue(msa == msas.getMsa(msa.getIdNum()));
+
+			int trIdNum = msa.getTrIdNum();
+			assertEquals(msa.getTranscriptId(), msas.getTrId(trIdNum));
+			assertEquals(trIdNum, msas.getTrIdNum(msa.getTranscriptId()));
+			assertTrue(msas.getMsasByTrId(trIdNum) == msas.getMsasByTrId(msa.getTranscriptId()));
+		}
+
+		assertEquals(msas.getTrIDs().size(), msas.getNumTranscripts());
+		assertEquals(-1, msas.getMsaIdNum("NM_000000_chr1:1-2"));
+		assertEquals(-1, msas.getTrIdNum("NM_000000"));
+	}
+
+	/**
+	 * Likelihood null distribution: Reproducible output, independent chunks, resume and splits using output files
+	 */
+	public void test_10() throws Exception {
+		CoEvolutionLikelihood il = load();
+		int numSamples = 230, chunkSize = 50;
+
+		// Run twice: Same output
+		String outs[] = new String[2];
+		for (int i = 0; i < outs.length; i++) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			LikelihoodNullSampler sampler = new LikelihoodNullSampler(il, 0);
+			sampler.setChunkSize(chunkSize);
+			sampler.setOut(new PrintStream(bytes));
+			sampler.run(numSamples);
+			outs[i] = bytes.toString();
+		}
+		assertEquals(outs[0], outs[1]);
+		assertEquals(numSamples, outs[0].split("\n").length);
+
+		// Chunks can be calculated independently
+		LikelihoodNullSampler sampler = new LikelihoodNullSampler(il, 0);
+		sampler.setChunkSize(chunkSize);
+		StringBuilder sb = new StringBuilder();
+		for (int chunk = 0; chunk < sampler.numChunks(numSamples); chunk++)
+			sb.append(sampler.chunk(numSamples, chunk));
+		assertEquals(outs[0], sb.toString());
+
+		// Output files, two splits
+		File dir = Files.createTempDirectory("likelihoodNull").toFile();
+		for (int split = 0; split < 2; split++) {
+			sampler = new LikelihoodNullSampler(il, 0);
+			sampler.setChunkSize(chunkSize);
+			sampler.setOutDir(dir.getPath());
+			sampler.setSplit(2, split);
+			sampler.run(numSamples);
+		}
+
+		// Resume: Only missing chunks are calculated
+		String chunk2File = sampler.chunkFile(2);
+		(new File(chunk2File)).delete();
+		Gpr.toFile(sampler.chunkFile(3), "");
+		sampler.setSplit(1, 0);
+		sampler.run(numSamples);
+		assertTrue(Gpr.exists(chunk2File));
+		assertEquals("", Gpr.readFile(sampler.chunkFile(3)));
+
+		// Compare
+		for (int chunk = 0; chunk < sampler.numChunks(numSamples); chunk++) {
+			String chunkFile = sampler.chunkFile(chunk);
+			if (chunk != 3) assertEquals(sampler.chunk(numSamples, chunk), Gpr.readFile(chunkFile));
+			(new File(chunkFile)).delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Bounded cache: Size is limited, entries in use are kept, old entries are evicted
+	 */
+	public void test_11() {
+		int maxSize = 100;
+		BoundedCache<Integer, Integer> cache = new BoundedCache<Integer, Integer>(maxSize);
+
+		for (int i = 0; i < 10 * maxSize; i++) {
+			cache.put(i, i);
+			assertEquals(Integer.valueOf(0), cache.get(0)); // Always used: Never evicted
+			assertTrue(cache.size() <= maxSize + 1);
+		}
+
+		assertNull(cache.get(1)); // Old entry: Evicted
+		assertEquals(Integer.valueOf(10 * maxSize - 1), cache.get(10 * maxSize - 1)); // Recent entry
+		assertTrue(cache.getEvicted() > 0);
+
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertNull(cache.get(0));
+	}
 }
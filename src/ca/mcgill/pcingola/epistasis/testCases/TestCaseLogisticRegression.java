@@ -1,15 +1,24 @@
 package ca.mcgill.pcingola.epistasis.testCases;
 
+import java.util.Arrays;
 import java.util.Random;
 
 import junit.framework.TestCase;
 import ca.mcgill.mcb.pcingola.util.Gpr;
+import ca.mcgill.mcb.pcingola.util.Timer;
+import ca.mcgill.pcingola.epistasis.Genotype;
+import ca.mcgill.pcingola.epistasis.gwas.GwasResult;
+import ca.mcgill.pcingola.epistasis.likelihood.LogisticRegressionGtPair;
 import ca.mcgill.pcingola.optimizers.BFGS;
 import ca.mcgill.pcingola.optimizers.GradientDecent;
 import ca.mcgill.pcingola.optimizers.IRWLS;
 import ca.mcgill.pcingola.optimizers.Minimizer;
 import ca.mcgill.pcingola.optimizers.SteepestDecent;
+import ca.mcgill.pcingola.regression.DesignMatrix;
 import ca.mcgill.pcingola.regression.LogisticRegression;
+import ca.mcgill.pcingola.regression.LogisticRegressionIrwls;
+import ca.mcgill.pcingola.regression.WeightedLeastSquares;
+import ca.mcgill.pcingola.regression.WeightedLinearRegression;
 
 /**
  * Test cases for logistic regression
@@ -312,4 +321,346 @@ public class TestCaseLogisticRegression extends TestCase {
 		String fileName = "test/logReg_test_IRWLS_02.txt";
 		modelFitTest(rand, beta, -1, null, fileName, betaFit, 0.01, "irwls");
 	}
+
+	/**
+	 * Score test: Intercept only model and a binary input is Pearson's Chi-square test
+	 */
+	public void test_08_score_test() {
+		Gpr.debug("Test");
+		Random rand = new Random(20140912);
+
+		for (int iter = 0; iter < 100; iter++) {
+			int N = 50 + rand.nextInt(500);
+			double pIn = 0.1 + 0.8 * rand.nextDouble();
+			double x[] = new double[N], y[] = new double[N];
+			double in[][] = new double[N][0];
+			int counts[][] = new int[2][2];
+			for (int i = 0; i < N; i++) {
+				x[i] = rand.nextDouble() < pIn ? 1 : 0;
+				y[i] = rand.nextDouble() < (x[i] > 0 ? 0.5 : 0.4) ? 1 : 0;
+				counts[(int) x[i]][(int) y[i]]++;
+			}
+
+			// Fit null model (intercept only)
+			LogisticRegression lrNull = new LogisticRegressionIrwls(0);
+			lrNull.setSamplesAddIntercept(in, y);
+			lrNull.learn();
+
+			// Pearson's Chi-square statistic
+			double chi2 = 0;
+			for (int i = 0; i < 2; i++)
+				for (int j = 0; j < 2; j++) {
+					double expected = ((double) (counts[i][0] + counts[i][1])) * (counts[0][j] + counts[1][j]) / N;
+					chi2 += (counts[i][j] - expected) * (counts[i][j] - expected) / expected;
+				}
+
+			double score = lrNull.scoreTest(x);
+			if (verbose) Timer.show("Score: " + score + "\tChi2: " + chi2);
+			assertEquals(chi2, score, 1e-4 * Math.max(1.0, chi2)); // Null model is fitted numerically
+		}
+	}
+
+	/**
+	 * Score test and log likelihood ratio should be similar (asymptotically equivalent)
+	 */
+	public void test_09_score_test_vs_likelihood_ratio() {
+		Gpr.debug("Test");
+		Random rand = new Random(20140912);
+		int N = 5000, size = 3;
+		double beta[] = { 0.5, -0.7, 0.1, -1.0 }; // Last input has a small effect
+
+		for (int iter = 0; iter < 10; iter++) {
+			// Create samples
+			double in[][] = new double[N][size];
+			double inNull[][] = new double[N][size - 1];
+			double y[] = new double[N], x[] = new double[N];
+			for (int i = 0; i < N; i++) {
+				double h = beta[size];
+				for (int j = 0; j < size; j++) {
+					in[i][j] = 2 * rand.nextDouble() - 1.0;
+					h += beta[j] * in[i][j];
+					if (j < size - 1) inNull[i][j] = in[i][j];
+				}
+				x[i] = in[i][size - 1];
+				y[i] = rand.nextDouble() < 1.0 / (1.0 + Math.exp(-h)) ? 1 : 0;
+			}
+
+			// Fit models
+			LogisticRegression lrAlt = new LogisticRegressionIrwls(size);
+			lrAlt.setSamplesAddIntercept(in, y);
+			lrAlt.learn();
+
+			LogisticRegression lrNull = new LogisticRegressionIrwls(size - 1);
+			lrNull.setSamplesAddIntercept(inNull, y);
+			lrNull.learn();
+
+			double llr = 2.0 * (lrAlt.logLikelihood() - lrNull.logLikelihood());
+			double score = lrNull.scoreTest(x);
+			if (verbose) Timer.show("Score: " + score + "\tLog likelihood ratio: " + llr);
+			assertEquals(llr, score, 0.05 * Math.max(1.0, llr));
+		}
+	}
+
+	/**
+	 * Design matrix using shared columns (and skipped samples) should give the same model as copying the data
+	 */
+	public void test_10_design_matrix_shared_columns() {
+		Gpr.debug("Test");
+		Random rand = new Random(20140912);
+		int numSamples = 1000, numCovariates = 4, numGt = 3;
+
+		// Covariates (shared by all models), column-major
+		double covariates[][] = new double[numCovariates][numSamples];
+		for (int j = 0; j < numCovariates; j++)
+			for (int i = 0; i < numSamples; i++)
+				covariates[j][i] = rand.nextGaussian();
+
+		for (int iter = 0; iter < 10; iter++) {
+			// Skip some samples
+			boolean skip[] = new boolean[numSamples];
+			int countSkip = 0;
+			for (int i = 0; i < numSamples; i++)
+				if (skip[i] = rand.nextDouble() < 0.1) countSkip++;
+			int rows[] = DesignMatrix.rows(skip, countSkip);
+			int n = rows.length;
+
+			// Genotypes and phenotypes (non-skipped samples only)
+			double gts[][] = new double[numGt][n];
+			double y[] = new double[n];
+			double in[][] = new double[n][numGt + numCovariates];
+			for (int k = 0; k < n; k++) {
+				for (int j = 0; j < numGt; j++)
+					in[k][j] = gts[j][k] = rand.nextInt(3);
+				for (int j = 0; j < numCovariates; j++)
+					in[k][numGt + j] = covariates[j][rows[k]];
+				y[k] = rand.nextDouble() < 1.0 / (1.0 + Math.exp(-0.3 * (in[k][0] - in[k][4]))) ? 1 : 0;
+			}
+
+			// Copy data
+			LogisticRegression lrCopy = new LogisticRegressionIrwls(numGt + numCovariates);
+			lrCopy.setSamplesAddIntercept(in, y);
+			lrCopy.learn();
+
+			// Shared columns
+			LogisticRegression lrShared = new LogisticRegressionIrwls(numGt + numCovariates);
+			lrShared.setSamples(new DesignMatrix(gts, covariates, rows, true), y);
+			lrShared.learn();
+
+			if (verbose) Timer.show("LL: " + lrShared.logLikelihood() + "\tTheta: " + Gpr.toString(lrShared.getTheta()));
+			assertEquals(lrCopy.logLikelihood(), lrShared.logLikelihood(), 1e-9);
+			double thetaCopy[] = lrCopy.getTheta(), thetaShared[] = lrShared.getTheta();
+			for (int j = 0; j < thetaCopy.length; j++)
+				assertEquals(thetaCopy[j], thetaShared[j], 1e-9);
+		}
+	}
+
+	/**
+	 * Warm start: Alt model starting from Null model's solution should converge to
+	 * the same solution, using less iterations
+	 */
+	public void test_11_warm_start() {
+		Gpr.debug("Test");
+		Random rand = new Random(20140912);
+		int N = 2000, size = 4;
+		double beta[] = { 0.5, -0.7, 0.8, 0.3, -1.0 }; // Last input is the 'extra' input in the Alt model
+		int iterCold = 0, iterWarm = 0;
+
+		for (int iter = 0; iter < 10; iter++) {
+			// Create samples
+			double in[][] = new double[N][size];
+			double inNull[][] = new double[N][size - 1];
+			double y[] = new double[N];
+			for (int i = 0; i < N; i++) {
+				double h = beta[size];
+				for (int j = 0; j < size; j++) {
+					in[i][j] = 2 * rand.nextDouble() - 1.0;
+					h += beta[j] * in[i][j];
+					if (j < size - 1) inNull[i][j] = in[i][j];
+				}
+				y[i] = rand.nextDouble() < 1.0 / (1.0 + Math.exp(-h)) ? 1 : 0;
+			}
+
+			// Fit null model
+			LogisticRegression lrNull = new LogisticRegressionIrwls(size - 1);
+			lrNull.setSamplesAddIntercept(inNull, y);
+			lrNull.learn();
+
+			// Fit Alt model, starting from zero
+			LogisticRegression lrCold = new LogisticRegressionIrwls(size);
+			lrCold.setSamplesAddIntercept(in, y);
+			lrCold.learn();
+
+			// Fit Alt model, starting from Null model (extra parameter is zero)
+			double thetaNull[] = lrNull.getTheta();
+			double thetaInit[] = new double[size + 1];
+			System.arraycopy(thetaNull, 0, thetaInit, 0, size - 1);
+			thetaInit[size] = thetaNull[size - 1]; // Intercept
+
+			LogisticRegression lrWarm = new LogisticRegressionIrwls(size);
+			lrWarm.setSamplesAddIntercept(in, y);
+			lrWarm.setThetaInit(thetaInit);
+			lrWarm.learn();
+
+			if (verbose) Timer.show("Iterations cold: " + lrCold.getNumIterations() + "\twarm: " + lrWarm.getNumIterations() + "\tLL cold: " + lrCold.logLikelihood() + "\twarm: " + lrWarm.logLikelihood());
+			assertEquals(lrCold.logLikelihood(), lrWarm.logLikelihood(), 1e-8);
+			iterCold += lrCold.getNumIterations();
+			iterWarm += lrWarm.getNumIterations();
+		}
+
+		if (verbose) Timer.show("Total iterations cold: " + iterCold + "\twarm: " + iterWarm);
+		assertTrue(iterWarm < iterCold);
+	}
+
+	/**
+	 * Genotype pairs: Fitting 'Alt' model from the 'Null' model's solution (thetaAltInit) should
+	 * give the same log-likelihood as fitting it from zero, in fewer iterations
+	 */
+	public void test_12_warm_start_gt_pair() {
+		Gpr.debug("Test");
+		Random rand = new Random(20140912);
+		String phenoCovFile = "test/pheno.covariates.T2D_13K.txt";
+		int numSamples = Gpr.readFile(phenoCovFile).split("\n")[0].split("\t").length - 1;
+
+		LogisticRegressionGtPair lrCold = new LogisticRegressionGtPair(phenoCovFile, null);
+		lrCold.loadPhenoAndCovariates(phenoCovFile);
+		lrCold.setWarmStart(false);
+
+		LogisticRegressionGtPair lrWarm = new LogisticRegressionGtPair(phenoCovFile, null);
+		lrWarm.loadPhenoAndCovariates(phenoCovFile);
+
+		int count = 0;
+		for (int iter = 0; iter < 10; iter++) {
+			byte gti[] = new byte[numSamples], gtj[] = new byte[numSamples];
+			for (int i = 0; i < numSamples; i++) {
+				gti[i] = (byte) rand.nextInt(3);
+				gtj[i] = (byte) rand.nextInt(3);
+			}
+			Genotype genoi = new Genotype(null, 0, 0, "i_" + iter, gti);
+			Genotype genoj = new Genotype(null, 0, 0, "j_" + iter, gtj);
+
+			GwasResult resCold = lrCold.logLikelihood(genoi, genoj);
+			GwasResult resWarm = lrWarm.logLikelihood(genoi, genoj);
+			if (resCold.shouldFilter()) continue;
+
+			if (verbose) Timer.show("LL cold: " + resCold.likelihoodLogRegAlt + "\twarm: " + resWarm.likelihoodLogRegAlt);
+			assertEquals(resCold.likelihoodLogRegNull, resWarm.likelihoodLogRegNull, 1e-8);
+			assertEquals(resCold.likelihoodLogRegAlt, resWarm.likelihoodLogRegAlt, 1e-8);
+			count++;
+		}
+
+		if (verbose) Timer.show("Iterations cold: " + lrCold.getIterationsAlt() + "\twarm: " + lrWarm.getIterationsAlt());
+		assertTrue(count > 0);
+		assertTrue(lrWarm.getIterationsAlt() < lrCold.getIterationsAlt());
+	}
+
+	/**
+	 * Weighted least squares (Cholesky) should give the same coefficients as WeightedLinearRegression
+	 */
+	public void test_13_weighted_least_squares() {
+		Gpr.debug("Test");
+		Random rand = new Random(20140912);
+
+		for (int iter = 0; iter < 100; iter++) {
+			int N = 20 + rand.nextInt(500), size = 1 + rand.nextInt(10);
+			double in[][] = new double[N][size];
+			double z[] = new double[N], w[] = new double[N];
+			for (int i = 0; i < N; i++) {
+				for (int j = 0; j < size; j++)
+					in[i][j] = rand.nextGaussian();
+				z[i] = rand.nextGaussian();
+				w[i] = rand.nextDouble();
+			}
+
+			DesignMatrix x = new DesignMatrix(in, true);
+			WeightedLinearRegression wlr = new WeightedLinearRegression();
+			assertTrue(wlr.regress(z, x, w));
+
+			WeightedLeastSquares wls = new WeightedLeastSquares(size + 1);
+			assertTrue(wls.solve(z, x, w));
+
+			// Row-major (no design matrix) should give the same coefficients
+			double inIntercept[][] = new double[N][];
+			for (int i = 0; i < N; i++) {
+				inIntercept[i] = Arrays.copyOf(in[i], size + 1);
+				inIntercept[i][size] = 1.0;
+			}
+			WeightedLinearRegression wlrRows = new WeightedLinearRegression();
+			assertTrue(wlrRows.regress(z, inIntercept, w));
+
+			double coefWlr[] = wlr.getCoefficients(), coefWls[] = wls.getCoefficients(), coefRows[] = wlrRows.getCoefficients();
+			for (int j = 0; j <= size; j++) {
+				assertEquals(coefWlr[j], coefWls[j], 1e-9 * Math.max(1.0, Math.abs(coefWlr[j])));
+				assertEquals(coefWlr[j], coefRows[j], 1e-9 * Math.max(1.0, Math.abs(coefWlr[j])));
+			}
+			assertEquals(wlr.getStdErr(), wlrRows.getStdErr(), 1e-9);
+		}
+
+		// Singular matrix (repeated column)
+		double in[][] = new double[100][2];
+		double z[] = new double[100], w[] = new double[100];
+		for (int i = 0; i < in.length; i++) {
+			in[i][0] = in[i][1] = rand.nextInt(3);
+			z[i] = rand.nextGaussian();
+			w[i] = 1.0;
+		}
+		assertFalse(new WeightedLeastSquares(3).solve(z, new DesignMatrix(in, true), w));
+	}
+
+	/**
+	 * Cross product using a shared (pre-calculated) cross product of shared columns
+	 * should be the same as calculating it row by row
+	 */
+	public void test_14_shared_cross_product() {
+		Gpr.debug("Test");
+		Random rand = new Random(20140913);
+
+		for (int iter = 0; iter < 100; iter++) {
+			int numSamples = 20 + rand.nextInt(500), numOwn = rand.nextInt(3), numShared = 1 + rand.nextInt(10);
+			double shared[][] = new double[numShared][numSamples];
+			for (int j = 0; j < numShared; j++)
+				for (int s = 0; s < numSamples; s++)
+					shared[j][s] = rand.nextGaussian();
+			double gram[][] = DesignMatrix.gram(shared, true);
+
+			// Skip some samples
+			boolean skip[] = new boolean[numSamples];
+			int countSkip = 0;
+			for (int s = 0; s < numSamples; s++)
+				if (iter % 2 == 0 && rand.nextDouble() < 0.2) {
+					skip[s] = true;
+					countSkip++;
+				}
+			int rows[] = iter % 4 == 1 ? null : DesignMatrix.rows(skip, countSkip);
+			int numRows = rows != null ? rows.length : numSamples;
+
+			double own[][] = new double[numOwn][numRows];
+			double z[] = new double[numRows], wUniform[] = new double[numRows], w[] = new double[numRows];
+			for (int k = 0; k < numRows; k++) {
+				for (int j = 0; j < numOwn; j++)
+					own[j][k] = rand.nextInt(3);
+				z[k] = rand.nextGaussian();
+				wUniform[k] = 0.25;
+				w[k] = rand.nextDouble();
+			}
+
+			DesignMatrix x = new DesignMatrix(own, shared, rows, true);
+			DesignMatrix xGram = new DesignMatrix(own, shared, rows, true);
+			xGram.setSharedGram(gram);
+
+			// Uniform weights use the shared cross product, others don't: Both should match
+			for (double weights[] : new double[][] { wUniform, w }) {
+				int numCols = x.getNumCols();
+				double xtwx[][] = new double[numCols][numCols], xtwz[] = new double[numCols];
+				double xtwxGram[][] = new double[numCols][numCols], xtwzGram[] = new double[numCols];
+				x.crossProduct(weights, z, xtwx, xtwz, new double[numCols]);
+				xGram.crossProduct(weights, z, xtwxGram, xtwzGram, new double[numCols]);
+
+				for (int i = 0; i < numCols; i++) {
+					assertEquals(xtwz[i], xtwzGram[i], 1e-9 * Math.max(1.0, Math.abs(xtwz[i])));
+					for (int j = 0; j <= i; j++)
+						assertEquals(xtwx[i][j], xtwxGram[i][j], 1e-9 * Math.max(1.0, Math.abs(xtwx[i][j])));
+				}
+			}
+		}
+	}
 }
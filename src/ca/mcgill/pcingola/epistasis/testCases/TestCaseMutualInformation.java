@@ -1,12 +1,18 @@
 package ca.mcgill.pcingola.epistasis.testCases;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Random;
 
 import junit.framework.TestCase;
 
 import org.junit.Assert;
 
+import ca.mcgill.mcb.pcingola.util.GprSeq;
+import ca.mcgill.pcingola.epistasis.coEvolutionMetrics.EntropyCounter;
 import ca.mcgill.pcingola.epistasis.coEvolutionMetrics.EntropySeq;
+import ca.mcgill.pcingola.epistasis.msa.MsaSimilarity;
 import ca.mcgill.pcingola.epistasis.msa.MsaSimilarityMutInf;
 import ca.mcgill.pcingola.epistasis.msa.MultipleSequenceAlignment;
 import ca.mcgill.pcingola.epistasis.msa.MultipleSequenceAlignmentSet;
@@ -50,6 +56,18 @@ public class TestCaseMutualInformation extends TestCase {
 		return s;
 	}
 
+	/**
+	 * Entropy from counts
+	 */
+	double entropy(Collection<Integer> counts, int total) {
+		double h = 0;
+		for (int c : counts) {
+			double p = ((double) c) / total;
+			h -= p * Math.log(p) / Math.log(2.0);
+		}
+		return h;
+	}
+
 	public void checkEntropy(String seqi, String seqj) {
 		// Create "multiple columns" (but just use only one)
 		String colsi[] = { seqi };
@@ -218,4 +236,122 @@ public class TestCaseMutualInformation extends TestCase {
 		checkEntropyMultiple(seqi, seqj);
 	}
 
+	/**
+	 * Entropy counter on column offsets (re-using the same counter) vs string methods
+	 */
+	public void test_21() {
+		Random rand = new Random(20140716);
+		String aas = "ARNDCEQGHILKMFPSTWYV-";
+		EntropyCounter counter = new EntropyCounter();
+
+		for (int it = 0; it < 1000; it++) {
+			// Random columns (with gaps), stored at random offsets
+			int len = 1 + rand.nextInt(100), numAa = 1 + rand.nextInt(aas.length());
+			char ci[] = new char[len], cj[] = new char[len];
+			for (int i = 0; i < len; i++) {
+				ci[i] = aas.charAt(rand.nextInt(numAa));
+				cj[i] = aas.charAt(rand.nextInt(numAa));
+			}
+			String coli = new String(ci), colj = new String(cj);
+
+			int offi = rand.nextInt(10), offj = rand.nextInt(10);
+			byte codesi[] = new byte[offi + len], codesj[] = new byte[offj + len];
+			System.arraycopy(GprSeq.aa2Code(coli), 0, codesi, offi, len);
+			System.arraycopy(GprSeq.aa2Code(colj), 0, codesj, offj, len);
+
+			// Reference: Remove gaps and use (hash based) EntropySeq
+			StringBuilder sbi = new StringBuilder(), sbj = new StringBuilder();
+			for (int i = 0; i < len; i++)
+				if (ci[i] != '-' && cj[i] != '-') {
+					sbi.append(ci[i]);
+					sbj.append(cj[i]);
+				}
+			EntropySeq entropy = new EntropySeq();
+			entropy.calc(new String[] { sbi.toString() }, new String[] { sbj.toString() });
+
+			// Compare
+			counter.count(codesi, offi, codesj, offj, len);
+
+			Assert.assertEquals(entropy.getCount(), counter.getCount());
+			Assert.assertEquals(entropy.getMi(), counter.getMi(), EPSILON);
+			Assert.assertEquals(entropy.getHxy(), counter.getHxy(), EPSILON);
+			Assert.assertEquals(entropy.getHcondXY(), counter.getHcondXY(), EPSILON);
+			Assert.assertEquals(entropy.getHcondYX(), counter.getHcondYX(), EPSILON);
+			Assert.assertEquals(entropy.getVarInf(), counter.getVarInf(), EPSILON);
+			Assert.assertEquals(EntropySeq.entropy(coli), counter.count(codesi, offi, len).getHx(), EPSILON);
+			Assert.assertEquals(EntropySeq.mutualInformation(coli, colj), counter.count(coli, colj).getMi(), EPSILON);
+		}
+	}
+
+	/**
+	 * Entropy of N-column windows: Packed keys vs. string keys
+	 */
+	public void test_22() {
+		MultipleSequenceAlignmentSet msas = new MultipleSequenceAlignmentSet("test/msas.best.head.fa.gz", 100);
+		msas.load();
+
+		Random rand = new Random(20140716);
+		EntropySeq entropy = new EntropySeq();
+		for (int it = 0; it < 1000; it++) {
+			int numBases = rand.nextInt(8); // Windows up to 15 columns (keys are renumbered)
+			MultipleSequenceAlignment msai = msas.rand(rand), msaj = msas.rand(rand);
+			int posi = msai.randomColumnNumber(rand), posj = msaj.randomColumnNumber(rand);
+
+			// Reference: One string per row (window around the column), counted in hash maps
+			String seqsi[] = msas.colSequences(msai.getId(), posi, numBases);
+			String seqsj[] = msas.colSequences(msaj.getId(), posj, numBases);
+			HashMap<String, Integer> countI = new HashMap<>(), countJ = new HashMap<>(), countIJ = new HashMap<>();
+			for (int row = 0; row < msai.getNumSeqs(); row++) {
+				String wi = "", wj = "";
+				for (int k = 0; k < seqsi.length; k++) {
+					wi += seqsi[k] != null ? seqsi[k].charAt(row) : ' ';
+					wj += seqsj[k] != null ? seqsj[k].charAt(row) : ' ';
+				}
+				countI.merge(wi, 1, Integer::sum);
+				countJ.merge(wj, 1, Integer::sum);
+				countIJ.merge(wi + "\t" + wj, 1, Integer::sum);
+			}
+			double hx = entropy(countI.values(), msai.getNumSeqs());
+			double hy = entropy(countJ.values(), msai.getNumSeqs());
+			double hxy = entropy(countIJ.values(), msai.getNumSeqs());
+
+			// Compare: Calculate from MSAs and from column sequences
+			entropy.calc(msai, posi, msaj, posj, numBases);
+			Assert.assertEquals(hx, entropy.getHx(), EPSILON);
+			Assert.assertEquals(hy, entropy.getHy(), EPSILON);
+			Assert.assertEquals(hxy, entropy.getHxy(), EPSILON);
+			Assert.assertEquals(hx + hy - hxy, entropy.getMi(), EPSILON);
+
+			entropy.calc(seqsi, seqsj);
+			Assert.assertEquals(hxy, entropy.getHxy(), EPSILON);
+			Assert.assertEquals(hx + hy - hxy, entropy.getMi(), EPSILON);
+		}
+	}
+
+	/**
+	 * Background distribution: Histogram is reproducible (same seed) and no updates are lost
+	 */
+	public void test_23() {
+		MultipleSequenceAlignmentSet msas = new MultipleSequenceAlignmentSet("test/msas.best.head.fa.gz", 100);
+		msas.load();
+
+		int numSamples = 25000;
+		long counts[][] = new long[2][MsaSimilarity.SCORE_BINS];
+		for (int run = 0; run < counts.length; run++) {
+			MsaSimilarity sim = new MsaSimilarityMutInf(msas);
+			sim.setVerbose(false);
+			sim.setRandomSeed(20140716);
+			sim.backgroundDistribution(numSamples);
+
+			long total = 0;
+			for (int i = 0; i < MsaSimilarity.SCORE_BINS; i++) {
+				counts[run][i] = sim.getCountScore(i);
+				total += counts[run][i];
+			}
+			Assert.assertEquals(numSamples, total);
+		}
+
+		Assert.assertTrue(Arrays.equals(counts[0], counts[1]));
+	}
+
 }
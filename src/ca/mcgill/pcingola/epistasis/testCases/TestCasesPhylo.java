@@ -5,6 +5,7 @@ import junit.framework.TestCase;
 import org.junit.Assert;
 
 import ca.mcgill.mcb.pcingola.util.Gpr;
+import ca.mcgill.pcingola.epistasis.phylotree.LikelihoodTreeAa;
 import ca.mcgill.pcingola.epistasis.phylotree.PhylogeneticTree;
 
 /**
@@ -46,4 +47,22 @@ public class TestCasesPhylo extends TestCase {
 		Assert.assertEquals(0.006429 + 0.002176 + 0.008821, d, 1e-6);
 	}
 
+	/**
+	 * Copy a tree
+	 */
+	public void test_04() {
+		String phyloFile = "test/hg19.100way.commonNames.nh";
+		String phyloTxtFile = "test/hg19.100way.commonNames.txt";
+
+		LikelihoodTreeAa tree = new LikelihoodTreeAa();
+		tree.load(phyloFile);
+		LikelihoodTreeAa treeCopy = tree.copyTree();
+
+		String treeExpected = Gpr.readFile(phyloTxtFile).replace('\n', ' ').trim();
+		Assert.assertEquals(treeExpected, treeCopy.toString());
+		Assert.assertEquals(tree.distance("Human", "Gorilla"), treeCopy.distance("Human", "Gorilla"), 0.0);
+		Assert.assertEquals(tree.child(true).size(), treeCopy.child(true).size());
+		Assert.assertTrue(treeCopy.getLeft().getParent() == treeCopy);
+	}
+
 }
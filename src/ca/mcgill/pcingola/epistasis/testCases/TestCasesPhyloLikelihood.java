@@ -1,14 +1,20 @@
 package ca.mcgill.pcingola.epistasis.testCases;
 
 import java.util.List;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
+import org.apache.commons.math3.linear.RealMatrix;
 import org.junit.Assert;
 
+import ca.mcgill.mcb.pcingola.stats.Counter;
+import ca.mcgill.pcingola.epistasis.phylotree.LikelihoodTreeAa;
 import ca.mcgill.pcingola.epistasis.phylotree.LikelihoodTreeDna;
 import ca.mcgill.pcingola.epistasis.phylotree.PhylogeneticTree;
+import ca.mcgill.pcingola.epistasis.phylotree.TransitionMatrix;
 import ca.mcgill.pcingola.epistasis.phylotree.TransitionMatrix2Times;
+import ca.mcgill.pcingola.epistasis.phylotree.TransitionMatrixMarkov;
 import ca.mcgill.pcingola.epistasis.phylotree.UniformTreeValueCache;
 
 /**
@@ -18,6 +24,30 @@ import ca.mcgill.pcingola.epistasis.phylotree.UniformTreeValueCache;
  */
 public class TestCasesPhyloLikelihood extends TestCase {
 
+	/**
+	 * Reference implementation: Felsenstein's algorithm, one state at a time
+	 */
+	double likelihoodReference(PhylogeneticTree node, TransitionMatrix tmatrix, int aaCode) {
+		if (node.getUniformCode() == -1) return LikelihoodTreeAa.GAP_PROB; // All gaps
+		if (node.isLeaf()) return node.getUniformCode() == aaCode ? 1.0 : 0.0;
+
+		return likelihoodReference(node.getLeft(), tmatrix.matrix(node.getDistanceLeft()), tmatrix, aaCode) //
+				* likelihoodReference(node.getRight(), tmatrix.matrix(node.getDistanceRight()), tmatrix, aaCode);
+	}
+
+	/**
+	 * Reference implementation: Likelihood contribution from a child node
+	 */
+	double likelihoodReference(PhylogeneticTree child, RealMatrix P, TransitionMatrix tmatrix, int aaCode) {
+		if (child.isGap()) return LikelihoodTreeAa.GAP_PROB; // Gaps are not propagated
+
+		double lik = 0;
+		for (int aa2 = 0; aa2 < P.getColumnDimension(); aa2++)
+			lik += P.getEntry(aaCode, aa2) * likelihoodReference(child, tmatrix, aa2);
+
+		return lik;
+	}
+
 	public void test_01() {
 		// Example from: "Computational Molecular Evolution" Z. Yang, Section 4.2.2, page 104
 
@@ -94,4 +124,143 @@ public class TestCasesPhyloLikelihood extends TestCase {
 		// Check likelihood
 		Assert.assertEquals(0.00050975, likelihood, 1e-6);
 	}
+
+	/**
+	 * Compare likelihood on a 20 state model against reference implementation
+	 */
+	public void test_02() {
+		// Small tree, so that the reference implementation is fast enough
+		LikelihoodTreeAa root = new LikelihoodTreeAa(null, "(((s1:0.1,s2:0.2):0.15,s3:0.4):0.25,(s4:0.3,s5:0.05):0.35)", new Counter());
+		Assert.assertEquals(5, root.child(true).size());
+
+		TransitionMatrixMarkov Q = TransitionMatrixMarkov.load("test/Qhat.txt");
+		int n = Q.getRowDimension();
+		double pi[] = new double[n];
+		for (int i = 0; i < n; i++)
+			pi[i] = 1.0 / n;
+		root.setLcache(new UniformTreeValueCache(n));
+
+		Random rand = new Random(20140716);
+		int codes[] = new int[5];
+		for (int iter = 0; iter < 200; iter++) {
+			// Random sequence: Including gaps and uniform sub-trees
+			for (int i = 0; i < codes.length; i++)
+				codes[i] = rand.nextInt(10) == 0 ? -1 : rand.nextInt(4);
+			root.setLeafSequenceCode(codes);
+
+			double lik = root.likelihood(Q, pi);
+
+			double likRef = 0.0;
+			for (int aaCode = 0; aaCode < n; aaCode++)
+				likRef += pi[aaCode] * likelihoodReference(root, Q, aaCode);
+
+			Assert.assertEquals(likRef, lik, 1e-12 * likRef);
+		}
+
+		// Uniform sub-trees should have been re-used
+		System.out.println("Uniform sub-tree cache: " + root.getLcache());
+		Assert.assertTrue(root.getLcache().getHits() > 0);
+	}
+
+	/**
+	 * Log-likelihood should match likelihood (when there is no underflow)
+	 */
+	public void test_03() {
+		LikelihoodTreeAa tree = new LikelihoodTreeAa();
+		tree.load("test/hg19.100way.nh");
+		int numLeaves = tree.child(true).size();
+
+		TransitionMatrixMarkov Q = TransitionMatrixMarkov.load("test/Qhat.txt");
+		int n = Q.getRowDimension();
+		double pi[] = new double[n];
+		for (int i = 0; i < n; i++)
+			pi[i] = 1.0 / n;
+		tree.setLcache(new UniformTreeValueCache(n));
+
+		Random rand = new Random(20140717);
+		int codes[] = new int[numLeaves];
+		for (int iter = 0; iter < 100; iter++) {
+			for (int i = 0; i < codes.length; i++)
+				codes[i] = rand.nextInt(10) == 0 ? -1 : rand.nextInt(3);
+			tree.setLeafSequenceCode(codes);
+
+			double lik = tree.likelihood(Q, pi);
+			double logLik = tree.logLikelihood(Q, pi);
+			Assert.assertTrue(lik > 0);
+			Assert.assertEquals(Math.log(lik), logLik, 1e-9);
+		}
+	}
+
+	/**
+	 * Log-likelihood on a tree large enough to underflow
+	 */
+	public void test_04() {
+		// Caterpillar tree
+		int numLeaves = 400;
+		StringBuilder sb = new StringBuilder("(s0:0.5,s1:0.5)");
+		for (int i = 2; i < numLeaves; i++)
+			sb.insert(0, "(").append(":0.1,s" + i + ":0.5)");
+		LikelihoodTreeAa tree = new LikelihoodTreeAa(null, sb.toString(), new Counter());
+		Assert.assertEquals(numLeaves, tree.child(true).size());
+
+		TransitionMatrixMarkov Q = TransitionMatrixMarkov.load("test/Qhat.txt");
+		int n = Q.getRowDimension();
+		double pi[] = new double[n];
+		for (int i = 0; i < n; i++)
+			pi[i] = 1.0 / n;
+		tree.setLcache(new UniformTreeValueCache(n));
+
+		Random rand = new Random(20140718);
+		int codes[] = new int[numLeaves];
+		for (int i = 0; i < codes.length; i++)
+			codes[i] = rand.nextInt(n);
+		tree.setLeafSequenceCode(codes);
+
+		// Likelihood underflows, log-likelihood should not
+		double lik = tree.likelihood(Q, pi);
+		double logLik = tree.logLikelihood(Q, pi);
+		System.out.println("Likelihood: " + lik + "\tLog-likelihood: " + logLik);
+		Assert.assertEquals(0.0, lik);
+		Assert.assertTrue(logLik < Math.log(Double.MIN_VALUE));
+		Assert.assertTrue(!Double.isInfinite(logLik) && !Double.isNaN(logLik));
+	}
+
+	/**
+	 * Log-likelihoods calculated in blocks of sites should be the same as site by site
+	 */
+	public void test_05() {
+		LikelihoodTreeAa tree = new LikelihoodTreeAa();
+		tree.load("test/hg19.100way.nh");
+		LikelihoodTreeAa treeBlock = tree.copyTree();
+		int numLeaves = tree.child(true).size();
+
+		TransitionMatrixMarkov Q = TransitionMatrixMarkov.load("test/Qhat.txt");
+		int n = Q.getRowDimension();
+		double pi[] = new double[n];
+		for (int i = 0; i < n; i++)
+			pi[i] = 1.0 / n;
+		tree.setLcache(new UniformTreeValueCache(n));
+		treeBlock.setLcache(new UniformTreeValueCache(n));
+
+		// More sites than one block, including gaps, uniform and all-gap columns
+		Random rand = new Random(20140719);
+		int numSites = 2 * LikelihoodTreeAa.MAX_BLOCK_SIZE + 7;
+		int codes[][] = new int[numSites][numLeaves];
+		for (int k = 0; k < numSites; k++) {
+			int maxCode = 1 + rand.nextInt(4);
+			for (int i = 0; i < numLeaves; i++)
+				codes[k][i] = (k % 10 == 9) || rand.nextInt(10) == 0 ? -1 : rand.nextInt(maxCode);
+		}
+
+		double logLiks[] = treeBlock.logLikelihood(Q, pi, codes);
+		for (int k = 0; k < numSites; k++) {
+			tree.setLeafSequenceCode(codes[k]);
+			Assert.assertEquals(tree.logLikelihood(Q, pi), logLiks[k], 0.0);
+		}
+
+		// Again, uniform sub-trees are now cached (sub-trees below cached nodes are not calculated)
+		double logLiksCached[] = treeBlock.logLikelihood(Q, pi, codes);
+		for (int k = 0; k < numSites; k++)
+			Assert.assertEquals(logLiks[k], logLiksCached[k], 0.0);
+	}
 }
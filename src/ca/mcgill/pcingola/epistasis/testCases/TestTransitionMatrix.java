@@ -1,10 +1,15 @@
 package ca.mcgill.pcingola.epistasis.testCases;
 
+import java.util.HashSet;
+
 import junit.framework.TestCase;
 
+import org.apache.commons.math3.linear.EigenDecomposition;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.junit.Assert;
 
+import ca.mcgill.mcb.pcingola.util.Timer;
+import ca.mcgill.pcingola.epistasis.phylotree.LikelihoodTreeAa;
 import ca.mcgill.pcingola.epistasis.phylotree.TransitionMatrixMarkov;
 
 /**
@@ -14,11 +19,50 @@ import ca.mcgill.pcingola.epistasis.phylotree.TransitionMatrixMarkov;
  */
 public class TestTransitionMatrix extends TestCase {
 
+	/**
+	 * Compare matrix exponentials calculated using eigen-decomposition vs 'mexp' for all times in the tree
+	 */
+	void matrixExpEigenTest(String qMatrixFile) {
+		String treeFile = "test/hg19.100way.nh";
+
+		LikelihoodTreeAa tree = new LikelihoodTreeAa();
+		tree.load(treeFile);
+		HashSet<Double> times = new HashSet<>();
+		tree.times(times);
+
+		TransitionMatrixMarkov Qmexp = TransitionMatrixMarkov.load(qMatrixFile);
+		TransitionMatrixMarkov Qeigen = TransitionMatrixMarkov.load(qMatrixFile);
+		Qeigen.setUseEigen(true);
+
+		// Pre-calculate all matrix exponentials using both methods
+		Timer timer = new Timer();
+		times.forEach(t -> Qmexp.matrix(t));
+		timer.end();
+		System.out.println("Matrix '" + qMatrixFile + "', dim: " + Qmexp.getRowDimension() + ", times: " + times.size() + ", elapsed (mexp) : " + timer);
+
+		timer = new Timer();
+		times.forEach(t -> Qeigen.matrix(t));
+		timer.end();
+		System.out.println("Matrix '" + qMatrixFile + "', dim: " + Qeigen.getRowDimension() + ", times: " + times.size() + ", elapsed (eigen): " + timer);
+
+		// Results should match
+		Assert.assertTrue(Qeigen.isUseEigen());
+		for (double t : times) {
+			double norm = Qmexp.matrix(t).subtract(Qeigen.matrix(t)).getNorm();
+			Assert.assertTrue("Time: " + t + "	Norm: " + norm, norm < 1e-9);
+		}
+	}
+
 	void matrixExpTest(double q[][], double time, double expectedResult[][]) {
+		matrixExpTest(q, time, expectedResult, false);
+	}
+
+	void matrixExpTest(double q[][], double time, double expectedResult[][], boolean useEigen) {
 		TransitionMatrixMarkov Q = new TransitionMatrixMarkov(q);
 		TransitionMatrixMarkov expectedExpQ = new TransitionMatrixMarkov(expectedResult);
 
 		Q.setCheck(false);
+		Q.setUseEigen(useEigen);
 
 		System.out.println("M:\n" + Q.toStringNice());
 		RealMatrix expm = Q.matrix(time);
@@ -68,4 +112,65 @@ public class TestTransitionMatrix extends TestCase {
 		matrixExpTest(d, 1.23, dexpM);
 	}
 
+	/**
+	 * Same as test_01, using eigen-decomposition (reversible matrix)
+	 */
+	public void test_03() {
+		double d[][] = { //
+		{ -1.0895987, 0.6663490, 0.4484602, 0.3200064 }, //
+				{ 0.6663490, -1.8240385, 0.2476899, 0.9737323 }, //
+				{ 0.4484602, 0.2476899, -1.6924199, 0.4895511 }, //
+				{ 0.3200064, 0.9737323, 0.4895511, -1.9830556 } //
+		};
+
+		double dexpM[][] = { //
+		{ 0.4844389, 0.2703457, 0.1923003, 0.2075596 }, //
+				{ 0.2703457, 0.3385023, 0.1534394, 0.2488039 }, //
+				{ 0.1923003, 0.1534394, 0.2607338, 0.1585244 }, //
+				{ 0.2075596, 0.2488039, 0.1585244, 0.2814976 } //
+		};
+
+		Assert.assertTrue(new TransitionMatrixMarkov(d).isReversible());
+		matrixExpTest(d, 1.0, dexpM, true);
+	}
+
+	/**
+	 * Same as test_02, using eigen-decomposition (reversible matrix)
+	 */
+	public void test_04() {
+		double d[][] = { //
+		{ -1.8047672, 0.6274654, 0.5668110, 0.2651656, 0.6672857 }, //
+				{ 0.6274654, -1.0824480, 0.8649350, 0.8640146, 0.8659111 }, //
+				{ 0.5668110, 0.8649350, -1.5335464, 0.5487009, 0.2661866 }, //
+				{ 0.2651656, 0.8640146, 0.5487009, -1.8426462, 0.6265072 }, //
+				{ 0.6672857, 0.8659111, 0.2661866, 0.6265072, -1.2799135 }, //
+		};
+
+		double dexpM[][] = { //
+		{ 0.5274814, 0.7768704, 0.5302562, 0.4867408, 0.6174963 }, //
+				{ 0.7768704, 1.3999749, 0.9022502, 0.8629877, 1.0300446 }, //
+				{ 0.5302562, 0.9022502, 0.6862028, 0.5743831, 0.6575905 }, //
+				{ 0.4867408, 0.8629877, 0.5743831, 0.6052957, 0.6637528 }, //
+				{ 0.6174963, 1.0300446, 0.6575905, 0.6637528, 0.8988940 }, //
+		};
+
+		matrixExpTest(d, 1.23, dexpM, true);
+	}
+
+	/**
+	 * Eigen-decomposition vs 'mexp': Qhat (non-reversible)
+	 */
+	public void test_05() {
+		Assert.assertFalse(TransitionMatrixMarkov.load("test/Qhat.txt").isReversible()); // Make sure the general (non-symmetric) case is tested
+		matrixExpEigenTest("test/Qhat.txt");
+	}
+
+	/**
+	 * Eigen-decomposition vs 'mexp': Qhat2 (complex eigenvalues)
+	 */
+	public void test_06() {
+		Assert.assertTrue(new EigenDecomposition(TransitionMatrixMarkov.load("test/Qhat2.txt")).hasComplexEigenvalues()); // Make sure 2x2 blocks are tested
+		matrixExpEigenTest("test/Qhat2.txt");
+	}
+
 }
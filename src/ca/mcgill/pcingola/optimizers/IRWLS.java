@@ -3,7 +3,7 @@ package ca.mcgill.pcingola.optimizers;
 import ca.mcgill.mcb.pcingola.util.Gpr;
 import ca.mcgill.pcingola.optimizers.exceptions.OptimizerException;
 import ca.mcgill.pcingola.regression.LogisticRegression;
-import ca.mcgill.pcingola.regression.WeightedLinearRegression;
+import ca.mcgill.pcingola.regression.WeightedLeastSquares;
 
 /**
  * IRWLS optimization algorithm (Iterated Re-Weighted Least Squares)
@@ -27,6 +27,7 @@ public class IRWLS extends Minimizer {
 	LogisticRegression logReg;
 	double zeta[]; // Output and derivate
 	double w[]; // Weights for re-weighted least squares
+	WeightedLeastSquares wls; // Weighted least squares solver (buffers are re-used in each iteration)
 
 	public IRWLS(LogisticRegression logReg) {
 		super(logReg);
@@ -37,6 +38,7 @@ public class IRWLS extends Minimizer {
 	protected void init() throws OptimizerException {
 		zeta = new double[logReg.getNumSamples()];
 		w = new double[logReg.getNumSamples()];
+		wls = new WeightedLeastSquares(logReg.getTheta().length);
 	}
 
 	/**
@@ -52,6 +54,8 @@ public class IRWLS extends Minimizer {
 	 */
 	@Override
 	protected boolean minimizationStep() throws OptimizerException {
+		iterationNum++;
+
 		// Step I: Evaluate logistic regression and
 		//         calculate intermediate variables nu, zeta, w
 		logReg.evaluate();
@@ -74,8 +78,7 @@ public class IRWLS extends Minimizer {
 		}
 
 		// Step II: Solve weighted least square problem
-		WeightedLinearRegression wlr = new WeightedLinearRegression();
-		if (!wlr.regress(zeta, logReg.getSamplesX(), w)) {
+		if (!wls.solve(zeta, logReg.getSamplesX(), w)) {
 			String msg = "ERROR: Cannot perform regression." //
 					+ "\n\teta  (" + eta.length + "): " + Gpr.toStringHead(eta) //
 					+ "\n\tmu   (" + mu.length + "): " + Gpr.toStringHead(mu) //
@@ -89,7 +92,7 @@ public class IRWLS extends Minimizer {
 		}
 
 		// Set new coefficients
-		logReg.setTheta(wlr.getCoefficients());
+		logReg.setTheta(wls.getCoefficients());
 
 		return true;
 	}
@@ -13,11 +13,16 @@ public abstract class Minimizer extends Optimizer {
 	public final int MAX_KICKSTARTS = 100;
 
 	int numberOfKickStrarts;
+	int numIterations; // Number of minimization steps performed in last run
 
 	public Minimizer(Energy energy) {
 		super(energy);
 	}
 
+	public int getNumIterations() {
+		return numIterations;
+	}
+
 	/**
 	 * Initialize algorithm
 	 */
@@ -75,6 +80,7 @@ public abstract class Minimizer extends Optimizer {
 			}
 		}
 
+		numIterations = step - 1;
 		if (debug) Gpr.debug(this);
 		return optimizerTerminator.status(step);
 	}
@@ -0,0 +1,356 @@
+package ca.mcgill.pcingola.regression;
+
+/**
+ * Design matrix (regression inputs), stored column-major
+ *
+ * Columns are, in this order:
+ * 		i)   'Own' columns: One value per row (e.g. genotypes for a pair of variants)
+ * 		ii)  Shared columns: One value per sample (e.g. covariates). These are never
+ * 		     copied, so the same arrays can be shared by many matrices. Row 'i'
+ * 		     is sample 'rows[i]' (e.g. only samples that are not skipped)
+ * 		iii) Intercept: A column of ones (optional)
+ *
+ * The cross product of shared columns (and intercept) over all samples can be
+ * calculated once (see 'gram()') and shared as well. When the weights are
+ * uniform (e.g. the first IRWLS iteration, starting from theta = 0), only the
+ * blocks involving 'own' columns are calculated row by row.
+ *
+ * @author pcingola
+ */
+public class DesignMatrix {
+
+	int numRows;
+	int rows[]; // Row 'i' corresponds to sample 'rows[i]' in shared columns (null: all samples)
+	double columns[][]; // Own columns: columns[col][row]
+	double shared[][]; // Shared columns: shared[col][sample]
+	boolean intercept; // Add a column of ones at the end
+	double sharedGram[][]; // Cross product of shared columns and intercept over all samples (null: not available)
+
+	/**
+	 * Transpose a (row-major) matrix: Create columns
+	 */
+	public static double[][] columns(double x[][]) {
+		int numCols = x.length > 0 ? x[0].length : 0;
+		double cols[][] = new double[numCols][x.length];
+		for (int i = 0; i < x.length; i++)
+			for (int j = 0; j < numCols; j++)
+				cols[j][i] = x[i][j];
+		return cols;
+	}
+
+	/**
+	 * Cross product C^T * C of shared columns 'shared[col][sample]' and intercept (if any), over all samples
+	 * Returns null if there are no shared columns
+	 */
+	public static double[][] gram(double shared[][], boolean intercept) {
+		if (shared.length == 0) return null;
+
+		int dim = shared.length + (intercept ? 1 : 0);
+		int numSamples = shared[0].length;
+		double gram[][] = new double[dim][dim];
+		double values[] = new double[dim];
+		for (int s = 0; s < numSamples; s++) {
+			sharedRow(shared, intercept, s, values, 0);
+			for (int i = 0; i < dim; i++)
+				for (int j = 0; j <= i; j++)
+					gram[i][j] += values[i] * values[j];
+		}
+
+		// Symmetric matrix: Copy lower triangle
+		for (int i = 0; i < dim; i++)
+			for (int j = i + 1; j < dim; j++)
+				gram[i][j] = gram[j][i];
+
+		return gram;
+	}
+
+	/**
+	 * Indexes of samples that are not skipped
+	 */
+	public static int[] rows(boolean skip[], int countSkip) {
+		int rows[] = new int[skip.length - countSkip];
+		for (int i = 0, idx = 0; i < skip.length; i++)
+			if (!skip[i]) rows[idx++] = i;
+		return rows;
+	}
+
+	/**
+	 * Copy shared columns (and intercept) for sample 'sample' into 'values[]', starting at 'offset'
+	 */
+	static void sharedRow(double shared[][], boolean intercept, int sample, double values[], int offset) {
+		for (int j = 0; j < shared.length; j++)
+			values[offset++] = shared[j][sample];
+		if (intercept) values[offset] = 1.0;
+	}
+
+	/**
+	 * Create a matrix from (row-major) data 'x[row][col]'. Data is copied
+	 */
+	public DesignMatrix(double x[][], boolean intercept) {
+		columns = columns(x);
+		shared = new double[0][];
+		numRows = x.length;
+		this.intercept = intercept;
+	}
+
+	/**
+	 * Create a matrix from columns (no data is copied)
+	 * @param columns : Own columns, columns[col][row]
+	 * @param shared : Shared columns, shared[col][sample]
+	 * @param rows : Sample number for each row in shared columns (null means 'all samples')
+	 */
+	public DesignMatrix(double columns[][], double shared[][], int rows[], boolean intercept) {
+		this.columns = columns;
+		this.shared = shared;
+		this.rows = rows;
+		this.intercept = intercept;
+
+		// Number of rows
+		if (rows != null) numRows = rows.length;
+		else if (columns.length > 0) numRows = columns[0].length;
+		else if (shared.length > 0) numRows = shared[0].length;
+		else throw new RuntimeException("Cannot infer number of rows");
+
+		for (double col[] : columns)
+			if (col.length != numRows) throw new RuntimeException("Column length does not match number of rows: " + col.length + " != " + numRows);
+	}
+
+	/**
+	 * Weighted cross product X^T * W * X (W = diag(w)).
+	 * Result is stored in 'xtwx[][]' (numCols x numCols)
+	 */
+	public void crossProduct(double w[], double xtwx[][]) {
+		int numCols = getNumCols();
+		for (int i = 0; i < numCols; i++)
+			for (int j = 0; j <= i; j++)
+				xtwx[i][j] = 0;
+
+		double row[] = new double[numCols];
+		for (int k = 0; k < numRows; k++) {
+			row(k, row);
+			double wk = w[k];
+			for (int i = 0; i < numCols; i++) {
+				double wi = wk * row[i];
+				if (wi == 0) continue;
+				double xtwxi[] = xtwx[i];
+				for (int j = 0; j <= i; j++)
+					xtwxi[j] += wi * row[j];
+			}
+		}
+
+		// Symmetric matrix: Copy lower triangle
+		for (int i = 0; i < numCols; i++)
+			for (int j = i + 1; j < numCols; j++)
+				xtwx[i][j] = xtwx[j][i];
+	}
+
+	/**
+	 * Weighted cross products X^T * W * X and X^T * W * z, in one pass over the rows
+	 * Only the lower triangle of 'xtwx[][]' is calculated. Buffer 'row[]' must have at least numCols elements
+	 */
+	public void crossProduct(double w[], double z[], double xtwx[][], double xtwz[], double row[]) {
+		if (sharedGram != null && isUniform(w)) {
+			crossProductSharedGram(w[0], z, xtwx, xtwz, row);
+			return;
+		}
+
+		int numCols = getNumCols();
+		for (int i = 0; i < numCols; i++) {
+			xtwz[i] = 0;
+			for (int j = 0; j <= i; j++)
+				xtwx[i][j] = 0;
+		}
+
+		for (int k = 0; k < numRows; k++) {
+			row(k, row);
+			double wk = w[k], wzk = wk * z[k];
+			for (int i = 0; i < numCols; i++) {
+				xtwz[i] += wzk * row[i];
+				double wi = wk * row[i];
+				if (wi == 0) continue;
+				double xtwxi[] = xtwx[i];
+				for (int j = 0; j <= i; j++)
+					xtwxi[j] += wi * row[j];
+			}
+		}
+	}
+
+	/**
+	 * Same as 'crossProduct(w, z, xtwx, xtwz, row)' for uniform weights 'w0'
+	 * The shared block is w0 * C^T * C, calculated from the shared cross product by
+	 * removing samples that are not in this matrix, so each row is only multiplied by
+	 * 'own' columns: O(numRows * numCols * numOwnCols) instead of O(numRows * numCols^2)
+	 */
+	void crossProductSharedGram(double w0, double z[], double xtwx[][], double xtwz[], double row[]) {
+		int numCols = getNumCols(), numOwn = columns.length;
+		for (int i = 0; i < numCols; i++) {
+			xtwz[i] = 0;
+			for (int j = 0; j <= i; j++)
+				xtwx[i][j] = 0;
+		}
+
+		// Blocks involving 'own' columns
+		for (int k = 0; k < numRows; k++) {
+			row(k, row);
+			double wzk = w0 * z[k];
+			for (int i = 0; i < numCols; i++) {
+				xtwz[i] += wzk * row[i];
+				double wi = w0 * row[i];
+				if (wi == 0) continue;
+				double xtwxi[] = xtwx[i];
+				for (int j = 0, jmax = Math.min(i, numOwn - 1); j <= jmax; j++)
+					xtwxi[j] += wi * row[j];
+			}
+		}
+
+		// Shared block: Shared cross product minus samples not in this matrix
+		for (int i = numOwn; i < numCols; i++)
+			for (int j = numOwn; j <= i; j++)
+				xtwx[i][j] = sharedGram[i - numOwn][j - numOwn];
+
+		if (rows != null) {
+			int numSamples = shared[0].length;
+			for (int s = 0, k = 0; s < numSamples; s++) {
+				if (k < numRows && rows[k] == s) {
+					k++;
+					continue;
+				}
+
+				sharedRow(shared, intercept, s, row, numOwn);
+				for (int i = numOwn; i < numCols; i++) {
+					double xtwxi[] = xtwx[i];
+					for (int j = numOwn; j <= i; j++)
+						xtwxi[j] -= row[i] * row[j];
+				}
+			}
+		}
+
+		for (int i = numOwn; i < numCols; i++)
+			for (int j = numOwn; j <= i; j++)
+				xtwx[i][j] *= w0;
+	}
+
+	/**
+	 * Value at row 'row', column 'col'
+	 */
+	public double get(int row, int col) {
+		if (col < columns.length) return columns[col][row];
+		col -= columns.length;
+		if (col < shared.length) return shared[col][rows != null ? rows[row] : row];
+		if (intercept && col == shared.length) return 1.0;
+		throw new RuntimeException("Column out of range: " + (col + columns.length));
+	}
+
+	public int getNumCols() {
+		return columns.length + shared.length + (intercept ? 1 : 0);
+	}
+
+	public int getNumRows() {
+		return numRows;
+	}
+
+	/**
+	 * Are all weights equal?
+	 */
+	boolean isUniform(double w[]) {
+		if (numRows == 0) return false;
+		double w0 = w[0];
+		for (int k = 1; k < numRows; k++)
+			if (w[k] != w0) return false;
+		return true;
+	}
+
+	/**
+	 * Matrix times vector: result = X * theta
+	 */
+	public double[] multiply(double theta[], double result[]) {
+		for (int k = 0; k < numRows; k++)
+			result[k] = 0.0;
+
+		// Own columns
+		for (int j = 0; j < columns.length; j++) {
+			double col[] = columns[j], t = theta[j];
+			for (int k = 0; k < numRows; k++)
+				result[k] += t * col[k];
+		}
+
+		// Shared columns
+		for (int j = 0; j < shared.length; j++) {
+			double col[] = shared[j], t = theta[columns.length + j];
+			if (rows == null) {
+				for (int k = 0; k < numRows; k++)
+					result[k] += t * col[k];
+			} else {
+				for (int k = 0; k < numRows; k++)
+					result[k] += t * col[rows[k]];
+			}
+		}
+
+		// Intercept
+		if (intercept) {
+			double t = theta[columns.length + shared.length];
+			for (int k = 0; k < numRows; k++)
+				result[k] += t;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Transposed matrix times vector: result = X^T * v
+	 */
+	public double[] multiplyTransposed(double v[], double result[]) {
+		for (int j = 0; j < columns.length; j++) {
+			double col[] = columns[j], sum = 0;
+			for (int k = 0; k < numRows; k++)
+				sum += col[k] * v[k];
+			result[j] = sum;
+		}
+
+		for (int j = 0; j < shared.length; j++) {
+			double col[] = shared[j], sum = 0;
+			for (int k = 0; k < numRows; k++)
+				sum += col[rows != null ? rows[k] : k] * v[k];
+			result[columns.length + j] = sum;
+		}
+
+		if (intercept) {
+			double sum = 0;
+			for (int k = 0; k < numRows; k++)
+				sum += v[k];
+			result[columns.length + shared.length] = sum;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Copy row 'row' into 'values[]'
+	 */
+	public double[] row(int row, double values[]) {
+		int idx = 0;
+		for (int j = 0; j < columns.length; j++)
+			values[idx++] = columns[j][row];
+
+		sharedRow(shared, intercept, rows != null ? rows[row] : row, values, idx);
+		return values;
+	}
+
+	/**
+	 * Use a pre-calculated cross product of the shared columns and intercept (see 'gram()'), null to disable
+	 * Note: Rows must be in increasing sample order
+	 */
+	public void setSharedGram(double sharedGram[][]) {
+		if (sharedGram != null) {
+			int dim = shared.length + (intercept ? 1 : 0);
+			if (shared.length == 0 || sharedGram.length != dim) throw new RuntimeException("Shared cross product size does not match shared columns: " + sharedGram.length + " != " + dim);
+			if (rows != null) {
+				for (int k = 1; k < numRows; k++)
+					if (rows[k] <= rows[k - 1]) throw new RuntimeException("Rows must be in increasing sample order");
+			}
+		}
+
+		this.sharedGram = sharedGram;
+	}
+
+}
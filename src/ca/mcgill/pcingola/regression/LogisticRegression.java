@@ -3,6 +3,7 @@ package ca.mcgill.pcingola.regression;
 import java.util.Arrays;
 
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
 import org.apache.commons.math3.linear.LUDecomposition;
 
 import ca.mcgill.mcb.pcingola.util.Gpr;
@@ -47,9 +48,11 @@ public class LogisticRegression extends Regression {
 		Arrays.fill(gradient, 0.0); // First guess: All parameters are zero
 
 		int countSamples = 0;
+		double in[] = new double[dim];
 		for (int i = 0; i < numSamples; i++) {
+			samplesX.row(i, in);
 			for (int j = 0; j < dim; j++)
-				gradient[j] -= (samplesY[i] - out[i]) * samplesX[i][j];
+				gradient[j] -= (samplesY[i] - out[i]) * in[j];
 
 			countSamples++;
 		}
@@ -73,15 +76,11 @@ public class LogisticRegression extends Regression {
 		int N = getNumSamples();
 		double p[] = getOut(); // Output of logistic regression is probability
 
-		// Calculate the Hessian matrix
-		for (int i = 0; i < n; i++)
-			for (int j = 0; j < n; j++) {
-				double ss = 0;
-				for (int s = 0; s < N; s++)
-					ss += samplesX[s][i] * samplesX[s][j] * p[s] * (1 - p[s]);
-
-				H[i][j] = ss;
-			}
+		// Calculate the Hessian matrix: X^T * W * X, where W = diag( p (1 - p) )
+		double w[] = new double[N];
+		for (int s = 0; s < N; s++)
+			w[s] = p[s] * (1 - p[s]);
+		samplesX.crossProduct(w, H);
 
 		if (debug) Gpr.debug("H:\n" + Gpr.toString(H));
 
@@ -162,13 +161,14 @@ public class LogisticRegression extends Regression {
 		if (out == null) {
 			if (samplesX == null) return null;
 
-			out = new double[samplesX.length];
-			h = new double[samplesX.length];
+			out = new double[numSamples];
+			h = new double[numSamples];
 		}
 
-		// Calculate model for each input
+		// Calculate model for each input: h = X * theta (last column in X is 'intercept')
+		samplesX.multiply(theta, h);
 		for (int i = 0; i < numSamples; i++)
-			out[i] = predict(i);
+			out[i] = 1.0 / (1.0 + Math.exp(-h[i])); // Calculate logit(h)
 
 		return out;
 	}
@@ -187,29 +187,54 @@ public class LogisticRegression extends Regression {
 		return 1.0 / (1.0 + Math.exp(-h));
 	}
 
+	@Override
+	public void reset() {
+		super.reset();
+		loglik = Double.NaN;
+	}
+
 	/**
-	 * Predict input sample 'idx'
+	 * Score (Rao) test statistic for adding input 'x[]' (one value per sample) to a fitted model
+	 *
+	 * Uses only the residuals and weights of this (fitted) model, so the extended model
+	 * does not need to be fitted:
+	 *
+	 * 		U = sum_s x_s (y_s - mu_s)
+	 * 		I = x^T W x - x^T W X (X^T W X)^-1 X^T W x			where W = diag( mu_s (1 - mu_s) )
+	 *
+	 * The statistic U^2 / I is asymptotically equivalent to the log likelihood ratio
+	 * (Chi-square distribution with one degree of freedom).
+	 *
+	 * @return Score statistic, or NaN if it cannot be calculated (e.g. singular matrix)
 	 */
-	protected double predict(int idx) {
-		double sum = 0.0;
-		double in[] = samplesX[idx];
-
-		// h = beta * in
-		for (int i = 0; i < size; i++)
-			sum += in[i] * theta[i];
+	public double scoreTest(double x[]) {
+		if (x.length != numSamples) throw new RuntimeException("Number of values does not match number of samples: " + x.length + " != " + numSamples);
+		double mu[] = predict();
+
+		double u = 0, xwx = 0;
+		double w[] = new double[numSamples], wx[] = new double[numSamples];
+		for (int s = 0; s < numSamples; s++) {
+			w[s] = mu[s] * (1.0 - mu[s]);
+			wx[s] = w[s] * x[s];
+			u += x[s] * (samplesY[s] - mu[s]);
+			xwx += wx[s] * x[s];
+		}
 
-		sum += theta[size]; // Last value is 'bias'
+		double xtwx[][] = new double[dim][dim];
+		samplesX.crossProduct(w, xtwx);
+		double xtwz[] = samplesX.multiplyTransposed(wx, new double[dim]);
 
-		h[idx] = sum; // Store 'h'
+		// Information (efficient score variance), adjusted for the model's parameters
+		LUDecomposition lu = new LUDecomposition(new Array2DRowRealMatrix(xtwx, false));
+		if (!lu.getSolver().isNonSingular()) return Double.NaN;
+		double c[] = lu.getSolver().solve(new ArrayRealVector(xtwz, false)).toArray();
 
-		// Calculate logit(h)
-		return 1.0 / (1.0 + Math.exp(-sum));
-	}
+		double info = xwx;
+		for (int i = 0; i < dim; i++)
+			info -= xtwz[i] * c[i];
 
-	@Override
-	public void reset() {
-		super.reset();
-		loglik = Double.NaN;
+		if (info <= 0) return Double.NaN;
+		return u * u / info;
 	}
 
 	public void setMinGradient(double minGradient) {
@@ -18,8 +18,9 @@ public abstract class Regression extends Energy {
 	int numSamples;
 	int size;
 	int maxIterations = 10000; // Maximum number of iterations
-	double samplesX[][]; // Samples: Input data
+	DesignMatrix samplesX; // Samples: Input data (including intercept column)
 	double samplesY[]; // Samples: Output (real outputs)
+	double thetaInit[]; // Initial parameters used in 'learn()' (warm start). If null, start from zero (or random)
 	double out[]; // Predicted outputs (model output)
 	Random rand;
 	Minimizer minimizer;
@@ -34,6 +35,18 @@ public abstract class Regression extends Energy {
 		if (in[0].length != (dim - 1)) throw new RuntimeException("Input dimension does not model size. Dim(in) = [ " + in.length + " , " + in[0].length + " ], Dim(out) = " + (dim - 1));
 	}
 
+	void checkSamples(DesignMatrix in, double out[]) {
+		if (in.getNumRows() != out.length) throw new RuntimeException("Sample dimensions do not match. Dim(in) = [ " + in.getNumRows() + " , " + in.getNumCols() + " ], Dim(out) = " + out.length);
+		if (in.getNumCols() != dim) throw new RuntimeException("Input dimension does not model size. Dim(in) = [ " + in.getNumRows() + " , " + in.getNumCols() + " ], Dim(out) = " + dim);
+	}
+
+	/**
+	 * Number of iterations performed by the minimizer (last call to 'learn()')
+	 */
+	public int getNumIterations() {
+		return minimizer != null ? minimizer.getNumIterations() : 0;
+	}
+
 	/**
 	 * Number of samples to regress
 	 */
@@ -45,7 +58,7 @@ public abstract class Regression extends Energy {
 		return out;
 	}
 
-	public double[][] getSamplesX() {
+	public DesignMatrix getSamplesX() {
 		return samplesX;
 	}
 
@@ -67,7 +80,8 @@ public abstract class Regression extends Energy {
 	 * Learn: Fit model
 	 */
 	public double[] learn() {
-		if (rand != null) initModelRand();
+		if (thetaInit != null) setTheta(thetaInit); // Warm start
+		else if (rand != null) initModelRand();
 		else Arrays.fill(theta, 0.0);
 
 		if (minimizer == null) minimizer = new SteepestDecent(this);
@@ -88,11 +102,12 @@ public abstract class Regression extends Energy {
 	public double[] predict() {
 		if (!predictNeedsUpdate) return out;
 
-		if (out == null) out = new double[samplesX.length];
+		if (out == null) out = new double[numSamples];
 
 		// Calculate model for each input
+		double in[] = new double[dim];
 		for (int i = 0; i < numSamples; i++)
-			out[i] = predict(samplesX[i]);
+			out[i] = predict(samplesX.row(i, in));
 
 		return out;
 	}
@@ -135,25 +150,34 @@ public abstract class Regression extends Energy {
 	}
 
 	/**
-	 * Data is copied into new arrays
-	 * Input samples are added one column at the end with value '1' (intercept or 'bias' term in models)
+	 * Set samples. Input data is not copied, so shared columns can be re-used by many models
+	 * Note: Design matrix must include the intercept column (last column)
 	 */
-	public void setSamplesAddIntercept(double in[][], double out[]) {
+	public void setSamples(DesignMatrix in, double out[]) {
 		checkSamples(in, out);
 
-		numSamples = in.length;
-		samplesX = new double[numSamples][dim];
+		numSamples = in.getNumRows();
+		samplesX = in;
 
-		// Copy data
-		for (int i = 0; i < numSamples; i++) {
-			for (int j = 0; j < size; j++)
-				samplesX[i][j] = in[i][j];
+		if (samplesY == null || samplesY.length != out.length) samplesY = new double[out.length];
+		System.arraycopy(out, 0, samplesY, 0, out.length);
+	}
 
-			samplesX[i][size] = 1.0; // Add 'intercept' term (last term in the equation)
-		}
+	/**
+	 * Data is copied into new arrays
+	 * Input samples are added one column at the end with value '1' (intercept or 'bias' term in models)
+	 */
+	public void setSamplesAddIntercept(double in[][], double out[]) {
+		checkSamples(in, out);
+		setSamples(new DesignMatrix(in, true), out);
+	}
 
-		if (samplesY == null) samplesY = new double[out.length];
-		System.arraycopy(out, 0, samplesY, 0, out.length);
+	/**
+	 * Initial parameters for 'learn()' (e.g. a solution from a similar model). Null to start from zero
+	 */
+	public void setThetaInit(double thetaInit[]) {
+		if (thetaInit != null && thetaInit.length != theta.length) throw new RuntimeException("Number of parameters does not match model size: " + thetaInit.length + " != " + theta.length);
+		this.thetaInit = thetaInit;
 	}
 
 	@Override
@@ -180,11 +204,13 @@ public abstract class Regression extends Energy {
 		sb.append("predict\tout\n");
 
 		// Show data
+		double in[] = new double[dim];
 		for (int i = 0; i < numSamples; i++) {
+			samplesX.row(i, in);
 			for (int j = 0; j < dim; j++)
-				sb.append(samplesX[i][j] + "\t");
+				sb.append(in[j] + "\t");
 
-			sb.append(predict(samplesX[i]) + "\t");
+			sb.append(predict(in) + "\t");
 			sb.append(samplesY[i] + "\n");
 		}
 
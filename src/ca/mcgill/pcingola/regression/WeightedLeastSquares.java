@@ -0,0 +1,94 @@
+package ca.mcgill.pcingola.regression;
+
+/**
+ * Weighted least squares solver, used in IRWLS iterations
+ *
+ * Solves the normal equations (X^T W X) beta = X^T W z using a Cholesky
+ * decomposition (no matrix inversion). Only the coefficients are calculated
+ * (see WeightedLinearRegression for fit statistics).
+ *
+ * All buffers are allocated once and re-used in every call to 'solve()',
+ * so an object must not be shared between threads.
+ *
+ * @author pcingola
+ */
+public class WeightedLeastSquares {
+
+	public static double EPSILON = 1e-12; // Relative tolerance for pivots (singular matrix)
+
+	int dim; // Number of coefficients
+	double xtwx[][]; // X^T W X, replaced by its Cholesky decomposition (lower triangle)
+	double xtwz[]; // X^T W z
+	double row[]; // Buffer: One row of the design matrix
+	double coefficients[];
+
+	public WeightedLeastSquares(int dim) {
+		this.dim = dim;
+		xtwx = new double[dim][dim];
+		xtwz = new double[dim];
+		row = new double[dim];
+		coefficients = new double[dim];
+	}
+
+	/**
+	 * Cholesky decomposition of the lower triangle of 'xtwx' (in place): X^T W X = L L^T
+	 * @return false if the matrix is not positive definite (or close to singular)
+	 */
+	boolean cholesky() {
+		for (int i = 0; i < dim; i++) {
+			double li[] = xtwx[i];
+			for (int j = 0; j <= i; j++) {
+				double lj[] = xtwx[j];
+				double sum = li[j];
+				for (int k = 0; k < j; k++)
+					sum -= li[k] * lj[k];
+
+				if (i == j) {
+					if (!(sum > EPSILON * li[i])) return false; // Not positive definite, singular (or NaN)
+					li[i] = Math.sqrt(sum);
+				} else li[j] = sum / lj[j];
+			}
+		}
+
+		return true;
+	}
+
+	public double[] getCoefficients() {
+		return coefficients;
+	}
+
+	/**
+	 * Solve weighted least squares problem
+	 *  z[k] = k-th observed data point
+	 *  X    = Design matrix
+	 *  w[k] = k-th weight value
+	 * @return true if OK, false if the system cannot be solved (e.g. not enough data or singular matrix)
+	 */
+	public boolean solve(double z[], DesignMatrix X, double w[]) {
+		if (X.getNumCols() != dim) throw new RuntimeException("Number of columns does not match: " + X.getNumCols() + " != " + dim);
+		if (X.getNumRows() <= dim) return false; // Not enough data
+
+		X.crossProduct(w, z, xtwx, xtwz, row);
+		if (!cholesky()) return false;
+
+		// Forward substitution: L y = X^T W z
+		for (int i = 0; i < dim; i++) {
+			double li[] = xtwx[i];
+			double sum = xtwz[i];
+			for (int k = 0; k < i; k++)
+				sum -= li[k] * coefficients[k];
+			coefficients[i] = sum / li[i];
+		}
+
+		// Backward substitution: L^T beta = y
+		for (int i = dim - 1; i >= 0; i--) {
+			double sum = coefficients[i];
+			for (int k = i + 1; k < dim; k++)
+				sum -= xtwx[k][i] * coefficients[k];
+			coefficients[i] = sum / xtwx[i][i];
+		}
+
+		return true;
+	}
+
+}
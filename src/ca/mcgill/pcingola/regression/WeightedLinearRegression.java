@@ -1,5 +1,7 @@
 package ca.mcgill.pcingola.regression;
 
+import java.util.function.Consumer;
+
 import ca.mcgill.mcb.pcingola.util.Gpr;
 
 /**
@@ -21,68 +23,14 @@ public class WeightedLinearRegression {
 	double[] yCalc; // Calculated values of Y
 	double[] yResiduals; // Residual values of Y
 
-	public double[] getCoefficients() {
-		return coefficients;
-	}
-
-	public double getRegressF() {
-		return regressF;
-	}
-
-	public double getRYSQ() {
-		return RYSQ;
-	}
-
-	public double getStdErr() {
-		return stdErr;
-	}
-
-	public double[] getStdErrCoeff() {
-		return stdErrCoeff;
-	}
-
-	public double[] getyResiduals() {
-		return yResiduals;
-	}
-
 	/**
-	 * Perform regression
-	 *  y[j]   = j-th observed data point
-	 *  X[i,j] = j-th value of the i-th independent variable
-	 *  w[j]   = j-th weight value
+	 * Calculate coefficients and statistics, once the least squares matrix (V) and vector (B) are formed
+	 * Note: 'yCalc' is calculated by 'predictor' from the coefficients
 	 */
-	public boolean regress(double[] y, double[][] X, double[] w) {
-
+	boolean fit(double[] y, double[] w, double[] B, Consumer<double[]> predictor) {
 		int M = y.length; // M = Number of data points
-		int N = X[0].length; // N = Number of linear terms
+		int N = B.length; // N = Number of linear terms
 		int df = M - N; // Degrees of freedom
-		yCalc = new double[M];
-		yResiduals = new double[M];
-
-		// If not enough data, don't attempt regression
-		if (df < 1) return false;
-
-		V = new double[N][N];
-		coefficients = new double[N];
-		stdErrCoeff = new double[N];
-		double[] B = new double[N]; // Vector for LSQ
-
-		// Clear the matrices to start out
-		for (int i = 0; i < N; i++)
-			for (int j = 0; j < N; j++)
-				V[i][j] = 0;
-
-		// Form Least Squares Matrix
-		for (int i = 0; i < N; i++) {
-			for (int j = 0; j < N; j++) {
-				V[i][j] = 0;
-				for (int k = 0; k < M; k++)
-					V[i][j] = V[i][j] + w[k] * X[k][i] * X[k][j];
-			}
-			B[i] = 0;
-			for (int k = 0; k < M; k++)
-				B[i] = B[i] + w[k] * X[k][i] * y[k];
-		}
 
 		// V now contains the raw least squares matrix
 		if (debug) Gpr.debug("V: \n" + Gpr.toString(V));
@@ -107,12 +55,8 @@ public class WeightedLinearRegression {
 			WSUM = WSUM + w[k];
 		}
 		YBAR = YBAR / WSUM;
+		predictor.accept(coefficients);
 		for (int k = 0; k < M; k++) {
-			yCalc[k] = 0;
-
-			for (int i = 0; i < N; i++)
-				yCalc[k] = yCalc[k] + coefficients[i] * X[k][i];
-
 			yResiduals[k] = yCalc[k] - y[k];
 			TSS = TSS + w[k] * (y[k] - YBAR) * (y[k] - YBAR);
 			RSS = RSS + w[k] * yResiduals[k] * yResiduals[k];
@@ -133,6 +77,104 @@ public class WeightedLinearRegression {
 		return true;
 	}
 
+	public double[] getCoefficients() {
+		return coefficients;
+	}
+
+	public double getRegressF() {
+		return regressF;
+	}
+
+	public double getRYSQ() {
+		return RYSQ;
+	}
+
+	public double getStdErr() {
+		return stdErr;
+	}
+
+	public double[] getStdErrCoeff() {
+		return stdErrCoeff;
+	}
+
+	public double[] getyResiduals() {
+		return yResiduals;
+	}
+
+	/**
+	 * Initialize results. Returns false if there is not enough data
+	 */
+	boolean init(int M, int N) {
+		yCalc = new double[M];
+		yResiduals = new double[M];
+
+		// If not enough data, don't attempt regression
+		if (M - N < 1) return false;
+
+		V = new double[N][N];
+		coefficients = new double[N];
+		stdErrCoeff = new double[N];
+		return true;
+	}
+
+	/**
+	 * Perform regression
+	 *  y[j]   = j-th observed data point
+	 *  X[j,i] = i-th independent variable for the j-th data point (row-major, used directly: no copy)
+	 *  w[j]   = j-th weight value
+	 */
+	public boolean regress(double[] y, double[][] X, double[] w) {
+		int M = y.length; // M = Number of data points
+		int N = X[0].length; // N = Number of linear terms
+		if (!init(M, N)) return false;
+
+		// Form Least Squares Matrix (lower triangle, then copy to upper triangle)
+		double[] B = new double[N]; // Vector for LSQ
+		for (int k = 0; k < M; k++) {
+			double xk[] = X[k];
+			for (int i = 0; i < N; i++) {
+				double wi = w[k] * xk[i];
+				B[i] += wi * y[k];
+				double Vi[] = V[i];
+				for (int j = 0; j <= i; j++)
+					Vi[j] += wi * xk[j];
+			}
+		}
+		for (int i = 0; i < N; i++)
+			for (int j = i + 1; j < N; j++)
+				V[i][j] = V[j][i];
+
+		return fit(y, w, B, c -> {
+			for (int k = 0; k < M; k++) {
+				double sum = 0, xk[] = X[k];
+				for (int i = 0; i < N; i++)
+					sum += xk[i] * c[i];
+				yCalc[k] = sum;
+			}
+		});
+	}
+
+	/**
+	 * Perform regression
+	 *  y[j]   = j-th observed data point
+	 *  X      = Design matrix (row 'j' has the values of independent variables for data point 'j')
+	 *  w[j]   = j-th weight value
+	 */
+	public boolean regress(double[] y, DesignMatrix X, double[] w) {
+		int M = y.length; // M = Number of data points
+		int N = X.getNumCols(); // N = Number of linear terms
+		if (!init(M, N)) return false;
+
+		// Form Least Squares Matrix
+		X.crossProduct(w, V);
+		double[] wy = new double[M];
+		for (int k = 0; k < M; k++)
+			wy[k] = w[k] * y[k];
+		double[] B = X.multiplyTransposed(wy, new double[N]); // Vector for LSQ
+
+		return fit(y, w, B, c -> X.multiply(c, yCalc));
+	}
+
 	public void setDebug(boolean debug) {
 		this.debug = debug;
 	}